@@ -0,0 +1,65 @@
+package cis5550.test;
+
+import java.lang.reflect.Method;
+
+import static cis5550.webserver.Server.*;
+
+// The server side of LoadDriver. It only calls the API the original server already had, so the
+// same class can be compiled against an older build of the server to measure the baseline with
+// the same routes; newer settings are looked up by reflection and skipped (with a note) where
+// they do not exist. Usage:
+//
+//   java cis5550.test.BenchServer [port] [vt] [routes <n>]
+//
+// 'vt' runs each connection on its own thread instead of the worker pool: a virtual thread on
+// JDK 21 and later, or (below that) a platform thread, at most one per queue slot; the line it
+// prints says which one ran, so label the results by that rather than by the flag. 'routes'
+// registers n more routes, half with a :param and half literal, which LoadDriver -routes
+// requests; that measures route matching with a large routing table.
+
+public class BenchServer {
+
+  static String routePattern(int i) {
+    return ((i%2) == 0) ? "/api/v"+(i%3)+"/res"+i+"/:id" : "/api/v"+(i%3)+"/res"+i+"/items/all";
+  }
+
+  // A path that routePattern(i) matches; v varies the :param value.
+  static String routePath(int i, int v) {
+    return ((i%2) == 0) ? "/api/v"+(i%3)+"/res"+i+"/"+v : "/api/v"+(i%3)+"/res"+i+"/items/all";
+  }
+
+  static void configure(String name, Object arg) {
+    try {
+      Class<?> type = (arg instanceof Boolean) ? boolean.class : int.class;
+      Method m = Class.forName("cis5550.webserver.Server").getMethod(name, type);
+      m.invoke(null, arg);
+      System.out.println("Server."+name+"("+arg+")");
+    } catch (NoSuchMethodException nsme) {
+      System.out.println("This server has no "+name+"() setting; ignored");
+    } catch (Exception e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+	public static void main(String args[]) throws Exception {
+    int p = 8080, numRoutes = 0;
+    for (int i=0; i<args.length; i++) {
+      if (args[i].equals("vt")) {
+        configure("virtualThreads", true);
+        System.out.println((Runtime.version().feature() >= 21) ? "Connections run on virtual threads" : "No virtual threads before JDK 21; connections run on bounded platform threads");
+      }
+      else if (args[i].equals("routes") && (i+1)<args.length)
+        numRoutes = Integer.parseInt(args[++i]);
+      else
+        p = Integer.parseInt(args[i]);
+    }
+
+    port(p);
+    get("/hello", (req,res) -> { return "Hello World"; });
+    get("/sleep/:ms", (req,res) -> { Thread.sleep(Long.parseLong(req.params("ms"))); return "slept "+req.params("ms"); });
+    for (int i=0; i<numRoutes; i++) {
+      final String name = "route "+i;
+      get(routePattern(i), (req,res) -> { return name; });
+    }
+  }
+}
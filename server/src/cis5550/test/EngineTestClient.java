@@ -0,0 +1,767 @@
+package cis5550.test;
+
+import java.util.*;
+import java.io.*;
+import java.net.*;
+import java.util.zip.*;
+
+// Tests for the request engine (routing, filters, async routes, request bodies, static files,
+// HTTP/2, the response cache) that go through the wire, since the classes behind them are
+// package-private. Start EngineTestServer first.
+
+public class EngineTestClient extends GenericTest {
+
+  EngineTestClient() {
+    super();
+  }
+
+  void runSetup() throws Exception {
+  }
+
+  void cleanup() {
+    File f = new File("__enginetest/digits.txt");
+    f.delete();
+    new File("__enginetest/sib.txt").delete();
+    new File("__enginetest/sib.txt.gz").delete();
+    new File("__enginetest").delete();
+  }
+
+  void prompt() {
+    /* Ask the user to confirm that the server is running */
+
+    System.out.println("In another terminal window, please run 'java cis5550.test.EngineTestServer, and then hit Enter in this window to continue.");
+    (new Scanner(System.in)).nextLine();
+  }
+
+  // Sends one request on a new connection and reads the response.
+  Response request(String method, String path, String extraHeaders, String body) throws Exception {
+    Socket s = openSocket(8080);
+    PrintWriter out = new PrintWriter(s.getOutputStream());
+    out.print(method+" "+path+" HTTP/1.1\r\nHost: localhost\r\n"+extraHeaders+"\r\n"+body);
+    out.flush();
+    Response r = readAndCheckResponse(s, "response");
+    s.close();
+    return r;
+  }
+
+  void expect(String what, Response r, int status, String body) throws Exception {
+    if (r == null)
+      return;
+    if (r.statusCode != status)
+      testFailed("For "+what+", the server returned a "+r.statusCode+" response, but we were expecting a "+status+". Here is what was in the body:\n\n"+dump(r.body));
+    else if ((body != null) && !r.body().equals(body))
+      testFailed("For "+what+", we expected '"+body+"', but the server returned this:\n\n"+dump(r.body));
+  }
+
+  void expectHeader(String what, Response r, String name, String value) throws Exception {
+    if ((r != null) && !value.equals(r.headers.get(name)))
+      testFailed("For "+what+", we expected the "+name+" header to be '"+value+"', but it was '"+r.headers.get(name)+"'");
+  }
+
+  static byte[] gunzip(byte[] b) throws IOException {
+    return new GZIPInputStream(new ByteArrayInputStream(b)).readAllBytes();
+  }
+
+  // A bare prior-knowledge HTTP/2 connection for the h2-* tests. The header blocks are written
+  // out byte by byte, so each test decides which HPACK features the server has to decode.
+  class H2 {
+    Socket s;
+    DataInputStream in;
+    OutputStream out;
+    int initialWindow = 65535;
+    long connectionWindow = 65535;
+    HashMap<Integer,Long> streamWindows = new HashMap<Integer,Long>();
+    int goAwayCode = -1;
+
+    H2() throws Exception {
+      s = openSocket(8080);
+      s.setSoTimeout(3000);
+      in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+      out = new BufferedOutputStream(s.getOutputStream());
+      out.write("PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes());
+      send(0x4, 0, 0, new byte[0]);
+    }
+
+    void send(int type, int flags, int stream, byte[] payload) throws IOException {
+      out.write(new byte[] { (byte) (payload.length>>16), (byte) (payload.length>>8), (byte) payload.length, (byte) type, (byte) flags,
+                             (byte) (stream>>24), (byte) (stream>>16), (byte) (stream>>8), (byte) stream });
+      out.write(payload);
+      out.flush();
+    }
+
+    long streamWindow(int stream) {
+      Long w = streamWindows.get(stream);
+      return (w == null) ? initialWindow : w;
+    }
+
+    // How much DATA the server lets us send on the stream right now.
+    long window(int stream) {
+      return Math.min(connectionWindow, streamWindow(stream));
+    }
+
+    void sendData(int stream, byte[] data) throws IOException {
+      send(0x0, 0x0, stream, data);
+      connectionWindow -= data.length;
+      streamWindows.put(stream, streamWindow(stream)-data.length);
+    }
+
+    // Reads one frame as {type, flags, stream} plus its payload, and keeps track of the
+    // server's settings and window updates on the way.
+    int[] read(ByteArrayOutputStream payload) throws IOException {
+      int length = in.readUnsignedByte()<<16 | in.readUnsignedByte()<<8 | in.readUnsignedByte();
+      int type = in.readUnsignedByte(), flags = in.readUnsignedByte(), stream = in.readInt() & 0x7FFFFFFF;
+      byte[] p = new byte[length];
+      in.readFully(p);
+      payload.write(p);
+      DataInputStream pin = new DataInputStream(new ByteArrayInputStream(p));
+      if ((type == 0x4) && ((flags & 0x1) == 0)) {
+        for (int i=0; i+6<=length; i+=6) {
+          int id = pin.readUnsignedShort(), value = pin.readInt();
+          if (id == 0x4) {
+            for (Map.Entry<Integer,Long> e : streamWindows.entrySet())
+              e.setValue(e.getValue()+value-initialWindow);
+            initialWindow = value;
+          }
+        }
+        send(0x4, 0x1, 0, new byte[0]);
+      } else if (type == 0x8) {
+        int increment = pin.readInt() & 0x7FFFFFFF;
+        if (stream == 0)
+          connectionWindow += increment;
+        else
+          streamWindows.put(stream, streamWindow(stream)+increment);
+      } else if (type == 0x7) {
+        pin.readInt();
+        goAwayCode = pin.readInt();
+      }
+      return new int[] { type, flags, stream };
+    }
+
+    // Reads until the response on the given stream is complete. Returns null (after failing
+    // the test) if the stream is reset or the connection ends first.
+    Response response(int stream) throws Exception {
+      Response r = new Response();
+      ByteArrayOutputStream body = new ByteArrayOutputStream();
+      while (true) {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        int[] f = read(payload);
+        if (f[0] == 0x7) {
+          testFailed("The server ended the connection (GOAWAY with code "+goAwayCode+") before the response on stream "+stream+" was complete");
+          return null;
+        }
+        if (f[2] != stream)
+          continue;
+        if (f[0] == 0x3) {
+          testFailed("The server reset stream "+stream+" before its response was complete");
+          return null;
+        }
+        if (f[0] == 0x1)
+          r.statusCode = statusOf(payload.toByteArray());
+        else if (f[0] == 0x0)
+          body.write(payload.toByteArray());
+        if (((f[0] == 0x0) || (f[0] == 0x1)) && ((f[1] & 0x1) != 0))
+          break;
+      }
+      r.body = body.toByteArray();
+      return r;
+    }
+
+    // Reads until the connection ends with GOAWAY or is closed, and returns the GOAWAY code
+    // (-1 if there was none).
+    int goAway() throws Exception {
+      try {
+        while (goAwayCode < 0)
+          read(new ByteArrayOutputStream());
+      } catch (EOFException eofe) {
+      }
+      return goAwayCode;
+    }
+
+    void close() throws IOException {
+      s.close();
+    }
+  }
+
+  // The :status of a response header block. The server puts it first, either as a static-table
+  // entry or as a literal with the :status name (index 8); a three-digit status is never
+  // shorter in Huffman code, so the literal is always plain.
+  static int statusOf(byte[] block) {
+    int first = block[0] & 0xFF;
+    if ((first & 0x80) != 0) {
+      int[] indexed = { 200, 204, 206, 304, 400, 404, 500 };
+      int index = first & 0x7F;
+      return ((index >= 8) && (index <= 14)) ? indexed[index-8] : -1;
+    }
+    if (((first & 0x0F) != 8) || ((block[1] & 0x80) != 0))
+      return -1;
+    return Integer.parseInt(new String(block, 2, block[1] & 0x7F));
+  }
+
+  static byte[] hex(String h) {
+    h = h.replace(" ", "");
+    byte[] b = new byte[h.length()/2];
+    for (int i=0; i<b.length; i++)
+      b[i] = (byte) Integer.parseInt(h.substring(2*i, 2*i+2), 16);
+    return b;
+  }
+
+  // The requests of RFC 7541 C.4.1 to C.4.3: Huffman-coded strings, with fields added to the
+  // dynamic table and referenced by the later requests.
+  static final byte[] HPACK_C41 = hex("8286 8441 8cf1 e3c2 e5f2 3a6b a0ab 90f4 ff");
+  static final byte[] HPACK_C42 = hex("8286 84be 5886 a8eb 1064 9cbf");
+  static final byte[] HPACK_C43 = hex("8287 85bf 4088 25a8 49e9 5ba9 7d7f 8925 a849 e95b b8e8 b4bf");
+
+  // GET / with a literal :authority that does not touch the dynamic table.
+  static final byte[] PLAIN_GET = hex("8286 8401 096c 6f63 616c 686f 7374");
+
+  void runTests(Set<String> tests) throws Exception {
+    System.out.printf("\n%-10s%-40sResult\n", "Test", "Description");
+    System.out.println("--------------------------------------------------------");
+
+    if (tests.contains("rt-lit")) try {
+      startTest("rt-lit", "Literal segments before parameters", 5);
+      expect("GET /r/a/b", request("GET", "/r/a/b", "", ""), 200, "literal");
+      expect("GET /r/z/b", request("GET", "/r/z/b", "", ""), 200, "x=z");
+      testSucceeded();
+    } catch (Exception e) { testFailed("An exception occurred: "+e, false); e.printStackTrace(); }
+
+    if (tests.contains("rt-back")) try {
+      startTest("rt-back", "Backtracking from a literal segment", 5);
+      expect("GET /r/a/c", request("GET", "/r/a/c", "", ""), 200, "x=a c");
+      testSucceeded();
+    } catch (Exception e) { testFailed("An exception occurred: "+e, false); e.printStackTrace(); }
+
+    if (tests.contains("rt-order")) try {
+      startTest("rt-order", "First of two same-shape routes wins", 5);
+      expect("GET /o/v", request("GET", "/o/v", "", ""), 200, "first=v");
+      testSucceeded();
+    } catch (Exception e) { testFailed("An exception occurred: "+e, false); e.printStackTrace(); }
+
+    if (tests.contains("rt-regex")) try {
+      startTest("rt-regex", "Regex-constrained parameters", 5);
+      expect("GET /n/42", request("GET", "/n/42", "", ""), 200, "id=42");
+      expect("GET /n/abc", request("GET", "/n/abc", "", ""), 200, "name=abc");
+      expect("GET /n/ab-7", request("GET", "/n/ab-7", "", ""), 200, "code=ab-7");
+      expect("GET /n/4x", request("GET", "/n/4x", "", ""), 200, "name=4x");
+      expect("GET /n/ab-7x", request("GET", "/n/ab-7x", "", ""), 200, "name=ab-7x");
+      testSucceeded();
+    } catch (Exception e) { testFailed("An exception occurred: "+e, false); e.printStackTrace(); }
+
+    if (tests.contains("rt-splat")) try {
+      startTest("rt-splat", "Trailing * takes the rest of the path", 5);
+      expect("GET /files/x/y.txt", request("GET", "/files/x/y.txt", "", ""), 200, "splat=[x/y.txt]");
+      expect("GET /files/", request("GET", "/files/", "", ""), 404, null);
+      testSucceeded();
+    } catch (Exception e) { testFailed("An exception occurred: "+e, false); e.printStackTrace(); }
+
+    if (tests.contains("rt-method")) try {
+      startTest("rt-method", "Routes are matched per method", 5);
+      expect("POST /r/a/b", request("POST", "/r/a/b", "Content-Length: 0\r\n", ""), 200, "post");
+      expect("GET /r/a/b/c", request("GET", "/r/a/b/c", "", ""), 404, null);
+      testSucceeded();
+    } catch (Exception e) { testFailed("An exception occurred: "+e, false); e.printStackTrace(); }
+
+    if (tests.contains("flt-lit")) try {
+      startTest("flt-lit", "Literal filter on a :param route", 5);
+      expect("GET /admin/users", request("GET", "/admin/users", "", ""), 401, null);
+      expect("GET /admin/users with a token", request("GET", "/admin/users", "X-Token: t\r\n", ""), 200, "section=users");
+      expect("GET /admin/groups", request("GET", "/admin/groups", "", ""), 200, "section=groups");
+      testSucceeded();
+    } catch (Exception e) { testFailed("An exception occurred: "+e, false); e.printStackTrace(); }
+
+    if (tests.contains("flt-halt")) try {
+      startTest("flt-halt", "After filters run, but not after a halt", 5);
+      Response r = request("GET", "/admin/groups", "", "");
+      expectHeader("GET /admin/groups", r, "x-after", "yes");
+      r = request("GET", "/admin/users", "", "");
+      expect("GET /admin/users", r, 401, null);
+      if ((r != null) && r.body().contains("section"))
+        testFailed("The before filter halted GET /admin/users, but the route still ran and returned '"+r.body()+"'");
+      if ((r != null) && (r.headers.get("x-after") != null))
+        testFailed("The before filter halted GET /admin/users, but the after filter still ran");
+      testSucceeded();
+    } catch (Exception e) { testFailed("An exception occurred: "+e, false); e.printStackTrace(); }
+
+    if (tests.contains("async-ok")) try {
+      startTest("async-ok", "Async route answers on a kept-alive conn", 5);
+      Socket s = openSocket(8080);
+      PrintWriter out = new PrintWriter(s.getOutputStream());
+      out.print("GET /async/ok?n=1 HTTP/1.1\r\nHost: localhost\r\n\r\nGET /async/ok?n=2 HTTP/1.1\r\nHost: localhost\r\n\r\n");
+      out.flush();
+      expect("the first pipelined GET", readAndCheckResponse(s, "response"), 200, "async 1");
+      expect("the second pipelined GET", readAndCheckResponse(s, "response"), 200, "async 2");
+      out.print("GET /async/ok?n=3 HTTP/1.1\r\nHost: localhost\r\n\r\n");
+      out.flush();
+      expect("a GET sent after both responses", readAndCheckResponse(s, "response"), 200, "async 3");
+      s.close();
+      testSucceeded();
+    } catch (Exception e) { testFailed("An exception occurred: "+e, false); e.printStackTrace(); }
+
+    if (tests.contains("async-err")) try {
+      startTest("async-err", "Failed future becomes a 500", 5);
+      expect("GET /async/fail", request("GET", "/async/fail", "", ""), 500, null);
+      testSucceeded();
+    } catch (Exception e) { testFailed("An exception occurred: "+e, false); e.printStackTrace(); }
+
+    if (tests.contains("async-504")) try {
+      startTest("async-504", "Route timeout sends 504 and closes", 5);
+      Socket s = openSocket(8080);
+      PrintWriter out = new PrintWriter(s.getOutputStream());
+      out.print("GET /async/slow HTTP/1.1\r\nHost: localhost\r\n\r\n");
+      out.flush();
+      expect("GET /async/slow", readAndCheckResponse(s, "response"), 504, null);
+      s.setSoTimeout(2000);
+      try {
+        if (s.getInputStream().read() >= 0)
+          testFailed("After the 504, we expected the server to close the connection, but it sent more data");
+      } catch (SocketTimeoutException ste) {
+        testFailed("After the 504, we expected the server to close the connection, but it stayed open");
+      } catch (SocketException se) {
+        // a reset counts as closed
+      }
+      s.close();
+      testSucceeded();
+    } catch (Exception e) { testFailed("An exception occurred: "+e, false); e.printStackTrace(); }
+
+    if (tests.contains("chunked")) try {
+      startTest("chunked", "Chunked body, then another request", 5);
+      Socket s = openSocket(8080);
+      PrintWriter out = new PrintWriter(s.getOutputStream());
+      out.print("POST /count HTTP/1.1\r\nHost: localhost\r\nTransfer-Encoding: chunked\r\n\r\n5\r\nhello\r\n6;ext=1\r\n world\r\n0\r\n\r\n");
+      out.flush();
+      expect("the chunked POST", readAndCheckResponse(s, "response"), 200, "11 null");
+      // Anything of the body left unread would now be taken for the next request.
+      out.print("GET /digits.txt HTTP/1.1\r\nHost: localhost\r\nRange: bytes=0-4\r\n\r\n");
+      out.flush();
+      expect("the GET after it", readAndCheckResponse(s, "second response"), 206, "01234");
+      s.close();
+      testSucceeded();
+    } catch (Exception e) { testFailed("An exception occurred: "+e, false); e.printStackTrace(); }
+
+    if (tests.contains("chk-trail")) try {
+      startTest("chk-trail", "Trailer fields after the last chunk", 5);
+      expect("the chunked POST", request("POST", "/count", "Transfer-Encoding: chunked\r\n", "b\r\nhello world\r\n0\r\nX-Sum: 11\r\n\r\n"), 200, "11 11");
+      testSucceeded();
+    } catch (Exception e) { testFailed("An exception occurred: "+e, false); e.printStackTrace(); }
+
+    if (tests.contains("chk-bad")) try {
+      startTest("chk-bad", "Malformed chunk size", 5);
+      expect("a chunk size of 'zz'", request("POST", "/count", "Transfer-Encoding: chunked\r\n", "zz\r\nhello\r\n0\r\n\r\n"), 400, null);
+      expect("chunk data without its CRLF", request("POST", "/count", "Transfer-Encoding: chunked\r\n", "5\r\nhelloXX0\r\n\r\n"), 400, null);
+      testSucceeded();
+    } catch (Exception e) { testFailed("An exception occurred: "+e, false); e.printStackTrace(); }
+
+    if (tests.contains("chk-limit")) try {
+      startTest("chk-limit", "Chunked body over the route's limit", 5);
+      expect("32 bytes to a 16-byte route", request("POST", "/small", "Transfer-Encoding: chunked\r\n", "20\r\n"+"x".repeat(32)+"\r\n0\r\n\r\n"), 413, null);
+      expect("16 bytes to a 16-byte route", request("POST", "/small", "Transfer-Encoding: chunked\r\n", "10\r\n"+"x".repeat(16)+"\r\n0\r\n\r\n"), 200, "16 null");
+      testSucceeded();
+    } catch (Exception e) { testFailed("An exception occurred: "+e, false); e.printStackTrace(); }
+
+    if (tests.contains("chk-frame")) try {
+      startTest("chk-frame", "Ambiguous or unknown framing is refused", 5);
+      expect("chunked plus Content-Length", request("POST", "/count", "Transfer-Encoding: chunked\r\nContent-Length: 5\r\n", "5\r\nhello\r\n0\r\n\r\n"), 400, null);
+      expect("Transfer-Encoding: gzip", request("POST", "/count", "Transfer-Encoding: gzip\r\n", ""), 501, null);
+      testSucceeded();
+    } catch (Exception e) { testFailed("An exception occurred: "+e, false); e.printStackTrace(); }
+
+    if (tests.contains("chk-form")) try {
+      startTest("chk-form", "Form body stays readable after parsing", 5);
+      expect("a form POST", request("POST", "/form", "Content-Type: application/x-www-form-urlencoded\r\nContent-Length: 7\r\n", "a=1&b=2"), 200, "1 a=1&b=2");
+      testSucceeded();
+    } catch (Exception e) { testFailed("An exception occurred: "+e, false); e.printStackTrace(); }
+
+    if (tests.contains("chk-len")) try {
+      startTest("chk-len", "Length of a chunked body is unknown", 5);
+      expect("a chunked POST", request("POST", "/length", "Transfer-Encoding: chunked\r\n", "5\r\nhello\r\n0\r\n\r\n"), 200, "-1 5");
+      expect("a POST with Content-Length", request("POST", "/length", "Content-Length: 5\r\n", "hello"), 200, "5 5");
+      testSucceeded();
+    } catch (Exception e) { testFailed("An exception occurred: "+e, false); e.printStackTrace(); }
+
+    if (tests.contains("range")) try {
+      startTest("range", "Single byte range", 5);
+      Response r = request("GET", "/digits.txt", "Range: bytes=10-19\r\n", "");
+      expect("bytes=10-19", r, 206, "0123456789");
+      expectHeader("bytes=10-19", r, "content-range", "bytes 10-19/10000");
+      r = request("GET", "/digits.txt", "Range: bytes=9990-\r\n", "");
+      expect("bytes=9990-", r, 206, "0123456789");
+      expectHeader("bytes=9990-", r, "content-range", "bytes 9990-9999/10000");
+      testSucceeded();
+    } catch (Exception e) { testFailed("An exception occurred: "+e, false); e.printStackTrace(); }
+
+    if (tests.contains("range-suf")) try {
+      startTest("range-suf", "Suffix byte range", 5);
+      Response r = request("GET", "/digits.txt", "Range: bytes=-5\r\n", "");
+      expect("bytes=-5", r, 206, "56789");
+      expectHeader("bytes=-5", r, "content-range", "bytes 9995-9999/10000");
+      testSucceeded();
+    } catch (Exception e) { testFailed("An exception occurred: "+e, false); e.printStackTrace(); }
+
+    if (tests.contains("range-mul")) try {
+      startTest("range-mul", "Multiple ranges as multipart/byteranges", 5);
+      Response r = request("GET", "/digits.txt", "Range: bytes=20-21,0-1\r\n", "");
+      expect("bytes=20-21,0-1", r, 206, null);
+      String type = (r == null) ? null : r.headers.get("content-type");
+      if ((type == null) || !type.startsWith("multipart/byteranges; boundary="))
+        testFailed("For bytes=20-21,0-1, we expected a multipart/byteranges response, but the Content-Type was '"+type+"'");
+      String boundary = type.substring(type.indexOf('=')+1);
+      String body = r.body();
+      int first = body.indexOf("Content-Range: bytes 0-1/10000");
+      int second = body.indexOf("Content-Range: bytes 20-21/10000");
+      if ((first < 0) || (second < first) || !body.endsWith("--"+boundary+"--\r\n"))
+        testFailed("For bytes=20-21,0-1, we expected the parts for 0-1 and 20-21, in that order, but got:\n\n"+dump(r.body));
+      testSucceeded();
+    } catch (Exception e) { testFailed("An exception occurred: "+e, false); e.printStackTrace(); }
+
+    if (tests.contains("range-ovl")) try {
+      startTest("range-ovl", "Overlapping and adjacent ranges", 5);
+      Response r = request("GET", "/digits.txt", "Range: bytes=5-9,0-4\r\n", "");
+      expect("bytes=5-9,0-4", r, 206, "0123456789");
+      expectHeader("bytes=5-9,0-4", r, "content-range", "bytes 0-9/10000");
+      r = request("GET", "/digits.txt", "Range: bytes=0-3,2-5\r\n", "");
+      expect("bytes=0-3,2-5", r, 206, "012345");
+      expectHeader("bytes=0-3,2-5", r, "content-range", "bytes 0-5/10000");
+      r = request("GET", "/digits.txt", "Range: bytes=0-5,1-6,2-7\r\n", "");
+      expect("bytes=0-5,1-6,2-7", r, 200, null);
+      if ((r != null) && (r.body.length != 10000))
+        testFailed("For bytes=0-5,1-6,2-7, we expected the whole file (10000 bytes), but got "+r.body.length+" bytes");
+      testSucceeded();
+    } catch (Exception e) { testFailed("An exception occurred: "+e, false); e.printStackTrace(); }
+
+    if (tests.contains("range-416")) try {
+      startTest("range-416", "Unsatisfiable range", 5);
+      Response r = request("GET", "/digits.txt", "Range: bytes=20000-\r\n", "");
+      expect("bytes=20000-", r, 416, null);
+      expectHeader("bytes=20000-", r, "content-range", "bytes */10000");
+      testSucceeded();
+    } catch (Exception e) { testFailed("An exception occurred: "+e, false); e.printStackTrace(); }
+
+    if (tests.contains("gz-neg")) try {
+      startTest("gz-neg", "Gzip only when the client accepts it", 5);
+      Response plain = request("GET", "/digits.txt", "", "");
+      expect("a GET without Accept-Encoding", plain, 200, null);
+      if ((plain != null) && (plain.headers.get("content-encoding") != null))
+        testFailed("Without Accept-Encoding, we expected an identity response, but Content-Encoding was '"+plain.headers.get("content-encoding")+"'");
+      Response gz = request("GET", "/digits.txt", "Accept-Encoding: gzip, deflate\r\n", "");
+      expect("a GET with Accept-Encoding: gzip", gz, 200, null);
+      expectHeader("a GET with Accept-Encoding: gzip", gz, "content-encoding", "gzip");
+      expectHeader("a GET with Accept-Encoding: gzip", gz, "vary", "Accept-Encoding");
+      if ((plain != null) && (gz != null)) {
+        if (!Arrays.equals(gunzip(gz.body), plain.body))
+          testFailed("The gzipped body of /digits.txt does not decompress to the file");
+        if (gz.body.length >= plain.body.length)
+          testFailed("The gzipped body ("+gz.body.length+" bytes) is not smaller than the file ("+plain.body.length+" bytes)");
+        if (gz.headers.get("etag").equals(plain.headers.get("etag")))
+          testFailed("The gzipped and the identity response both have ETag "+gz.headers.get("etag")+"; they need different ones");
+      }
+      Response none = request("GET", "/digits.txt", "Accept-Encoding: gzip;q=0\r\n", "");
+      if ((none != null) && (none.headers.get("content-encoding") != null))
+        testFailed("With gzip;q=0, we expected an identity response, but Content-Encoding was '"+none.headers.get("content-encoding")+"'");
+      testSucceeded();
+    } catch (Exception e) { testFailed("An exception occurred: "+e, false); e.printStackTrace(); }
+
+    if (tests.contains("gz-sib")) try {
+      startTest("gz-sib", "Precompressed .gz sibling is served", 5);
+      Response r = request("GET", "/sib.txt", "Accept-Encoding: gzip\r\n", "");
+      expectHeader("a GET of sib.txt", r, "content-encoding", "gzip");
+      if ((r != null) && !new String(gunzip(r.body)).equals("from the sibling"))
+        testFailed("We expected the bytes of sib.txt.gz, but the body decompressed to '"+new String(gunzip(r.body))+"'");
+      testSucceeded();
+    } catch (Exception e) { testFailed("An exception occurred: "+e, false); e.printStackTrace(); }
+
+    if (tests.contains("gz-etag")) try {
+      startTest("gz-etag", "Gzip ETag changes with the .gz sibling", 5);
+      Response before = request("GET", "/sib.txt", "Accept-Encoding: gzip\r\n", "");
+      String etag = (before == null) ? null : before.headers.get("etag");
+      // Only the sibling changes; the identity file keeps its length and mtime.
+      try (OutputStream gz = new GZIPOutputStream(new FileOutputStream("__enginetest/sib.txt.gz"))) {
+        gz.write("from the new sibling".getBytes());
+      }
+      Thread.sleep(1500);
+      Response after = request("GET", "/sib.txt", "Accept-Encoding: gzip\r\nIf-None-Match: "+etag+"\r\nConnection: close\r\n", "");
+      expect("a conditional GET after the sibling changed", after, 200, null);
+      if ((after != null) && (after.statusCode == 200) && !new String(gunzip(after.body)).equals("from the new sibling"))
+        testFailed("We expected the new sibling, but the body decompressed to '"+new String(gunzip(after.body))+"'");
+      if ((after != null) && (etag != null) && etag.equals(after.headers.get("etag")))
+        testFailed("The ETag stayed "+etag+" although the gzipped bytes changed");
+      testSucceeded();
+    } catch (Exception e) { testFailed("An exception occurred: "+e, false); e.printStackTrace(); }
+
+    if (tests.contains("etag-304")) try {
+      startTest("etag-304", "If-None-Match gets 304 per coding", 5);
+      Response r = request("GET", "/digits.txt", "", "");
+      String etag = (r == null) ? null : r.headers.get("etag");
+      // A 304 has no body and no Content-Length, so these requests ask the server to close.
+      Response cond = request("GET", "/digits.txt", "If-None-Match: "+etag+"\r\nConnection: close\r\n", "");
+      expect("If-None-Match with the file's ETag", cond, 304, "");
+      expectHeader("If-None-Match with the file's ETag", cond, "etag", etag);
+      expect("If-None-Match with another ETag", request("GET", "/digits.txt", "If-None-Match: \"other\"\r\n", ""), 200, null);
+      r = request("GET", "/digits.txt", "Accept-Encoding: gzip\r\n", "");
+      String gzEtag = (r == null) ? null : r.headers.get("etag");
+      cond = request("GET", "/digits.txt", "Accept-Encoding: gzip\r\nIf-None-Match: W/"+gzEtag+"\r\nConnection: close\r\n", "");
+      expect("If-None-Match with the gzip ETag", cond, 304, "");
+      expectHeader("If-None-Match with the gzip ETag", cond, "etag", gzEtag);
+      testSucceeded();
+    } catch (Exception e) { testFailed("An exception occurred: "+e, false); e.printStackTrace(); }
+
+    if (tests.contains("h2-hpack")) try {
+      startTest("h2-hpack", "HPACK Huffman strings and dynamic table", 5);
+      H2 h = new H2();
+      h.send(0x1, 0x5, 1, HPACK_C41);
+      expect("the request of RFC 7541 C.4.1", h.response(1), 200, "www.example.com|null|null");
+      h.send(0x1, 0x5, 3, HPACK_C42);
+      expect("the request of RFC 7541 C.4.2", h.response(3), 200, "www.example.com|no-cache|null");
+      h.send(0x1, 0x5, 5, HPACK_C43);
+      expect("the request of RFC 7541 C.4.3", h.response(5), 200, "www.example.com|null|custom-value");
+      h.close();
+      testSucceeded();
+    } catch (Exception e) { testFailed("An exception occurred: "+e, false); e.printStackTrace(); }
+
+    if (tests.contains("h2-evict")) try {
+      startTest("h2-evict", "Table size update evicts entries", 5);
+      H2 h = new H2();
+      h.send(0x1, 0x5, 1, HPACK_C41);
+      expect("the request of RFC 7541 C.4.1", h.response(1), 200, null);
+      // A size update to 0 empties the table, so index 62 no longer exists.
+      ByteArrayOutputStream block = new ByteArrayOutputStream();
+      block.write(0x20);
+      block.write(HPACK_C42);
+      h.send(0x1, 0x5, 3, block.toByteArray());
+      int code = h.goAway();
+      if (code != 0x9)
+        testFailed("After a reference to an evicted entry, we expected GOAWAY with COMPRESSION_ERROR (9), but got "+((code < 0) ? "no GOAWAY" : "code "+code));
+      h.close();
+      testSucceeded();
+    } catch (Exception e) { testFailed("An exception occurred: "+e, false); e.printStackTrace(); }
+
+    if (tests.contains("h2-bomb")) try {
+      startTest("h2-bomb", "HPACK bomb: table references over limit", 5);
+      H2 h = new H2();
+      // One 4000-byte field added to the table, then referenced 100 times: about 400 KB of
+      // headers from a 4 KB block.
+      ByteArrayOutputStream block = new ByteArrayOutputStream();
+      block.write(hex("8286 8440 0678 2d62 6f6d 627f a11e"));
+      block.write("a".repeat(4000).getBytes());
+      for (int i=0; i<100; i++)
+        block.write(0xbe);
+      h.send(0x1, 0x5, 1, block.toByteArray());
+      expect("the oversized header list", h.response(1), 431, null);
+      h.send(0x1, 0x5, 3, PLAIN_GET);
+      expect("the next request on the connection", h.response(3), 200, "localhost|null|null");
+      h.close();
+      testSucceeded();
+    } catch (Exception e) { testFailed("An exception occurred: "+e, false); e.printStackTrace(); }
+
+    if (tests.contains("h2-flow")) try {
+      startTest("h2-flow", "DATA beyond the receive window", 5);
+      H2 h = new H2();
+      h.send(0x1, 0x4, 1, hex("8386 8405 062f 7374 616c 6c01 096c 6f63 616c 686f 7374"));
+      h.read(new ByteArrayOutputStream());
+      // The route does not read its body, so no window update should come back for it.
+      byte[] chunk = new byte[16384];
+      for (long sent=0; sent<=h.initialWindow; sent+=chunk.length)
+        h.send(0x0, 0x0, 1, chunk);
+      int code = h.goAway();
+      if (code != 0x3)
+        testFailed("After more DATA than the stream's window of "+h.initialWindow+" bytes, we expected GOAWAY with FLOW_CONTROL_ERROR (3), but got "+((code < 0) ? "no GOAWAY" : "code "+code));
+      h.close();
+      testSucceeded();
+    } catch (Exception e) { testFailed("An exception occurred: "+e, false); e.printStackTrace(); }
+
+    if (tests.contains("h2-credit")) try {
+      startTest("h2-credit", "Window credited as the body is read", 5);
+      H2 h = new H2();
+      h.send(0x1, 0x4, 1, hex("8386 8405 062f 636f 756e 7401 096c 6f63 616c 686f 7374"));
+      // Three times the stream window, sent only as far as the windows allow.
+      long total = 3L*(1<<20), sent = 0;
+      byte[] chunk = new byte[16384];
+      while (sent < total) {
+        long n = Math.min(Math.min(chunk.length, total-sent), h.window(1));
+        if (n <= 0) {
+          h.read(new ByteArrayOutputStream());
+          continue;
+        }
+        h.sendData(1, Arrays.copyOf(chunk, (int) n));
+        sent += n;
+      }
+      h.send(0x0, 0x1, 1, new byte[0]);
+      expect("the 3 MB body", h.response(1), 200, total+" null");
+      h.close();
+      testSucceeded();
+    } catch (Exception e) { testFailed("An exception occurred: "+e, false); e.printStackTrace(); }
+
+    if (tests.contains("h2-refuse")) try {
+      startTest("h2-refuse", "Streams beyond the pool get REFUSED", 5);
+      // 120 streams on a route that holds its thread for two seconds need more threads than
+      // the server's 100; the rest must be refused, not queued or given new threads.
+      H2[] conns = { new H2(), new H2() };
+      byte[] stall = hex("8386 8405 062f 7374 616c 6c01 096c 6f63 616c 686f 7374");
+      for (H2 h : conns)
+        for (int i=0; i<60; i++)
+          h.send(0x1, 0x5, 2*i+1, stall);
+      int answered = 0, refused = 0;
+      for (H2 h : conns) {
+        int done = 0;
+        while (done < 60) {
+          ByteArrayOutputStream payload = new ByteArrayOutputStream();
+          int[] f = h.read(payload);
+          if (f[0] == 0x7) {
+            testFailed("The server ended the connection (GOAWAY with code "+h.goAwayCode+") instead of refusing streams");
+            break;
+          }
+          if (f[2] == 0)
+            continue;
+          if (f[0] == 0x3) {
+            int code = new DataInputStream(new ByteArrayInputStream(payload.toByteArray())).readInt();
+            if (code != 0x7)
+              testFailed("We expected streams beyond the server's threads to be reset with REFUSED_STREAM (7), but stream "+f[2]+" got code "+code);
+            refused ++;
+            done ++;
+          } else if (((f[0] == 0x0) || (f[0] == 0x1)) && ((f[1] & 0x1) != 0)) {
+            answered ++;
+            done ++;
+          }
+        }
+      }
+      if (refused == 0)
+        testFailed("All "+answered+" streams were answered; we expected the ones beyond the server's 100 stream threads to be refused");
+      conns[0].send(0x1, 0x5, 121, PLAIN_GET);
+      expect("a request once the streams are done", conns[0].response(121), 200, "localhost|null|null");
+      for (H2 h : conns)
+        h.close();
+      testSucceeded();
+    } catch (Exception e) { testFailed("An exception occurred: "+e, false); e.printStackTrace(); }
+
+    if (tests.contains("cache-hit")) try {
+      startTest("cache-hit", "Cached response is sent with an Age", 5);
+      Response first = request("GET", "/cached/plain", "", "");
+      Response second = request("GET", "/cached/plain", "", "");
+      expect("the second GET", second, 200, (first == null) ? null : first.body());
+      if ((second != null) && (second.headers.get("age") == null))
+        testFailed("We expected the second GET of a cached route to have an Age header, but it did not");
+      testSucceeded();
+    } catch (Exception e) { testFailed("An exception occurred: "+e, false); e.printStackTrace(); }
+
+    if (tests.contains("cache-hdr")) try {
+      startTest("cache-hdr", "Filter headers are per request on a hit", 5);
+      Response first = request("GET", "/cached/who?who=alice", "", "");
+      expectHeader("the first GET", first, "x-who", "alice");
+      Response second = request("GET", "/cached/who?who=bob", "", "");
+      expect("the second GET", second, 200, (first == null) ? null : first.body());
+      expectHeader("the second GET", second, "x-who", "bob");
+      testSucceeded();
+    } catch (Exception e) { testFailed("An exception occurred: "+e, false); e.printStackTrace(); }
+
+    if (tests.contains("cache-ses")) try {
+      startTest("cache-ses", "Session cookie from a filter on a hit", 5);
+      Response first = request("GET", "/cached/session", "", "");
+      Response second = request("GET", "/cached/session", "", "");
+      expect("the second GET", second, 200, (first == null) ? null : first.body());
+      String cookie = (second == null) ? null : second.headers.get("set-cookie");
+      if ((second != null) && ((cookie == null) || !cookie.startsWith("SessionID=")))
+        testFailed("We expected the cached response to carry the session cookie its before filter set, but Set-Cookie was '"+cookie+"'");
+      testSucceeded();
+    } catch (Exception e) { testFailed("An exception occurred: "+e, false); e.printStackTrace(); }
+
+    if (tests.contains("cache-ck")) try {
+      startTest("cache-ck", "Route that sets a cookie is not cached", 5);
+      Response first = request("GET", "/cached/cookie", "", "");
+      Response second = request("GET", "/cached/cookie", "", "");
+      if ((first != null) && (second != null) && first.body().equals(second.body()))
+        testFailed("The route sets a session cookie, so its response must not be cached, but the second GET returned the same '"+second.body()+"'");
+      testSucceeded();
+    } catch (Exception e) { testFailed("An exception occurred: "+e, false); e.printStackTrace(); }
+
+    System.out.println("--------------------------------------------------------\n");
+    if (numTestsFailed == 0)
+      System.out.println("Looks like your solution passed all of the selected tests. Congratulations!");
+    else
+      System.out.println(numTestsFailed+" test(s) failed.");
+
+    cleanup();
+    closeOutputFile();
+  }
+
+	public static void main(String args[]) throws Exception {
+
+    /* Make a set of enabled tests. If no command-line arguments were specified, run all tests. */
+
+    Set<String> tests = new TreeSet<String>();
+    boolean runSetup = true, runTests = true, promptUser = true, outputToFile = false, exitUponFailure = true, cleanup = false;
+
+    if ((args.length > 0) && args[0].equals("auto")) {
+      runSetup = false;
+      outputToFile = true;
+      exitUponFailure = false;
+      promptUser = false;
+      cleanup = false;
+    } else if ((args.length > 0) && args[0].equals("setup")) {
+      runSetup = true;
+      runTests = false;
+      promptUser = false;
+      cleanup = false;
+    } else if ((args.length > 0) && args[0].equals("cleanup")) {
+      runSetup = false;
+      runTests = false;
+      promptUser = false;
+      cleanup = true;
+    }
+
+    if ((args.length == 0) || args[0].equals("all") || args[0].equals("auto")) {
+      tests.add("rt-lit");
+      tests.add("rt-back");
+      tests.add("rt-order");
+      tests.add("rt-regex");
+      tests.add("rt-splat");
+      tests.add("rt-method");
+      tests.add("flt-lit");
+      tests.add("flt-halt");
+      tests.add("async-ok");
+      tests.add("async-err");
+      tests.add("async-504");
+      tests.add("chunked");
+      tests.add("chk-trail");
+      tests.add("chk-bad");
+      tests.add("chk-limit");
+      tests.add("chk-frame");
+      tests.add("chk-form");
+      tests.add("chk-len");
+      tests.add("range");
+      tests.add("range-suf");
+      tests.add("range-mul");
+      tests.add("range-ovl");
+      tests.add("range-416");
+      tests.add("gz-neg");
+      tests.add("gz-sib");
+      tests.add("gz-etag");
+      tests.add("etag-304");
+      tests.add("h2-hpack");
+      tests.add("h2-evict");
+      tests.add("h2-bomb");
+      tests.add("h2-flow");
+      tests.add("h2-credit");
+      tests.add("h2-refuse");
+      tests.add("cache-hit");
+      tests.add("cache-hdr");
+      tests.add("cache-ses");
+      tests.add("cache-ck");
+    }
+
+    for (int i=0; i<args.length; i++)
+      if (!args[i].equals("all") && !args[i].equals("auto") && !args[i].equals("setup")  && !args[i].equals("cleanup"))
+        tests.add(args[i]);
+
+    EngineTestClient t = new EngineTestClient();
+    t.setExitUponFailure(exitUponFailure);
+    if (outputToFile)
+      t.outputToFile();
+    if (runSetup)
+      t.runSetup();
+    if (promptUser)
+      t.prompt();
+    if (runTests)
+      t.runTests(tests);
+    if (cleanup)
+      t.cleanup();
+  }
+}
@@ -0,0 +1,90 @@
+package cis5550.test;
+
+import java.io.*;
+import java.util.zip.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import cis5550.webserver.Route;
+import static cis5550.webserver.Server.*;
+
+public class EngineTestServer {
+	public static void main(String args[]) throws Exception {
+    port(8080);
+    http2(true);
+
+    // Ranges (range-* tests) are served from a 10000-byte file whose byte i is the digit i%10.
+    File dir = new File("__enginetest");
+    dir.mkdirs();
+    StringBuilder digits = new StringBuilder();
+    for (int i=0; i<10000; i++)
+      digits.append((char) ('0'+(i%10)));
+    try (FileWriter fw = new FileWriter(new File(dir, "digits.txt"))) {
+      fw.write(digits.toString());
+    }
+    // Static gzip (gz-* tests): sib.txt has a precompressed sibling whose content differs, so
+    // the client can tell it from a copy compressed on the fly.
+    try (FileWriter fw = new FileWriter(new File(dir, "sib.txt"))) {
+      fw.write("identity ".repeat(100));
+    }
+    try (OutputStream gz = new GZIPOutputStream(new FileOutputStream(new File(dir, "sib.txt.gz")))) {
+      gz.write("from the sibling".getBytes());
+    }
+    staticFiles.location("__enginetest");
+
+    // Routing (rt-* tests)
+    get("/r/:x/b", (req,res) -> { return "x="+req.params("x"); });
+    get("/r/a/b", (req,res) -> { return "literal"; });
+    get("/r/:x/c", (req,res) -> { return "x="+req.params("x")+" c"; });
+    post("/r/a/b", (req,res) -> { return "post"; });
+    get("/o/:first", (req,res) -> { return "first="+req.params("first"); });
+    get("/o/:second", (req,res) -> { return "second="+req.params("second"); });
+    get("/n/:id{\\d+}", (req,res) -> { return "id="+req.params("id"); });
+    get("/n/:code{[a-z]+-\\d+}", (req,res) -> { return "code="+req.params("code"); });
+    get("/n/:name", (req,res) -> { return "name="+req.params("name"); });
+    get("/files/*", (req,res) -> { return "splat="+req.splat(); });
+
+    // Filters (flt-* tests): a literal before filter guards one path of a :param route, and an
+    // after filter on a trailing '*' tags every response under /admin.
+    before("/admin/users", (req,res) -> { if (req.headers("x-token") == null) res.halt(401, "Unauthorized"); });
+    after("/admin/*", (req,res) -> { res.header("X-After", "yes"); });
+    get("/admin/:section", (req,res) -> { return "section="+req.params("section"); });
+
+    // Asynchronous routes (async-* tests): futures that another thread completes or fails a little
+    // later, and one that never completes within the route's timeout.
+    Executor later = CompletableFuture.delayedExecutor(200, TimeUnit.MILLISECONDS);
+    get("/async/ok", (req,res) -> { return CompletableFuture.supplyAsync(() -> "async "+req.queryParams("n"), later); });
+    get("/async/fail", (req,res) -> { return CompletableFuture.supplyAsync(() -> { throw new IllegalStateException("failed later"); }, later); });
+    get("/async/slow", (req,res) -> { return new CompletableFuture<String>(); }).timeout(300);
+
+    // Request bodies (chk-* tests): the number of bytes read, and the X-Sum trailer
+    Route count = (req,res) -> {
+      InputStream in = req.bodyAsStream();
+      long n = 0;
+      while (in.read() >= 0)
+        n ++;
+      return n+" "+req.trailers("x-sum");
+    };
+    post("/count", count);
+    post("/small", count).maxBodySize(16);
+    post("/form", (req,res) -> { return req.queryParams("a")+" "+req.body(); });
+    post("/length", (req,res) -> { long before = req.contentLengthLong(); req.body(); return before+" "+req.contentLengthLong(); });
+
+    // HTTP/2 (h2-* tests): the headers the HPACK examples in RFC 7541 C.4 send, and a route
+    // that leaves its body unread for a while
+    Route echo = (req,res) -> { return req.headers("host")+"|"+req.headers("cache-control")+"|"+req.headers("custom-key"); };
+    get("/", echo);
+    get("/index.html", echo);
+    post("/stall", (req,res) -> { Thread.sleep(2000); return "late"; });
+
+    // Response cache (cache-* tests): every run of a handler takes the next number, so a repeated
+    // number means the response came from the cache. The filters set headers for each request.
+    AtomicInteger runs = new AtomicInteger();
+    before("/cached/:x", (req,res) -> { if (req.queryParams("who") != null) res.header("X-Who", req.queryParams("who")); });
+    before("/cached/session", (req,res) -> { req.session(); });
+    get("/cached/plain", (req,res) -> { return "run "+runs.incrementAndGet(); }).cache(60);
+    get("/cached/who", (req,res) -> { return "run "+runs.incrementAndGet(); }).cache(60);
+    get("/cached/session", (req,res) -> { return "run "+runs.incrementAndGet(); }).cache(60);
+    get("/cached/cookie", (req,res) -> { req.session(); return "run "+runs.incrementAndGet(); }).cache(60);
+  }
+}
@@ -0,0 +1,251 @@
+package cis5550.test;
+
+import java.util.*;
+import java.io.*;
+import java.net.*;
+import java.nio.charset.*;
+
+// A closed-loop HTTP/1.1 load generator: each connection is a thread that sends a request over
+// a keep-alive socket, reads the whole response, and sends the next one. After a warmup it
+// reports throughput and latency percentiles. Run it against BenchServer (or any server):
+//
+//   java cis5550.test.LoadDriver <port> <connections> <seconds> [options]
+//
+//   -path <p>       request path; give it several times to rotate (default /hello)
+//   -browser        send the dozen headers a browser sends (about 700 bytes) instead of Host
+//   -pipeline <k>   write k requests at once, then read the k responses; latency is per batch
+//   -routes <n>     rotate over paths of the last 64 routes of a 'BenchServer routes <n>'
+//   -warmup <s>     seconds to run before measuring (default 2)
+//
+// For example, 400 connections on /sleep/50 keep up to 400 handlers blocked at the same time,
+// which shows the fixed worker pool against BenchServer's 'vt' mode (virtual threads on JDK 21,
+// a bounded platform thread per connection below that; BenchServer prints which). With -browser and
+// -pipeline 16 on /hello, most of the server's time goes into reading request heads.
+
+public class LoadDriver {
+  final int port;
+  final List<String> paths = new ArrayList<String>();
+  boolean browserHeaders = false;
+  int pipeline = 1;
+  volatile boolean measuring = false;
+  volatile boolean stopped = false;
+
+  class Client extends Thread {
+    final int id;
+    long requests = 0;
+    long errors = 0;
+    long[] latencies = new long[1024];
+    int numLatencies = 0;
+
+    Client(int idArg) {
+      id = idArg;
+    }
+
+    void record(long nanos) {
+      if (numLatencies == latencies.length)
+        latencies = Arrays.copyOf(latencies, 2*latencies.length);
+      latencies[numLatencies++] = nanos;
+    }
+
+    public void run() {
+      int next = id;
+      while (!stopped) {
+        try (Socket s = new Socket("localhost", port)) {
+          s.setTcpNoDelay(true);
+          s.setSoTimeout(30000);
+          OutputStream out = s.getOutputStream();
+          InputStream in = new BufferedInputStream(s.getInputStream(), 16384);
+          while (!stopped) {
+            ByteArrayOutputStream batch = new ByteArrayOutputStream();
+            for (int i=0; i<pipeline; i++)
+              batch.write(request(paths.get((next++) % paths.size())));
+            long start = System.nanoTime();
+            batch.writeTo(out);
+            out.flush();
+            int ok = 0;
+            for (int i=0; i<pipeline; i++) {
+              if (readResponse(in) == 200)
+                ok ++;
+            }
+            long nanos = System.nanoTime()-start;
+            if (measuring) {
+              requests += ok;
+              errors += pipeline-ok;
+              record(nanos);
+            }
+          }
+        } catch (IOException ioe) {
+          if (measuring && !stopped)
+            errors ++;
+        }
+      }
+    }
+  }
+
+  LoadDriver(int portArg) {
+    port = portArg;
+  }
+
+  byte[] request(String path) {
+    String head = "GET "+path+" HTTP/1.1\r\nHost: localhost:"+port+"\r\n";
+    if (browserHeaders) {
+      head += "Connection: keep-alive\r\n"
+            + "sec-ch-ua: \"Chromium\";v=\"118\", \"Google Chrome\";v=\"118\", \"Not=A?Brand\";v=\"99\"\r\n"
+            + "sec-ch-ua-mobile: ?0\r\n"
+            + "sec-ch-ua-platform: \"Linux\"\r\n"
+            + "Upgrade-Insecure-Requests: 1\r\n"
+            + "User-Agent: Mozilla/5.0 (X11; Linux x86_64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/118.0.0.0 Safari/537.36\r\n"
+            + "Accept: text/html,application/xhtml+xml,application/xml;q=0.9,image/avif,image/webp,image/apng,*/*;q=0.8,application/signed-exchange;v=b3;q=0.7\r\n"
+            + "Sec-Fetch-Site: none\r\n"
+            + "Sec-Fetch-Mode: navigate\r\n"
+            + "Sec-Fetch-User: ?1\r\n"
+            + "Sec-Fetch-Dest: document\r\n"
+            + "Accept-Encoding: gzip, deflate, br\r\n"
+            + "Accept-Language: en-US,en;q=0.9\r\n"
+            + "Cookie: _ga=GA1.1.1480239843.1697040000; theme=dark; SessionID=0123456789abcdef0123456789abcdef\r\n";
+    }
+    return (head+"\r\n").getBytes(StandardCharsets.US_ASCII);
+  }
+
+  // Reads one response with a Content-Length or chunked body and returns its status code.
+  static int readResponse(InputStream in) throws IOException {
+    String statusLine = readLine(in);
+    String[] p = statusLine.split(" ");
+    if (p.length < 2)
+      throw new IOException("Bad status line: '"+statusLine+"'");
+    int status = Integer.parseInt(p[1]);
+    long contentLength = -1;
+    boolean chunked = false;
+    while (true) {
+      String l = readLine(in);
+      if (l.equals(""))
+        break;
+      int colon = l.indexOf(':');
+      if (colon < 0)
+        continue;
+      String name = l.substring(0, colon).trim();
+      String value = l.substring(colon+1).trim();
+      if (name.equalsIgnoreCase("content-length"))
+        contentLength = Long.parseLong(value);
+      else if (name.equalsIgnoreCase("transfer-encoding") && value.equalsIgnoreCase("chunked"))
+        chunked = true;
+    }
+    if (chunked) {
+      while (true) {
+        long size = Long.parseLong(readLine(in).split(";")[0].trim(), 16);
+        if (size == 0)
+          break;
+        skip(in, size+2);
+      }
+      while (!readLine(in).equals(""))
+        ;
+    } else if (contentLength > 0) {
+      skip(in, contentLength);
+    }
+    return status;
+  }
+
+  static String readLine(InputStream in) throws IOException {
+    StringBuilder sb = new StringBuilder();
+    while (true) {
+      int b = in.read();
+      if (b < 0)
+        throw new EOFException("Connection closed by the server");
+      if (b == '\n')
+        break;
+      if (b != '\r')
+        sb.append((char) b);
+    }
+    return sb.toString();
+  }
+
+  static void skip(InputStream in, long n) throws IOException {
+    while (n > 0) {
+      long k = in.skip(n);
+      if (k <= 0) {
+        if (in.read() < 0)
+          throw new EOFException("Connection closed in the middle of a body");
+        k = 1;
+      }
+      n -= k;
+    }
+  }
+
+  void run(int connections, int seconds, int warmupSeconds) throws Exception {
+    List<Client> clients = new ArrayList<Client>();
+    for (int i=0; i<connections; i++) {
+      Client c = new Client(i);
+      c.setDaemon(true);
+      clients.add(c);
+      c.start();
+    }
+    Thread.sleep(1000L*warmupSeconds);
+    measuring = true;
+    long start = System.nanoTime();
+    Thread.sleep(1000L*seconds);
+    measuring = false;
+    double elapsed = (System.nanoTime()-start)/1e9;
+    stopped = true;
+
+    long requests = 0, errors = 0;
+    int total = 0;
+    for (Client c : clients) {
+      c.join(100);
+      requests += c.requests;
+      errors += c.errors;
+      total += c.numLatencies;
+    }
+    long[] all = new long[total];
+    int pos = 0;
+    for (Client c : clients) {
+      System.arraycopy(c.latencies, 0, all, pos, c.numLatencies);
+      pos += c.numLatencies;
+    }
+    Arrays.sort(all);
+
+    System.out.printf("%d connections, %d s: %d requests (%.0f/s), %d errors\n", connections, seconds, requests, requests/elapsed, errors);
+    if (pipeline > 1)
+      System.out.println("(latency is for a batch of "+pipeline+" requests)");
+    if (total > 0)
+      System.out.printf("latency: p50 %s  p90 %s  p99 %s  max %s\n", format(all[total/2]), format(all[(int) (total*0.9)]), format(all[(int) (total*0.99)]), format(all[total-1]));
+  }
+
+  static String format(long nanos) {
+    if (nanos < 1000000)
+      return String.format("%.0f us", nanos/1e3);
+    return String.format("%.1f ms", nanos/1e6);
+  }
+
+	public static void main(String args[]) throws Exception {
+    if (args.length < 3) {
+      System.err.println("Syntax: LoadDriver <port> <connections> <seconds> [-path <p>]... [-routes <n>] [-browser] [-pipeline <k>] [-warmup <s>]");
+      System.exit(1);
+    }
+
+    LoadDriver d = new LoadDriver(Integer.parseInt(args[0]));
+    int connections = Integer.parseInt(args[1]);
+    int seconds = Integer.parseInt(args[2]);
+    int warmup = 2;
+    for (int i=3; i<args.length; i++) {
+      if (args[i].equals("-path") && (i+1)<args.length)
+        d.paths.add(args[++i]);
+      else if (args[i].equals("-routes") && (i+1)<args.length) {
+        int n = Integer.parseInt(args[++i]);
+        for (int r=Math.max(0, n-64); r<n; r++)
+          d.paths.add(BenchServer.routePath(r, r*7919));
+      } else if (args[i].equals("-browser"))
+        d.browserHeaders = true;
+      else if (args[i].equals("-pipeline") && (i+1)<args.length)
+        d.pipeline = Math.max(1, Integer.parseInt(args[++i]));
+      else if (args[i].equals("-warmup") && (i+1)<args.length)
+        warmup = Integer.parseInt(args[++i]);
+      else {
+        System.err.println("Unknown option: "+args[i]);
+        System.exit(1);
+      }
+    }
+    if (d.paths.isEmpty())
+      d.paths.add("/hello");
+    d.run(connections, seconds, warmup);
+  }
+}
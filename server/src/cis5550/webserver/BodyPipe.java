@@ -0,0 +1,173 @@
+package cis5550.webserver;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayDeque;
+import java.util.function.IntConsumer;
+
+// Carries a request body that is streamed to a handler instead of being buffered whole: the
+// thread that owns the connection appends what it receives, and the handler reads it as it
+// arrives. NioEngine uses the high-water mark: once HIGH_WATER bytes are waiting, offer()
+// returns false and the event loop stops reading until the handler has taken half of them,
+// at which point onDrained runs. Http2Connection instead gives each chunk a flow-control
+// credit, which goes to onConsumed once the handler has read the chunk.
+final class BodyPipe extends InputStream {
+
+    static final int HIGH_WATER = 256 * 1024;
+
+    private static final class Chunk {
+        final byte[] data;
+        final int credit;
+
+        Chunk(byte[] data, int credit) {
+            this.data = data;
+            this.credit = credit;
+        }
+    }
+
+    private final Runnable onDrained;
+    private final IntConsumer onConsumed;
+    private final ArrayDeque<Chunk> chunks = new ArrayDeque<>();
+    private int offset = 0;     // read position in chunks.peek()
+    private int size = 0;       // bytes waiting
+    private boolean eof = false;
+    private boolean failed = false;
+    private boolean closed = false;
+    private boolean stalled = false;
+
+    BodyPipe(Runnable onDrained) {
+        this.onDrained = onDrained;
+        this.onConsumed = null;
+    }
+
+    BodyPipe(IntConsumer onConsumed) {
+        this.onDrained = null;
+        this.onConsumed = onConsumed;
+    }
+
+    // Appends n bytes. Returns false if the caller should stop reading for now.
+    synchronized boolean offer(byte[] b, int off, int n) {
+        add(b, off, n, 0);
+        if (size >= HIGH_WATER) {
+            stalled = true;
+            return false;
+        }
+        return true;
+    }
+
+    // Appends n bytes whose credit is released once they have been read. Returns false, and
+    // takes nothing, if the pipe has been closed.
+    synchronized boolean offer(byte[] b, int off, int n, int credit) {
+        if (closed) return false;
+        add(b, off, n, credit);
+        return true;
+    }
+
+    private void add(byte[] b, int off, int n, int credit) {
+        if (n == 0) return;
+        byte[] copy = new byte[n];
+        System.arraycopy(b, off, copy, 0, n);
+        chunks.add(new Chunk(copy, credit));
+        size += n;
+        notifyAll();
+    }
+
+    // The sender is done; the reader gets -1 once it has read everything.
+    synchronized void finish() {
+        eof = true;
+        notifyAll();
+    }
+
+    // The connection is gone; a blocked reader fails.
+    synchronized void fail() {
+        failed = true;
+        notifyAll();
+    }
+
+    // The handler is done with the body: drops what it has not read and returns the credit of
+    // those bytes. Later offers with a credit are refused.
+    synchronized int discard() {
+        int credit = 0;
+        for (Chunk c : chunks) credit += c.credit;
+        chunks.clear();
+        offset = 0;
+        size = 0;
+        closed = true;
+        eof = true;
+        notifyAll();
+        return credit;
+    }
+
+    // What the handler has not read (the next pipelined request, typically); for NioEngine
+    // once the handler is done.
+    synchronized byte[] takeRemaining() {
+        byte[] rest = new byte[size];
+        int p = 0;
+        for (Chunk c : chunks) {
+            int from = (p == 0) ? offset : 0;
+            System.arraycopy(c.data, from, rest, p, c.data.length - from);
+            p += c.data.length - from;
+        }
+        chunks.clear();
+        offset = 0;
+        size = 0;
+        return rest;
+    }
+
+    public int read() throws IOException {
+        byte[] one = new byte[1];
+        int n = read(one, 0, 1);
+        return (n < 0) ? -1 : one[0] & 0xFF;
+    }
+
+    // Waits up to the body timeout for data; a timeout surfaces as SocketTimeoutException, as
+    // it would on a socket.
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) return 0;
+        boolean resume = false;
+        int credit = 0;
+        int n = 0;
+        synchronized (this) {
+            int timeout = Server.bodyTimeout();
+            long deadline = (timeout > 0) ? System.currentTimeMillis() + timeout : Long.MAX_VALUE;
+            while (size == 0) {
+                if (failed) throw new IOException("Connection closed");
+                if (eof) break;
+                long left = deadline - System.currentTimeMillis();
+                if (left <= 0) throw new SocketTimeoutException("Request body timed out");
+                try {
+                    wait((deadline == Long.MAX_VALUE) ? 0 : left);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+            }
+            while (n < len && size > 0) {
+                Chunk c = chunks.peek();
+                int k = Math.min(len - n, c.data.length - offset);
+                System.arraycopy(c.data, offset, b, off + n, k);
+                n += k;
+                offset += k;
+                size -= k;
+                if (offset == c.data.length) {
+                    chunks.poll();
+                    offset = 0;
+                    credit += c.credit;
+                }
+            }
+            if (stalled && size <= HIGH_WATER / 2) {
+                stalled = false;
+                resume = true;
+            }
+        }
+        if (credit > 0 && onConsumed != null) onConsumed.accept(credit);
+        if (resume && onDrained != null) onDrained.run();
+        return (n == 0) ? -1 : n;
+    }
+
+    public synchronized int available() {
+        return size;
+    }
+}
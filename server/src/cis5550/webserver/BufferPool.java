@@ -0,0 +1,46 @@
+package cis5550.webserver;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Direct buffers of one size, shared by the TLS connections of a NioEngine. Connections only
+// hold a buffer while there are bytes in it, so idle keep-alive connections cost none, and
+// at most maxPooled free buffers are kept for reuse.
+final class BufferPool {
+
+    private final int bufferSize;
+    private final int maxPooled;
+    private final Queue<ByteBuffer> free = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pooled = new AtomicInteger();
+
+    BufferPool(int bufferSize, int maxPooled) {
+        this.bufferSize = bufferSize;
+        this.maxPooled = maxPooled;
+    }
+
+    int bufferSize() {
+        return bufferSize;
+    }
+
+    ByteBuffer acquire() {
+        ByteBuffer b = free.poll();
+        if (b == null) {
+            return ByteBuffer.allocateDirect(bufferSize);
+        }
+        pooled.decrementAndGet();
+        return b;
+    }
+
+    // Buffers of another size (grown for an oversized record) are left to the GC.
+    void release(ByteBuffer b) {
+        if (b == null || b.capacity() != bufferSize || !b.isDirect()) return;
+        b.clear();
+        if (pooled.incrementAndGet() <= maxPooled) {
+            free.offer(b);
+        } else {
+            pooled.decrementAndGet();
+        }
+    }
+}
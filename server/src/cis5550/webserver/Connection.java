@@ -0,0 +1,96 @@
+package cis5550.webserver;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+// Per-connection state handed to Worker.processRequest. The socket is null when the
+// connection is owned by the NIO engine, which feeds the streams itself. Accepted sockets get
+// their streams from open() on the worker that first serves them; the same Connection (with
+// whatever is still buffered) comes back through the queue after being parked.
+class Connection {
+    final Socket socket;
+    final InetSocketAddress remoteAddr;
+    final boolean secure;
+    HttpInput in;
+    BufferedOutputStream out;
+
+    // Blocking channel of a plaintext socket, or null (TLS, NIO engine).
+    final WritableByteChannel channel;
+
+    // Write timeout bracket for transfers that bypass 'out', or null.
+    WriteWatchdog.Guard guard;
+
+    int served = 0;       // requests answered so far
+    Worker.PendingRoute pending;    // a route answering asynchronously, see processRequest
+    long parkedAt = 0;    // when the connection last went to the parking lot
+
+    Connection(Socket socket) {
+        this(socket, (InetSocketAddress) socket.getRemoteSocketAddress(),
+             socket instanceof javax.net.ssl.SSLSocket, null, null);
+    }
+
+    Connection(Socket socket, InetSocketAddress remoteAddr, boolean secure, HttpInput in, BufferedOutputStream out) {
+        this.socket = socket;
+        this.remoteAddr = remoteAddr;
+        this.secure = secure;
+        this.in = in;
+        this.out = out;
+        this.channel = (socket != null && !secure) ? socket.getChannel() : null;
+    }
+
+    Worker.PendingRoute takePending() {
+        Worker.PendingRoute p = pending;
+        pending = null;
+        return p;
+    }
+
+    boolean isOpen() {
+        return in != null;
+    }
+
+    void open() throws IOException {
+        in = new HttpInput(socket, socket.getInputStream(), 16 * 1024);
+        guard = WriteWatchdog.guard(socket);
+        out = new BufferedOutputStream(guard, 16 * 1024);
+    }
+
+    // Flushes what is left and closes the socket.
+    void close() {
+        try {
+            if (out != null) out.close();
+        } catch (IOException ignored) {
+        }
+        try {
+            if (socket != null) socket.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    // Sends count bytes of the file starting at pos without copying them through user space.
+    // Returns false if this transport cannot do that and the caller has to copy the bytes itself.
+    // Anything buffered in 'out' must have been flushed before.
+    boolean transferFile(FileChannel fc, long pos, long count) throws IOException {
+        if (channel == null) {
+            return false;
+        }
+        while (count > 0) {
+            long n;
+            if (guard != null) guard.begin();
+            try {
+                n = fc.transferTo(pos, count, channel);
+            } finally {
+                if (guard != null) guard.end();
+            }
+            if (n <= 0) {
+                throw new IOException("File shrank during transfer");
+            }
+            pos += n;
+            count -= n;
+        }
+        return true;
+    }
+}
@@ -1,20 +1,44 @@
 package cis5550.webserver;
 
-import java.net.Socket;
-import java.util.LinkedList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
 
+// Bounded hand-off from the acceptors (and the parking lot) to the workers. The size is
+// reserved with a CAS before the connection is added, so enqueue() never blocks and fails
+// fast once the queue is full; workers park on the semaphore while there is nothing to do.
 class ConnectionQueue {
-    private final LinkedList<Socket> queue = new LinkedList<>();
+    private final ConcurrentLinkedQueue<Connection> queue = new ConcurrentLinkedQueue<>();
+    private final Semaphore available = new Semaphore(0);
+    private final AtomicInteger size = new AtomicInteger();
+    private final int capacity;
 
-    public synchronized void enqueue(Socket s) {
-        queue.addLast(s);
-        notify();
+    ConnectionQueue(int capacity) {
+        this.capacity = capacity;
     }
 
-    public synchronized Socket dequeue() throws InterruptedException {
-        while (queue.isEmpty()) {
-            wait();
+    public boolean enqueue(Connection c) {
+        while (true) {
+            int n = size.get();
+            if (n >= capacity) {
+                return false;
+            }
+            if (size.compareAndSet(n, n + 1)) {
+                break;
+            }
         }
-        return queue.removeFirst();
+        queue.add(c);
+        available.release();
+        return true;
+    }
+
+    public Connection dequeue() throws InterruptedException {
+        available.acquire();
+        size.decrementAndGet();
+        return queue.poll();
+    }
+
+    int depth() {
+        return size.get();
     }
 }
@@ -0,0 +1,127 @@
+package cis5550.webserver;
+
+import cis5550.tools.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+// Resolved static files keyed by decoded URL path. Small files also keep their bytes. Entries
+// are dropped when a WatchService event arrives for the file, and as a fallback whenever a
+// periodic lastModified/length check (at most once per REVALIDATE_MS) sees a change, so hot
+// entries are served without touching the filesystem.
+class FileCache {
+
+    private static final Logger logger = Logger.getLogger(FileCache.class);
+
+    static final long REVALIDATE_MS = 1000;
+
+    static class Entry {
+        final File file;
+        final String canonical;
+        final long length;
+        final long lastModified;
+        final byte[] body;          // null if the file was larger than the per-file limit
+        final File gz;              // up-to-date precompressed sibling (foo.html.gz), or null
+        final long gzLength;
+        final long gzLastModified;
+        final String etag;
+        final String gzEtag;        // validator of the .gz sibling's own bytes, or null
+        final String lastModifiedHttp;
+        volatile long checkedAt;
+
+        Entry(File file, String canonical, long length, long lastModified, byte[] body, File gz) {
+            this.file = file;
+            this.canonical = canonical;
+            this.length = length;
+            this.lastModified = lastModified;
+            this.body = body;
+            this.gz = gz;
+            this.gzLength = (gz == null) ? 0 : gz.length();
+            this.gzLastModified = (gz == null) ? 0 : gz.lastModified();
+            this.etag = "\"" + Long.toHexString(length) + "-" + Long.toHexString(lastModified) + "\"";
+            this.gzEtag = (gz == null) ? null : StaticFiles.gzipEtag(gzLength, gzLastModified);
+            this.lastModifiedHttp = HttpDate.format(lastModified);
+            this.checkedAt = System.currentTimeMillis();
+        }
+    }
+
+    private final LruCache<String, Entry> entries;
+    private final int maxFileBytes;
+    private final Set<Path> watchedDirs = ConcurrentHashMap.newKeySet();
+    private WatchService watcher = null;
+
+    FileCache(long maxBytes, int maxFileBytes) {
+        this.entries = new LruCache<>(maxBytes, e -> 256 + (e.body == null ? 0 : e.body.length));
+        this.maxFileBytes = maxFileBytes;
+        try {
+            watcher = FileSystems.getDefault().newWatchService();
+            Thread t = new Thread(this::watchLoop, "Static-Watch");
+            t.setDaemon(true);
+            t.start();
+        } catch (IOException | UnsupportedOperationException e) {
+            logger.warn("No WatchService for the static file cache; relying on lastModified checks");
+        }
+    }
+
+    int maxFileBytes() {
+        return maxFileBytes;
+    }
+
+    Entry get(String path) {
+        Entry e = entries.get(path);
+        if (e == null) {
+            return null;
+        }
+        long now = System.currentTimeMillis();
+        if (now - e.checkedAt > REVALIDATE_MS) {
+            if (e.file.lastModified() != e.lastModified || e.file.length() != e.length
+                    || (e.gz != null && (e.gz.length() != e.gzLength || e.gz.lastModified() != e.gzLastModified))) {
+                entries.remove(path);
+                return null;
+            }
+            e.checkedAt = now;
+        }
+        return e;
+    }
+
+    void put(String path, Entry e) {
+        entries.put(path, e);
+        Path dir = e.file.toPath().getParent();
+        if (watcher != null && dir != null && watchedDirs.add(dir)) {
+            try {
+                dir.register(watcher, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE);
+            } catch (IOException ioe) {
+                logger.debug("Cannot watch " + dir + ": " + ioe.getMessage());
+            }
+        }
+    }
+
+    private void watchLoop() {
+        while (true) {
+            WatchKey key;
+            try {
+                key = watcher.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+            Path dir = (Path) key.watchable();
+            for (WatchEvent<?> ev : key.pollEvents()) {
+                if (ev.kind() == OVERFLOW) {
+                    entries.clear();
+                    continue;
+                }
+                String changed = dir.resolve((Path) ev.context()).toString();
+                entries.removeIf((k, e) -> changed.startsWith(e.canonical)
+                        && (changed.length() == e.canonical.length() || changed.equals(e.canonical + ".gz")));
+            }
+            if (!key.reset()) {
+                watchedDirs.remove(dir);
+            }
+        }
+    }
+}
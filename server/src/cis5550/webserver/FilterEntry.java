@@ -0,0 +1,105 @@
+package cis5550.webserver;
+
+import java.util.regex.Pattern;
+
+// A before or after filter and the path pattern it was registered with. When routes and
+// filters are registered, each filter is compared with each route pattern: a filter that
+// matches every path of the route is stored on the RouteEntry as is, one that can match some
+// of them is stored behind a check of the concrete request path, and one that can match none
+// is left out. A request therefore only walks the arrays stored on its RouteEntry.
+final class FilterEntry {
+
+    final Filter filter;
+    private final RouteEntry shape;    // the pattern, parsed like a route's; null for all routes
+    private final Router.Constraint[] constraints;
+
+    FilterEntry(String pathPattern, Filter filter) {
+        this.filter = filter;
+        this.shape = (pathPattern == null) ? null : new RouteEntry(null, pathPattern, null);
+        this.constraints = (shape == null) ? null : new Router.Constraint[shape.segments.length];
+        for (int i = 0; shape != null && i < shape.segments.length; i++) {
+            if (shape.constraints[i] != null) constraints[i] = new Router.Constraint(shape.constraints[i]);
+        }
+    }
+
+    // What to store on 'route' for this filter: the filter itself, a wrapper that first
+    // checks the request path, or null if the filter never applies to the route.
+    Filter forRoute(RouteEntry route) {
+        if (covers(route)) return filter;
+        if (!mayMatch(route)) return null;
+        return (req, res) -> {
+            if (matches(req.url())) filter.handle(req, res);
+        };
+    }
+
+    // True if the pattern matches the route's pattern segment by segment: a literal only
+    // matches the same literal (a regex-constrained param, a literal it accepts), a :param or
+    // '*' matches any segment, and a trailing '*' matches one or more remaining segments.
+    boolean covers(RouteEntry route) {
+        if (shape == null) return true;
+        String[] segs = shape.segments;
+        for (int i = 0; i < segs.length; i++) {
+            if (shape.isTail(i)) return route.segments.length > i;
+            if (i >= route.segments.length || route.isTail(i)) return false;
+            if (shape.constraints[i] != null) {
+                if (route.paramNames[i] != null || !shape.constraints[i].matcher(route.segments[i]).matches()) {
+                    return false;
+                }
+            } else if (shape.paramNames[i] == null) {
+                if (route.paramNames[i] != null || !segs[i].equals(route.segments[i])) return false;
+            }
+        }
+        return segs.length == route.segments.length;
+    }
+
+    // False only if no path can match both the pattern and the route's pattern, e.g. because
+    // two literals differ or the segment counts can never agree.
+    boolean mayMatch(RouteEntry route) {
+        if (shape == null) return true;
+        int n = Math.min(shape.segments.length, route.segments.length);
+        for (int i = 0; i < n; i++) {
+            if (shape.isTail(i) || route.isTail(i)) break;
+            String own = shape.paramNames[i], theirs = route.paramNames[i];
+            if (own == null && theirs == null) {
+                if (!shape.segments[i].equals(route.segments[i])) return false;
+            } else if (own == null) {
+                if (!accepts(route.constraints[i], shape.segments[i])) return false;
+            } else if (theirs == null) {
+                if (!accepts(shape.constraints[i], route.segments[i])) return false;
+            }
+        }
+        int own = shape.segments.length, theirs = route.segments.length;
+        boolean ownTail = own > 0 && shape.isTail(own - 1), theirTail = theirs > 0 && route.isTail(theirs - 1);
+        if (ownTail && theirTail) return true;
+        if (ownTail) return theirs >= own;
+        if (theirTail) return own >= theirs;
+        return own == theirs;
+    }
+
+    private static boolean accepts(Pattern constraint, String literal) {
+        return constraint == null || constraint.matcher(literal).matches();
+    }
+
+    // True if the pattern matches a (decoded) request path. Empty segments are ignored, as
+    // they are by Router.
+    boolean matches(String path) {
+        if (shape == null) return true;
+        String[] segs = shape.segments;
+        int i = 0, pos = 0, len = path.length();
+        while (true) {
+            while (pos < len && path.charAt(pos) == '/') pos++;
+            if (pos == len) return i == segs.length;
+            if (i == segs.length) return false;
+            if (shape.isTail(i)) return true;
+            int end = path.indexOf('/', pos);
+            if (end < 0) end = len;
+            if (constraints[i] != null) {
+                if (!constraints[i].matches(path, pos, end)) return false;
+            } else if (shape.paramNames[i] == null) {
+                if (end - pos != segs[i].length() || !path.startsWith(segs[i], pos)) return false;
+            }
+            i++;
+            pos = end;
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package cis5550.webserver;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+// Parses an application/x-www-form-urlencoded body while it is being read: each key=value
+// pair is decoded as soon as its '&' arrives, so only the pair in progress is buffered.
+final class FormParser {
+
+    private FormParser() {
+    }
+
+    // Reads 'in' to the end and adds its fields to 'into'.
+    static void parse(InputStream in, Map<String, String> into) throws IOException {
+        ByteArrayOutputStream pair = new ByteArrayOutputStream();
+        byte[] block = new byte[8192];
+        int n;
+        while ((n = in.read(block, 0, block.length)) > 0) {
+            int start = 0;
+            for (int i = 0; i < n; i++) {
+                if (block[i] == '&') {
+                    pair.write(block, start, i - start);
+                    addPair(pair, into);
+                    start = i + 1;
+                }
+            }
+            pair.write(block, start, n - start);
+        }
+        addPair(pair, into);
+    }
+
+    private static void addPair(ByteArrayOutputStream pair, Map<String, String> into) {
+        String s = pair.toString(StandardCharsets.UTF_8);
+        pair.reset();
+        int eq = s.indexOf('=');
+        if (eq < 0) return;
+        try {
+            into.put(URLDecoder.decode(s.substring(0, eq), "UTF-8"), URLDecoder.decode(s.substring(eq + 1), "UTF-8"));
+        } catch (Exception ignored) {
+        }
+    }
+}
@@ -0,0 +1,329 @@
+package cis5550.webserver;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+// HPACK header compression (RFC 7541) for Http2Connection. The decoder keeps the dynamic
+// table the client's encoder refers to; the encoder never adds to the client's table and
+// only uses static-table references plus (Huffman-coded where that is shorter) literals,
+// which keeps it stateless and therefore safe to call from any stream's thread. Strings
+// are handled as ISO-8859-1 so that bytes survive the round trip unchanged.
+final class Hpack {
+
+    // Raised for malformed header blocks; the connection has to be torn down with
+    // COMPRESSION_ERROR because the decoder state can no longer be trusted.
+    static final class CompressionException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        CompressionException(String message) {
+            super(message);
+        }
+    }
+
+    // The decoded header list is larger than the limit (name + value + 32 per field, as for
+    // SETTINGS_MAX_HEADER_LIST_SIZE). Raised only once the whole block has been decoded, so the
+    // dynamic table stays in step and the connection can go on.
+    static final class HeaderListTooLargeException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        HeaderListTooLargeException(long limit) {
+            super("Header list exceeds " + limit + " bytes");
+        }
+    }
+
+    private static final String[][] STATIC_TABLE = {
+        null,
+        { ":authority", "" }, { ":method", "GET" }, { ":method", "POST" }, { ":path", "/" },
+        { ":path", "/index.html" }, { ":scheme", "http" }, { ":scheme", "https" }, { ":status", "200" },
+        { ":status", "204" }, { ":status", "206" }, { ":status", "304" }, { ":status", "400" },
+        { ":status", "404" }, { ":status", "500" }, { "accept-charset", "" }, { "accept-encoding", "gzip, deflate" },
+        { "accept-language", "" }, { "accept-ranges", "" }, { "accept", "" }, { "access-control-allow-origin", "" },
+        { "age", "" }, { "allow", "" }, { "authorization", "" }, { "cache-control", "" },
+        { "content-disposition", "" }, { "content-encoding", "" }, { "content-language", "" }, { "content-length", "" },
+        { "content-location", "" }, { "content-range", "" }, { "content-type", "" }, { "cookie", "" },
+        { "date", "" }, { "etag", "" }, { "expect", "" }, { "expires", "" },
+        { "from", "" }, { "host", "" }, { "if-match", "" }, { "if-modified-since", "" },
+        { "if-none-match", "" }, { "if-range", "" }, { "if-unmodified-since", "" }, { "last-modified", "" },
+        { "link", "" }, { "location", "" }, { "max-forwards", "" }, { "proxy-authenticate", "" },
+        { "proxy-authorization", "" }, { "range", "" }, { "referer", "" }, { "refresh", "" },
+        { "retry-after", "" }, { "server", "" }, { "set-cookie", "" }, { "strict-transport-security", "" },
+        { "transfer-encoding", "" }, { "user-agent", "" }, { "vary", "" }, { "via", "" },
+        { "www-authenticate", "" }
+    };
+
+    private static final Map<String, Integer> STATIC_NAMES = new HashMap<>();
+    private static final Map<String, Integer> STATIC_PAIRS = new HashMap<>();
+    static {
+        for (int i = STATIC_TABLE.length - 1; i >= 1; i--) {
+            STATIC_NAMES.put(STATIC_TABLE[i][0], i);
+            if (!STATIC_TABLE[i][1].isEmpty()) {
+                STATIC_PAIRS.put(STATIC_TABLE[i][0] + '\0' + STATIC_TABLE[i][1], i);
+            }
+        }
+    }
+
+    // Code lengths of the Huffman code in RFC 7541 Appendix B, symbols 0-256 (256 is EOS).
+    // The code is canonical, so the codes themselves follow from the lengths.
+    private static final byte[] HUFFMAN_LENGTHS = {
+        13, 23, 28, 28, 28, 28, 28, 28, 28, 24, 30, 28, 28, 30, 28, 28, 28, 28, 28, 28, 28, 28, 30, 28, 28, 28, 28, 28, 28, 28, 28, 28,
+        6, 10, 10, 12, 13, 6, 8, 11, 10, 10, 8, 11, 8, 6, 6, 6, 5, 5, 5, 6, 6, 6, 6, 6, 6, 6, 7, 8, 15, 6, 12, 10,
+        13, 6, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 8, 7, 8, 13, 19, 13, 14, 6,
+        15, 5, 6, 5, 6, 5, 6, 6, 6, 5, 7, 7, 6, 6, 6, 5, 6, 7, 6, 5, 5, 6, 7, 7, 7, 7, 7, 15, 11, 14, 13, 28,
+        20, 22, 20, 20, 22, 22, 22, 23, 22, 23, 23, 23, 23, 23, 24, 23, 24, 24, 22, 23, 24, 23, 23, 23, 23, 21, 22, 23, 22, 23, 23, 24,
+        22, 21, 20, 22, 22, 23, 23, 21, 23, 22, 22, 24, 21, 22, 23, 23, 21, 21, 22, 21, 23, 22, 23, 23, 20, 22, 22, 22, 23, 22, 22, 23,
+        26, 26, 20, 19, 22, 23, 22, 25, 26, 26, 26, 27, 27, 26, 24, 25, 19, 21, 26, 27, 27, 26, 27, 24, 21, 21, 26, 26, 28, 27, 27, 27,
+        20, 24, 20, 21, 22, 21, 21, 23, 22, 22, 25, 25, 24, 24, 26, 23, 26, 27, 26, 26, 27, 27, 27, 27, 27, 28, 27, 27, 27, 27, 27, 26,
+        30
+    };
+    private static final int EOS = 256;
+    private static final int[] HUFFMAN_CODES = new int[257];
+
+    // Decoding tree: node n has children tree[2n] (bit 0) and tree[2n+1] (bit 1). A child
+    // value > 0 is another node, a value <= 0 is the leaf for symbol -value, and
+    // Integer.MIN_VALUE marks a missing child.
+    private static final int[] TREE = new int[2 * 512];
+    static {
+        Integer[] order = new Integer[257];
+        for (int i = 0; i < 257; i++) order[i] = i;
+        java.util.Arrays.sort(order, (a, b) -> HUFFMAN_LENGTHS[a] != HUFFMAN_LENGTHS[b]
+                ? HUFFMAN_LENGTHS[a] - HUFFMAN_LENGTHS[b] : a - b);
+        int code = 0;
+        int prevLen = HUFFMAN_LENGTHS[order[0]];
+        for (int i = 0; i < order.length; i++) {
+            int sym = order[i];
+            if (i > 0) {
+                code = (code + 1) << (HUFFMAN_LENGTHS[sym] - prevLen);
+                prevLen = HUFFMAN_LENGTHS[sym];
+            }
+            HUFFMAN_CODES[sym] = code;
+        }
+
+        java.util.Arrays.fill(TREE, Integer.MIN_VALUE);
+        int nodes = 1;
+        for (int sym = 0; sym < 257; sym++) {
+            int node = 0;
+            int len = HUFFMAN_LENGTHS[sym];
+            for (int b = len - 1; b >= 0; b--) {
+                int slot = 2 * node + ((HUFFMAN_CODES[sym] >>> b) & 1);
+                if (b == 0) {
+                    TREE[slot] = -sym;
+                } else {
+                    if (TREE[slot] == Integer.MIN_VALUE) TREE[slot] = nodes++;
+                    node = TREE[slot];
+                }
+            }
+        }
+    }
+
+    static final class Decoder {
+        private final ArrayDeque<String[]> dynamic = new ArrayDeque<>();   // newest first
+        private int size = 0;
+        private int maxSize;
+        private final int settingsMaxSize;
+
+        Decoder(int settingsMaxSize) {
+            this.settingsMaxSize = settingsMaxSize;
+            this.maxSize = settingsMaxSize;
+        }
+
+        // Decodes one complete header block into (name, value) pairs, in order. A small block
+        // can expand into a huge list by naming the same table entry over and over, so fields
+        // stop being collected once the list passes maxListSize, and the block then ends in
+        // HeaderListTooLargeException.
+        List<String[]> decode(byte[] b, int off, int len, long maxListSize) throws IOException {
+            List<String[]> fields = new ArrayList<>();
+            long listSize = 0;
+            int[] pos = { off };
+            int end = off + len;
+            boolean fieldsSeen = false;
+            while (pos[0] < end) {
+                int first = b[pos[0]] & 0xFF;
+                String[] f;
+                if ((first & 0x80) != 0) {
+                    String[] e = lookup(readInt(b, pos, end, 7));
+                    f = new String[] { e[0], e[1] };
+                } else if ((first & 0xC0) == 0x40) {
+                    f = readLiteral(b, pos, end, 6);
+                    add(f);
+                } else if ((first & 0xE0) == 0x20) {
+                    if (fieldsSeen) throw new CompressionException("Table size update after a field");
+                    int newSize = readInt(b, pos, end, 5);
+                    if (newSize > settingsMaxSize) throw new CompressionException("Table size update too large");
+                    maxSize = newSize;
+                    evict();
+                    continue;
+                } else {
+                    f = readLiteral(b, pos, end, 4);
+                }
+                fieldsSeen = true;
+                listSize += entrySize(f);
+                if (listSize <= maxListSize) fields.add(f);
+            }
+            if (listSize > maxListSize) throw new HeaderListTooLargeException(maxListSize);
+            return fields;
+        }
+
+        private String[] readLiteral(byte[] b, int[] pos, int end, int prefix) throws CompressionException {
+            int index = readInt(b, pos, end, prefix);
+            String name = (index == 0) ? readString(b, pos, end) : lookup(index)[0];
+            String value = readString(b, pos, end);
+            return new String[] { name, value };
+        }
+
+        private String[] lookup(int index) throws CompressionException {
+            if (index <= 0) throw new CompressionException("Index 0");
+            if (index < STATIC_TABLE.length) return STATIC_TABLE[index];
+            int d = index - STATIC_TABLE.length;
+            if (d >= dynamic.size()) throw new CompressionException("Index " + index + " out of range");
+            Iterator<String[]> it = dynamic.iterator();
+            String[] f = it.next();
+            for (int i = 0; i < d; i++) f = it.next();
+            return f;
+        }
+
+        private void add(String[] f) {
+            int s = entrySize(f);
+            if (s > maxSize) {
+                dynamic.clear();
+                size = 0;
+                return;
+            }
+            dynamic.addFirst(f);
+            size += s;
+            evict();
+        }
+
+        private void evict() {
+            while (size > maxSize && !dynamic.isEmpty()) {
+                size -= entrySize(dynamic.removeLast());
+            }
+        }
+
+        private static int entrySize(String[] f) {
+            return f[0].length() + f[1].length() + 32;
+        }
+    }
+
+    private static int readInt(byte[] b, int[] pos, int end, int prefix) throws CompressionException {
+        int mask = (1 << prefix) - 1;
+        int value = b[pos[0]++] & mask;
+        if (value < mask) return value;
+        int shift = 0;
+        while (true) {
+            if (pos[0] >= end) throw new CompressionException("Truncated integer");
+            int c = b[pos[0]++] & 0xFF;
+            if (shift > 21) throw new CompressionException("Integer overflow");
+            value += (c & 0x7F) << shift;
+            shift += 7;
+            if ((c & 0x80) == 0) return value;
+        }
+    }
+
+    private static String readString(byte[] b, int[] pos, int end) throws CompressionException {
+        if (pos[0] >= end) throw new CompressionException("Truncated string");
+        boolean huffman = (b[pos[0]] & 0x80) != 0;
+        int len = readInt(b, pos, end, 7);
+        if (len > end - pos[0]) throw new CompressionException("Truncated string");
+        int start = pos[0];
+        pos[0] += len;
+        return huffman ? huffmanDecode(b, start, len) : new String(b, start, len, StandardCharsets.ISO_8859_1);
+    }
+
+    static String huffmanDecode(byte[] b, int off, int len) throws CompressionException {
+        StringBuilder sb = new StringBuilder(len + len / 2);
+        int node = 0;
+        int bitsInSymbol = 0;
+        boolean allOnes = true;
+        for (int i = off; i < off + len; i++) {
+            int c = b[i] & 0xFF;
+            for (int k = 7; k >= 0; k--) {
+                int bit = (c >>> k) & 1;
+                int next = TREE[2 * node + bit];
+                bitsInSymbol++;
+                allOnes &= (bit == 1);
+                if (next == Integer.MIN_VALUE) throw new CompressionException("Invalid Huffman code");
+                if (next <= 0) {
+                    if (-next == EOS) throw new CompressionException("EOS in Huffman string");
+                    sb.append((char) -next);
+                    node = 0;
+                    bitsInSymbol = 0;
+                    allOnes = true;
+                } else {
+                    node = next;
+                }
+            }
+        }
+        // Whatever is left must be padding: fewer than 8 bits, all of them ones.
+        if (bitsInSymbol > 7 || !allOnes) throw new CompressionException("Invalid Huffman padding");
+        return sb.toString();
+    }
+
+    // Appends the header block for the given (lower-case) fields.
+    static void encode(List<String[]> fields, ByteArrayOutputStream out) {
+        for (String[] f : fields) {
+            Integer pair = STATIC_PAIRS.get(f[0] + '\0' + f[1]);
+            if (pair != null) {
+                writeInt(out, 0x80, 7, pair);
+                continue;
+            }
+            // Literal header field without indexing.
+            Integer name = STATIC_NAMES.get(f[0]);
+            if (name != null) {
+                writeInt(out, 0x00, 4, name);
+            } else {
+                out.write(0x00);
+                writeString(out, f[0]);
+            }
+            writeString(out, f[1]);
+        }
+    }
+
+    private static void writeInt(ByteArrayOutputStream out, int flags, int prefix, int value) {
+        int mask = (1 << prefix) - 1;
+        if (value < mask) {
+            out.write(flags | value);
+            return;
+        }
+        out.write(flags | mask);
+        value -= mask;
+        while (value >= 0x80) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static void writeString(ByteArrayOutputStream out, String s) {
+        byte[] raw = s.getBytes(StandardCharsets.ISO_8859_1);
+        long bits = 0;
+        for (byte c : raw) bits += HUFFMAN_LENGTHS[c & 0xFF];
+        int huffLen = (int) ((bits + 7) / 8);
+        if (huffLen >= raw.length) {
+            writeInt(out, 0x00, 7, raw.length);
+            out.write(raw, 0, raw.length);
+            return;
+        }
+        writeInt(out, 0x80, 7, huffLen);
+        long acc = 0;
+        int n = 0;
+        for (byte c : raw) {
+            int sym = c & 0xFF;
+            acc = (acc << HUFFMAN_LENGTHS[sym]) | HUFFMAN_CODES[sym];
+            n += HUFFMAN_LENGTHS[sym];
+            while (n >= 8) {
+                n -= 8;
+                out.write((int) (acc >>> n));
+            }
+        }
+        if (n > 0) {
+            out.write((int) ((acc << (8 - n)) | (0xFF >>> n)));
+        }
+    }
+}
@@ -0,0 +1,1002 @@
+package cis5550.webserver;
+
+import cis5550.tools.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// One HTTP/2 connection (RFC 9113), reached either through ALPN "h2" on the TLS port or
+// through the prior-knowledge preface on the plain port. The worker thread that owns the
+// socket reads frames; every request stream runs on its own thread, where it is turned into
+// an HTTP/1.1 request and answered by Worker.processRequest, so routes, static files and
+// error handling behave exactly as on HTTP/1.1. A stream starts as soon as its headers are in;
+// its body follows through a BodyPipe, and the receive windows are only topped up as the
+// handler reads it. The HTTP/1.1 response that comes back is translated into HEADERS and DATA
+// frames, subject to the peer's flow-control windows.
+final class Http2Connection {
+
+    private static final Logger logger = Logger.getLogger(Http2Connection.class);
+
+    static final byte[] PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    private static final int DATA = 0x0, HEADERS = 0x1, PRIORITY = 0x2, RST_STREAM = 0x3, SETTINGS = 0x4,
+            PUSH_PROMISE = 0x5, PING = 0x6, GOAWAY = 0x7, WINDOW_UPDATE = 0x8, CONTINUATION = 0x9;
+    private static final int END_STREAM = 0x1, ACK = 0x1, END_HEADERS = 0x4, PADDED = 0x8, PRIORITY_FLAG = 0x20;
+
+    private static final int NO_ERROR = 0x0, PROTOCOL_ERROR = 0x1, INTERNAL_ERROR = 0x2, FLOW_CONTROL_ERROR = 0x3,
+            STREAM_CLOSED = 0x5, FRAME_SIZE_ERROR = 0x6, REFUSED_STREAM = 0x7, CANCEL = 0x8,
+            COMPRESSION_ERROR = 0x9;
+
+    static final int MAX_CONCURRENT_STREAMS = 100;
+    private static final int MAX_FRAME_SIZE = 16384;             // what we accept (the protocol minimum)
+    private static final int HEADER_TABLE_SIZE = 4096;
+    private static final int MAX_HEADER_BLOCK = 64 * 1024;
+    private static final int STREAM_WINDOW = 1 << 20;            // advertised per-stream receive window
+    private static final int CONNECTION_WINDOW = 16 << 20;
+    private static final int DEFAULT_WINDOW = 65535;
+    private static final byte[] CRLF = { '\r', '\n' };
+    private static final byte[] LAST_CHUNK = { '0', '\r', '\n', '\r', '\n' };
+
+    // Request streams of all connections share one pool of at most Server.NUM_WORKERS threads,
+    // the size of the HTTP/1.1 worker pool; each connection admits at most
+    // MAX_CONCURRENT_STREAMS of them at a time. The pool has no queue: a stream that finds every
+    // thread busy is refused with REFUSED_STREAM, which tells the client it may retry it.
+    private static final AtomicInteger streamThreadId = new AtomicInteger();
+    private static final ExecutorService streamPool = new ThreadPoolExecutor(0, Server.NUM_WORKERS,
+            60, TimeUnit.SECONDS, new SynchronousQueue<>(), r -> {
+                Thread t = new Thread(r, "H2-Stream-" + streamThreadId.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            });
+
+    // A connection error: the connection ends with GOAWAY carrying this code.
+    private static final class ConnectionError extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        final int code;
+
+        ConnectionError(int code, String message) {
+            super(message);
+            this.code = code;
+        }
+    }
+
+    private final class Stream {
+        final int id;
+        List<String[]> headers;
+        BodyPipe body;                     // null if the request has no body
+        long declaredLength = -1;          // the client's content-length, if it sent one
+        long received = 0;                 // reader thread only
+        volatile boolean remoteClosed = false;
+        int recvWindow = STREAM_WINDOW;    // guarded by recvFlow
+        int unacked = 0;                   // read by the handler but not given back yet; recvFlow
+        long sendWindow;                   // guarded by flow
+        volatile boolean reset = false;
+
+        Stream(int id) {
+            this.id = id;
+            this.sendWindow = peerInitialWindow;
+        }
+    }
+
+    private final Worker worker;
+    private final Connection conn;
+    private final DataInputStream in;
+    private final OutputStream out;
+    private final Hpack.Decoder decoder = new Hpack.Decoder(HEADER_TABLE_SIZE);
+
+    private final Map<Integer, Stream> streams = new ConcurrentHashMap<>();
+    private int lastStreamId = 0;
+
+    // Outbound flow control, shared between the reader (window updates) and stream threads.
+    private final Object flow = new Object();
+    private long connectionSendWindow = DEFAULT_WINDOW;
+    private int peerInitialWindow = DEFAULT_WINDOW;
+    private volatile int peerMaxFrame = MAX_FRAME_SIZE;
+    private volatile boolean closed = false;
+
+    // Inbound flow control, shared between the reader (DATA) and the handlers reading bodies.
+    private final Object recvFlow = new Object();
+    private long connectionRecvWindow = CONNECTION_WINDOW;
+    private int connectionUnacked = 0;
+
+    // Frames are written whole under this lock.
+    private final Object writeLock = new Object();
+
+    Http2Connection(Worker worker, Connection conn) {
+        this.worker = worker;
+        this.conn = conn;
+        this.in = new DataInputStream(new BufferedInputStream(conn.in.detach(), 16 * 1024));
+        this.out = conn.out;
+    }
+
+    // Runs the connection until the client goes away, an error ends it, or it stays idle
+    // beyond the idle timeout. Only after GOAWAY or the idle timeout do running streams get
+    // to finish their responses. If the client preface has already been consumed (prior
+    // knowledge), prefaceRead is true; over ALPN the 24 bytes are still to come.
+    void serve(boolean prefaceRead) {
+        ServerStats.http2Connections.increment();
+        int errorCode = NO_ERROR;
+        boolean graceful = false;
+        try {
+            writeSettings();
+            writeFrame(WINDOW_UPDATE, 0, 0, int32(CONNECTION_WINDOW - DEFAULT_WINDOW));
+
+            if (!prefaceRead) {
+                byte[] p = new byte[PREFACE.length];
+                in.readFully(p);
+                if (!java.util.Arrays.equals(p, PREFACE)) {
+                    throw new ConnectionError(PROTOCOL_ERROR, "Bad connection preface");
+                }
+            }
+            readFrames();
+            graceful = true;
+        } catch (ConnectionError ce) {
+            logger.debug("HTTP/2 connection error: " + ce.getMessage());
+            errorCode = ce.code;
+        } catch (EOFException eof) {
+            // The client closed the connection.
+        } catch (IOException ioe) {
+            logger.debug("HTTP/2 connection IO error: " + ioe.getMessage());
+        }
+        try {
+            writeFrame(GOAWAY, 0, 0, goAway(lastStreamId, errorCode));
+        } catch (IOException ignored) {
+        }
+        shutdown(graceful);
+    }
+
+    private void readFrames() throws IOException {
+        byte[] head = new byte[9];
+        boolean first = true;
+        int idle = Server.idleTimeout();
+        if (conn.socket != null) conn.socket.setSoTimeout(Math.max(0, idle));
+        while (true) {
+            int b0;
+            try {
+                b0 = in.read();
+            } catch (SocketTimeoutException ste) {
+                if (streams.isEmpty()) {
+                    ServerStats.idleTimeouts.increment();
+                    return;
+                }
+                continue;
+            }
+            if (b0 < 0) {
+                throw new EOFException();
+            }
+            head[0] = (byte) b0;
+            in.readFully(head, 1, 8);
+            int length = ((head[0] & 0xFF) << 16) | ((head[1] & 0xFF) << 8) | (head[2] & 0xFF);
+            int type = head[3] & 0xFF;
+            int flags = head[4] & 0xFF;
+            int streamId = readInt31(head, 5);
+            if (length > MAX_FRAME_SIZE) {
+                throw new ConnectionError(FRAME_SIZE_ERROR, "Frame of " + length + " bytes");
+            }
+            byte[] payload = new byte[length];
+            in.readFully(payload);
+
+            if (first && type != SETTINGS) {
+                throw new ConnectionError(PROTOCOL_ERROR, "Preface not followed by SETTINGS");
+            }
+            first = false;
+
+            switch (type) {
+                case DATA -> onData(streamId, flags, payload);
+                case HEADERS -> onHeaders(streamId, flags, payload);
+                case PRIORITY -> {
+                    if (streamId == 0) throw new ConnectionError(PROTOCOL_ERROR, "PRIORITY on stream 0");
+                }
+                case RST_STREAM -> onReset(streamId, payload);
+                case SETTINGS -> onSettings(streamId, flags, payload);
+                case PUSH_PROMISE -> throw new ConnectionError(PROTOCOL_ERROR, "PUSH_PROMISE from client");
+                case PING -> {
+                    if (streamId != 0) throw new ConnectionError(PROTOCOL_ERROR, "PING on a stream");
+                    if (length != 8) throw new ConnectionError(FRAME_SIZE_ERROR, "PING of " + length + " bytes");
+                    if ((flags & ACK) == 0) writeFrame(PING, ACK, 0, payload);
+                }
+                case GOAWAY -> {
+                    return;
+                }
+                case WINDOW_UPDATE -> onWindowUpdate(streamId, payload);
+                case CONTINUATION -> throw new ConnectionError(PROTOCOL_ERROR, "Unexpected CONTINUATION");
+                default -> {
+                    // Unknown frame types are ignored.
+                }
+            }
+        }
+    }
+
+    private void onSettings(int streamId, int flags, byte[] p) throws IOException {
+        if (streamId != 0) throw new ConnectionError(PROTOCOL_ERROR, "SETTINGS on a stream");
+        if ((flags & ACK) != 0) {
+            if (p.length != 0) throw new ConnectionError(FRAME_SIZE_ERROR, "SETTINGS ACK with payload");
+            return;
+        }
+        if (p.length % 6 != 0) throw new ConnectionError(FRAME_SIZE_ERROR, "SETTINGS of " + p.length + " bytes");
+        for (int i = 0; i < p.length; i += 6) {
+            int id = ((p[i] & 0xFF) << 8) | (p[i + 1] & 0xFF);
+            long value = ((long) (p[i + 2] & 0xFF) << 24) | ((p[i + 3] & 0xFF) << 16) | ((p[i + 4] & 0xFF) << 8) | (p[i + 5] & 0xFF);
+            switch (id) {
+                case 0x2 -> {     // ENABLE_PUSH; we never push
+                    if (value > 1) throw new ConnectionError(PROTOCOL_ERROR, "ENABLE_PUSH " + value);
+                }
+                case 0x4 -> {     // INITIAL_WINDOW_SIZE applies to all open streams retroactively
+                    if (value > Integer.MAX_VALUE) throw new ConnectionError(FLOW_CONTROL_ERROR, "INITIAL_WINDOW_SIZE " + value);
+                    synchronized (flow) {
+                        long delta = value - peerInitialWindow;
+                        peerInitialWindow = (int) value;
+                        for (Stream s : streams.values()) {
+                            s.sendWindow += delta;
+                        }
+                        flow.notifyAll();
+                    }
+                }
+                case 0x5 -> {     // MAX_FRAME_SIZE
+                    if (value < MAX_FRAME_SIZE || value > 0xFFFFFF) throw new ConnectionError(PROTOCOL_ERROR, "MAX_FRAME_SIZE " + value);
+                    peerMaxFrame = (int) value;
+                }
+                default -> {
+                    // HEADER_TABLE_SIZE does not matter to an encoder that never indexes;
+                    // the rest are advisory.
+                }
+            }
+        }
+        writeFrame(SETTINGS, ACK, 0, new byte[0]);
+    }
+
+    private void onWindowUpdate(int streamId, byte[] p) throws IOException {
+        if (p.length != 4) throw new ConnectionError(FRAME_SIZE_ERROR, "WINDOW_UPDATE of " + p.length + " bytes");
+        int increment = readInt31(p, 0);
+        if (streamId == 0) {
+            if (increment == 0) throw new ConnectionError(PROTOCOL_ERROR, "Zero window increment");
+            synchronized (flow) {
+                connectionSendWindow += increment;
+                if (connectionSendWindow > Integer.MAX_VALUE) throw new ConnectionError(FLOW_CONTROL_ERROR, "Connection window overflow");
+                flow.notifyAll();
+            }
+            return;
+        }
+        Stream s = streams.get(streamId);
+        if (s == null) return;
+        if (increment == 0) {
+            resetStream(s, PROTOCOL_ERROR);
+            return;
+        }
+        synchronized (flow) {
+            s.sendWindow += increment;
+            if (s.sendWindow > Integer.MAX_VALUE) {
+                resetStream(s, FLOW_CONTROL_ERROR);
+            }
+            flow.notifyAll();
+        }
+    }
+
+    private void onReset(int streamId, byte[] p) throws IOException {
+        if (streamId == 0) throw new ConnectionError(PROTOCOL_ERROR, "RST_STREAM on stream 0");
+        if (p.length != 4) throw new ConnectionError(FRAME_SIZE_ERROR, "RST_STREAM of " + p.length + " bytes");
+        if (streamId > lastStreamId) throw new ConnectionError(PROTOCOL_ERROR, "RST_STREAM on idle stream");
+        Stream s = streams.get(streamId);
+        if (s != null) {
+            s.reset = true;
+            synchronized (flow) {
+                flow.notifyAll();
+            }
+        }
+    }
+
+    private void onHeaders(int streamId, int flags, byte[] p) throws IOException {
+        if (streamId == 0 || (streamId & 1) == 0) throw new ConnectionError(PROTOCOL_ERROR, "HEADERS on stream " + streamId);
+        int off = 0;
+        int len = p.length;
+        if ((flags & PADDED) != 0) {
+            if (len < 1) throw new ConnectionError(FRAME_SIZE_ERROR, "Short HEADERS");
+            int pad = p[0] & 0xFF;
+            off = 1;
+            len -= 1 + pad;
+        }
+        if ((flags & PRIORITY_FLAG) != 0) {
+            off += 5;
+            len -= 5;
+        }
+        if (len < 0) throw new ConnectionError(PROTOCOL_ERROR, "HEADERS padding exceeds payload");
+
+        // The header block may continue in CONTINUATION frames, with nothing in between.
+        ByteArrayOutputStream block = new ByteArrayOutputStream(len);
+        block.write(p, off, len);
+        int blockFlags = flags;
+        while ((blockFlags & END_HEADERS) == 0) {
+            byte[] head = new byte[9];
+            in.readFully(head);
+            int length = ((head[0] & 0xFF) << 16) | ((head[1] & 0xFF) << 8) | (head[2] & 0xFF);
+            if ((head[3] & 0xFF) != CONTINUATION || readInt31(head, 5) != streamId) {
+                throw new ConnectionError(PROTOCOL_ERROR, "Header block interrupted");
+            }
+            if (length > MAX_FRAME_SIZE || block.size() + length > MAX_HEADER_BLOCK) {
+                throw new ConnectionError(FRAME_SIZE_ERROR, "Header block too large");
+            }
+            byte[] more = new byte[length];
+            in.readFully(more);
+            block.write(more, 0, length);
+            blockFlags = head[4] & 0xFF;
+        }
+
+        // Decode even if the stream is refused below, to keep the HPACK state in step.
+        byte[] b = block.toByteArray();
+        List<String[]> fields;
+        boolean tooLarge = false;
+        try {
+            fields = decoder.decode(b, 0, b.length, Server.maxHeadSize());
+        } catch (Hpack.HeaderListTooLargeException tle) {
+            fields = List.of();
+            tooLarge = true;
+        } catch (Hpack.CompressionException ce) {
+            throw new ConnectionError(COMPRESSION_ERROR, ce.getMessage());
+        }
+
+        Stream existing = streams.get(streamId);
+        if (streamId <= lastStreamId) {
+            // Trailers: accepted (and dropped) on a stream whose body is still arriving.
+            if (existing == null || existing.remoteClosed) {
+                throw new ConnectionError(STREAM_CLOSED, "HEADERS on closed stream " + streamId);
+            }
+            if ((flags & END_STREAM) == 0) throw new ConnectionError(PROTOCOL_ERROR, "Trailers without END_STREAM");
+            endOfBody(existing);
+            return;
+        }
+
+        lastStreamId = streamId;
+        if (tooLarge) {
+            // Answered like an oversized HTTP/1.1 head; DATA that follows hits a closed stream.
+            ServerStats.headTooLarge.increment();
+            writeHeaders(streamId, statusOnly(431), true);
+            return;
+        }
+        Stream s = new Stream(streamId);
+        s.headers = fields;
+        if (streams.size() >= MAX_CONCURRENT_STREAMS) {
+            writeFrame(RST_STREAM, 0, streamId, int32(REFUSED_STREAM));
+            return;
+        }
+        if ((flags & END_STREAM) != 0) {
+            s.remoteClosed = true;
+        } else {
+            s.declaredLength = contentLength(fields);
+            if (s.declaredLength < -1) {
+                writeFrame(RST_STREAM, 0, streamId, int32(PROTOCOL_ERROR));
+                return;
+            }
+            s.body = new BodyPipe(n -> consumed(s, n));
+        }
+        streams.put(streamId, s);
+        try {
+            streamPool.execute(() -> runStream(s));
+        } catch (RejectedExecutionException ree) {
+            streams.remove(streamId);
+            ServerStats.http2RefusedStreams.increment();
+            writeFrame(RST_STREAM, 0, streamId, int32(REFUSED_STREAM));
+            return;
+        }
+        ServerStats.http2Streams.increment();
+    }
+
+    // The content-length field of a request, -1 if there is none, or -2 if it is malformed.
+    private static long contentLength(List<String[]> fields) {
+        for (String[] f : fields) {
+            if (f[0].equals("content-length")) {
+                try {
+                    long n = Long.parseLong(f[1].trim());
+                    return (n >= 0) ? n : -2;
+                } catch (NumberFormatException nfe) {
+                    return -2;
+                }
+            }
+        }
+        return -1;
+    }
+
+    private void onData(int streamId, int flags, byte[] p) throws IOException {
+        if (streamId == 0) throw new ConnectionError(PROTOCOL_ERROR, "DATA on stream 0");
+        int off = 0;
+        int len = p.length;
+        if ((flags & PADDED) != 0) {
+            if (len < 1) throw new ConnectionError(FRAME_SIZE_ERROR, "Short DATA");
+            int pad = p[0] & 0xFF;
+            off = 1;
+            len -= 1 + pad;
+            if (len < 0) throw new ConnectionError(PROTOCOL_ERROR, "DATA padding exceeds payload");
+        }
+
+        // The whole frame counts against both receive windows (RFC 9113, section 6.9), and a client
+        // that sends more than they allow is a connection error.
+        Stream s = streams.get(streamId);
+        boolean open = s != null && !s.remoteClosed;
+        synchronized (recvFlow) {
+            if (p.length > connectionRecvWindow) throw new ConnectionError(FLOW_CONTROL_ERROR, "DATA beyond the connection window");
+            if (open && p.length > s.recvWindow) throw new ConnectionError(FLOW_CONTROL_ERROR, "DATA beyond the stream window");
+            connectionRecvWindow -= p.length;
+            if (open) s.recvWindow -= p.length;
+        }
+        if (!open) {
+            if (streamId > lastStreamId) throw new ConnectionError(PROTOCOL_ERROR, "DATA on idle stream");
+            consumed(null, p.length);
+            writeFrame(RST_STREAM, 0, streamId, int32(STREAM_CLOSED));
+            return;
+        }
+
+        // Padding never reaches the handler, so it is given back right away.
+        if (p.length > len) consumed(s, p.length - len);
+        s.received += len;
+        if (s.declaredLength >= 0 && s.received > s.declaredLength) {
+            malformedBody(s);
+            consumed(null, len);
+            return;
+        }
+        if (len > 0) {
+            boolean taken;
+            if (s.declaredLength < 0) {
+                // Without a content-length, the HTTP/1.1 request carries the body chunked.
+                byte[] size = (Integer.toHexString(len) + "\r\n").getBytes(StandardCharsets.US_ASCII);
+                taken = s.body.offer(size, 0, size.length, 0) && s.body.offer(p, off, len, len)
+                        && s.body.offer(CRLF, 0, CRLF.length, 0);
+            } else {
+                taken = s.body.offer(p, off, len, len);
+            }
+            if (!taken) consumed(null, len);   // the handler is done with the body
+        }
+        if ((flags & END_STREAM) != 0) {
+            endOfBody(s);
+        }
+    }
+
+    // END_STREAM from the client: the body is complete.
+    private void endOfBody(Stream s) {
+        if (s.body != null && s.declaredLength >= 0 && s.received != s.declaredLength) {
+            malformedBody(s);
+            return;
+        }
+        s.remoteClosed = true;
+        if (s.body != null) {
+            if (s.declaredLength < 0) s.body.offer(LAST_CHUNK, 0, LAST_CHUNK.length, 0);
+            s.body.finish();
+        }
+    }
+
+    // The body does not match the content-length (RFC 9113, section 8.1.1): the stream is reset and
+    // the handler's next read fails.
+    private void malformedBody(Stream s) {
+        s.remoteClosed = true;
+        resetStream(s, PROTOCOL_ERROR);
+        s.body.fail();
+    }
+
+    // Gives n received bytes back to the client's send windows. Updates are batched: a
+    // window is topped up once a quarter of it has been used up.
+    private void consumed(Stream s, int n) {
+        int connectionIncrement = 0, streamIncrement = 0;
+        synchronized (recvFlow) {
+            connectionUnacked += n;
+            if (connectionUnacked >= CONNECTION_WINDOW / 4) {
+                connectionIncrement = connectionUnacked;
+                connectionRecvWindow += connectionUnacked;
+                connectionUnacked = 0;
+            }
+            if (s != null && !s.remoteClosed) {
+                s.unacked += n;
+                if (s.unacked >= STREAM_WINDOW / 4) {
+                    streamIncrement = s.unacked;
+                    s.recvWindow += s.unacked;
+                    s.unacked = 0;
+                }
+            }
+        }
+        try {
+            if (connectionIncrement > 0) writeFrame(WINDOW_UPDATE, 0, 0, int32(connectionIncrement));
+            if (streamIncrement > 0) writeFrame(WINDOW_UPDATE, 0, s.id, int32(streamIncrement));
+        } catch (IOException ignored) {
+            // The reader finds out that the connection is gone.
+        }
+    }
+
+    // Replays the request as HTTP/1.1 through the worker and frames its response.
+    private void runStream(Stream s) {
+        ResponseFramer framer = null;
+        boolean handedOff = false;
+        try {
+            String method = null, path = null, authority = null;
+            boolean hasHost = false;
+            StringBuilder cookies = null;
+            StringBuilder fields = new StringBuilder();
+            boolean pseudoDone = false;
+            for (String[] f : s.headers) {
+                String name = f[0];
+                String value = f[1];
+                if (!validField(name, value)) {
+                    resetStream(s, PROTOCOL_ERROR);
+                    return;
+                }
+                if (name.startsWith(":")) {
+                    if (pseudoDone) {
+                        resetStream(s, PROTOCOL_ERROR);
+                        return;
+                    }
+                    switch (name) {
+                        case ":method" -> method = value;
+                        case ":path" -> path = value;
+                        case ":authority" -> authority = value;
+                        case ":scheme" -> { }
+                        default -> {
+                            resetStream(s, PROTOCOL_ERROR);
+                            return;
+                        }
+                    }
+                    continue;
+                }
+                pseudoDone = true;
+                switch (name) {
+                    case "connection", "keep-alive", "proxy-connection", "transfer-encoding", "upgrade" -> {
+                        resetStream(s, PROTOCOL_ERROR);
+                        return;
+                    }
+                    case "content-length", "expect", "te" -> {
+                        continue;
+                    }
+                    case "cookie" -> {
+                        cookies = (cookies == null) ? new StringBuilder(value) : cookies.append("; ").append(value);
+                        continue;
+                    }
+                    case "host" -> hasHost = true;
+                    default -> { }
+                }
+                fields.append(name).append(": ").append(value).append("\r\n");
+            }
+            if (method == null || path == null || path.isEmpty()) {
+                resetStream(s, PROTOCOL_ERROR);
+                return;
+            }
+
+            StringBuilder h1 = new StringBuilder(256 + fields.length());
+            h1.append(method).append(' ').append(path).append(" HTTP/1.1\r\n");
+            if (!hasHost) {
+                h1.append("host: ").append(authority != null ? authority : "").append("\r\n");
+            }
+            h1.append(fields);
+            if (cookies != null) {
+                h1.append("cookie: ").append(cookies).append("\r\n");
+            }
+            if (s.body == null) {
+                if (!"GET".equals(method) && !"HEAD".equals(method)) h1.append("content-length: 0\r\n");
+            } else if (s.declaredLength >= 0) {
+                h1.append("content-length: ").append(s.declaredLength).append("\r\n");
+            } else {
+                h1.append("transfer-encoding: chunked\r\n");
+            }
+            h1.append("\r\n");
+            byte[] headBytes = h1.toString().getBytes(StandardCharsets.ISO_8859_1);
+            HttpInput request = (s.body == null) ? new HttpInput(headBytes)
+                    : new HttpInput(new SequenceInputStream(new ByteArrayInputStream(headBytes), s.body), 16 * 1024);
+
+            framer = new ResponseFramer(s, "HEAD".equals(method));
+            BufferedOutputStream streamOut = new BufferedOutputStream(framer, 16 * 1024);
+            Connection streamConn = new Connection(null, conn.remoteAddr, conn.secure, request, streamOut);
+            worker.processRequest(streamConn);
+            Worker.PendingRoute pending = streamConn.takePending();
+            if (pending != null) {
+                // The route answers asynchronously; the stream stays open without a thread.
+                ResponseFramer f = framer;
+                pending.whenDone(() -> {
+                    try {
+                        streamPool.execute(() -> finishStream(s, f, streamOut, pending));
+                    } catch (RejectedExecutionException ree) {
+                        // every stream thread is busy; the thread that completed the future sends it
+                        finishStream(s, f, streamOut, pending);
+                    }
+                });
+                handedOff = true;
+                return;
+            }
+            streamOut.flush();
+            framer.finish();
+        } catch (Throwable t) {
+            streamFailed(s, framer, t);
+        } finally {
+            if (!handedOff) streamDone(s);
+        }
+    }
+
+    private void finishStream(Stream s, ResponseFramer framer, BufferedOutputStream streamOut, Worker.PendingRoute pending) {
+        try {
+            pending.finish();
+            streamOut.flush();
+            framer.finish();
+        } catch (Throwable t) {
+            streamFailed(s, framer, t);
+        } finally {
+            streamDone(s);
+        }
+    }
+
+    private void streamFailed(Stream s, ResponseFramer framer, Throwable t) {
+        if (t instanceof IOException) {
+            logger.debug("HTTP/2 stream " + s.id + " failed: " + t.getMessage());
+            resetStream(s, (framer != null && framer.headersSent) ? CANCEL : INTERNAL_ERROR);
+        } else {
+            logger.error("HTTP/2 stream " + s.id + " failed: " + t.getMessage(), t);
+            resetStream(s, INTERNAL_ERROR);
+        }
+    }
+
+    // Whatever the handler left of the body is given back to the connection window. A client
+    // still sending is told to stop; the response is complete without the rest.
+    private void streamDone(Stream s) {
+        streams.remove(s.id);
+        if (s.body != null) {
+            consumed(null, s.body.discard());
+            if (!s.remoteClosed) resetStream(s, NO_ERROR);
+        }
+        synchronized (flow) {
+            flow.notifyAll();
+        }
+    }
+
+    // Field names must be lower case, and nothing may smuggle line breaks into the
+    // HTTP/1.1 request built from them.
+    private static boolean validField(String name, String value) {
+        if (name.isEmpty()) return false;
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (c <= ' ' || c >= 0x7F || (c >= 'A' && c <= 'Z') || (c == ':' && i > 0)) return false;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\r' || c == '\n' || c == 0) return false;
+        }
+        return true;
+    }
+
+    private void resetStream(Stream s, int code) {
+        if (s.reset) return;
+        s.reset = true;
+        try {
+            writeFrame(RST_STREAM, 0, s.id, int32(code));
+        } catch (IOException ignored) {
+        }
+    }
+
+    // Parses the HTTP/1.1 response the worker writes for one stream and sends it as HEADERS
+    // and DATA frames: connection-level headers are dropped and the body is unframed
+    // (Content-Length, chunked or until the end) before it goes out.
+    private final class ResponseFramer extends OutputStream {
+        private final Stream stream;
+        private final boolean headRequest;
+        private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+        private final List<String[]> responseHeaders = new ArrayList<>();
+        private String status = null;
+        boolean headersSent = false;
+        private boolean ended = false;
+
+        private static final int NONE = 0, LENGTH = 1, CHUNKED = 2, UNTIL_END = 3;
+        private int bodyMode;
+        private long remaining;          // LENGTH: bytes left; CHUNKED: bytes left in the chunk
+        private int chunkState = 0;      // 0 size line, 1 data, 2 CRLF after data, 3 trailers, 4 done
+
+        ResponseFramer(Stream stream, boolean headRequest) {
+            this.stream = stream;
+            this.headRequest = headRequest;
+        }
+
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (stream.reset) throw new IOException("Stream reset by peer");
+            int end = off + len;
+            while (off < end) {
+                if (!headersSent) {
+                    off = readHeadLine(b, off, end);
+                    continue;
+                }
+                switch (bodyMode) {
+                    case LENGTH -> {
+                        int n = (int) Math.min(remaining, end - off);
+                        remaining -= n;
+                        if (!ended) sendData(b, off, n, remaining == 0);
+                        off = end;
+                    }
+                    case UNTIL_END -> {
+                        sendData(b, off, end - off, false);
+                        off = end;
+                    }
+                    case CHUNKED -> off = unchunk(b, off, end);
+                    default -> off = end;
+                }
+            }
+        }
+
+        private int readHeadLine(byte[] b, int off, int end) throws IOException {
+            while (off < end) {
+                byte c = b[off++];
+                if (c != '\n') {
+                    line.write(c);
+                    continue;
+                }
+                String l = line.toString(StandardCharsets.ISO_8859_1);
+                line.reset();
+                if (l.endsWith("\r")) l = l.substring(0, l.length() - 1);
+                if (status == null) {
+                    status = (l.length() >= 12) ? l.substring(9, 12) : "500";
+                } else if (!l.isEmpty()) {
+                    int colon = l.indexOf(':');
+                    if (colon > 0) {
+                        responseHeaders.add(new String[] { l.substring(0, colon).trim().toLowerCase(Locale.ROOT), l.substring(colon + 1).trim() });
+                    }
+                } else if (status.charAt(0) == '1') {
+                    // Interim response; wait for the final one.
+                    status = null;
+                    responseHeaders.clear();
+                } else {
+                    sendHead();
+                    return off;
+                }
+            }
+            return off;
+        }
+
+        private void sendHead() throws IOException {
+            List<String[]> fields = new ArrayList<>(responseHeaders.size() + 1);
+            fields.add(new String[] { ":status", status });
+            boolean chunked = false;
+            long length = -1;
+            for (String[] h : responseHeaders) {
+                switch (h[0]) {
+                    case "connection", "keep-alive", "proxy-connection", "upgrade" -> {
+                        continue;
+                    }
+                    case "transfer-encoding" -> {
+                        chunked = RequestHead.isChunked(h[1]);
+                        continue;
+                    }
+                    case "content-length" -> {
+                        try {
+                            length = Long.parseLong(h[1]);
+                        } catch (NumberFormatException nfe) {
+                            length = -1;
+                        }
+                    }
+                    default -> { }
+                }
+                fields.add(h);
+            }
+            if (headRequest || status.equals("204") || status.equals("304")) {
+                bodyMode = NONE;
+            } else if (chunked) {
+                bodyMode = CHUNKED;
+            } else if (length >= 0) {
+                bodyMode = (length == 0) ? NONE : LENGTH;
+                remaining = length;
+            } else {
+                bodyMode = UNTIL_END;
+            }
+
+            ByteArrayOutputStream block = new ByteArrayOutputStream(256);
+            Hpack.encode(fields, block);
+            headersSent = true;
+            ended = (bodyMode == NONE);
+            writeHeaders(stream.id, block.toByteArray(), ended);
+        }
+
+        private int unchunk(byte[] b, int off, int end) throws IOException {
+            while (off < end && chunkState != 4) {
+                if (chunkState == 1) {
+                    int n = (int) Math.min(remaining, end - off);
+                    sendData(b, off, n, false);
+                    remaining -= n;
+                    off += n;
+                    if (remaining == 0) chunkState = 2;
+                    continue;
+                }
+                byte c = b[off++];
+                if (c != '\n') {
+                    if (line.size() < 1024) line.write(c);
+                    continue;
+                }
+                String l = line.toString(StandardCharsets.ISO_8859_1).trim();
+                line.reset();
+                if (chunkState == 0) {
+                    int semi = l.indexOf(';');
+                    try {
+                        remaining = Long.parseLong(semi >= 0 ? l.substring(0, semi).trim() : l, 16);
+                    } catch (NumberFormatException nfe) {
+                        throw new IOException("Bad chunk size from handler: " + l);
+                    }
+                    chunkState = (remaining == 0) ? 3 : 1;
+                } else if (chunkState == 2) {
+                    chunkState = 0;
+                } else if (l.isEmpty()) {
+                    chunkState = 4;
+                }
+            }
+            return end;
+        }
+
+        // With last set, the final frame carries END_STREAM.
+        private void sendData(byte[] b, int off, int len, boolean last) throws IOException {
+            while (len > 0) {
+                int n = reserve(stream, len);
+                len -= n;
+                boolean end = last && len == 0;
+                writeFrame(DATA, end ? END_STREAM : 0, stream.id, b, off, n);
+                off += n;
+                ended |= end;
+            }
+        }
+
+        // Ends the stream; a response that never got its head is answered with a reset.
+        void finish() throws IOException {
+            if (!headersSent) {
+                resetStream(stream, INTERNAL_ERROR);
+                return;
+            }
+            if (!ended) {
+                ended = true;
+                writeFrame(DATA, END_STREAM, stream.id, new byte[0]);
+            }
+        }
+    }
+
+    // Waits until the stream and the connection both have send window, then takes up to
+    // len bytes (and at most one frame) of it.
+    private int reserve(Stream s, int len) throws IOException {
+        long deadline = (Server.writeTimeout() > 0) ? System.currentTimeMillis() + Server.writeTimeout() : Long.MAX_VALUE;
+        synchronized (flow) {
+            while (true) {
+                if (s.reset || closed) throw new IOException("Stream closed");
+                long window = Math.min(s.sendWindow, connectionSendWindow);
+                if (window > 0) {
+                    int n = (int) Math.min(Math.min(window, len), peerMaxFrame);
+                    s.sendWindow -= n;
+                    connectionSendWindow -= n;
+                    return n;
+                }
+                long left = deadline - System.currentTimeMillis();
+                if (left <= 0) {
+                    ServerStats.writeTimeouts.increment();
+                    throw new IOException("Flow-control window stayed closed");
+                }
+                try {
+                    flow.wait(Math.min(left, 1000));
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted");
+                }
+            }
+        }
+    }
+
+    private void writeSettings() throws IOException {
+        ByteArrayOutputStream p = new ByteArrayOutputStream(24);
+        setting(p, 0x3, MAX_CONCURRENT_STREAMS);
+        setting(p, 0x4, STREAM_WINDOW);
+        setting(p, 0x6, Server.maxHeadSize());
+        writeFrame(SETTINGS, 0, 0, p.toByteArray());
+    }
+
+    // Header block of a response that carries nothing but its status.
+    private static byte[] statusOnly(int status) {
+        ByteArrayOutputStream block = new ByteArrayOutputStream(32);
+        Hpack.encode(List.of(new String[] { ":status", String.valueOf(status) }, new String[] { "content-length", "0" }), block);
+        return block.toByteArray();
+    }
+
+    private static void setting(ByteArrayOutputStream p, int id, int value) {
+        p.write(id >>> 8);
+        p.write(id);
+        p.write(int32(value), 0, 4);
+    }
+
+    private void writeFrame(int type, int flags, int streamId, byte[] payload) throws IOException {
+        writeFrame(type, flags, streamId, payload, 0, payload.length);
+    }
+
+    private void writeFrame(int type, int flags, int streamId, byte[] payload, int off, int len) throws IOException {
+        synchronized (writeLock) {
+            writeFrameHead(len, type, flags, streamId);
+            out.write(payload, off, len);
+            out.flush();
+        }
+    }
+
+    // A header block larger than one frame continues in CONTINUATION frames, written
+    // back to back so that nothing can come between them.
+    private void writeHeaders(int streamId, byte[] block, boolean endStream) throws IOException {
+        int max = peerMaxFrame;
+        synchronized (writeLock) {
+            int off = 0;
+            boolean first = true;
+            do {
+                int n = Math.min(max, block.length - off);
+                boolean last = (off + n == block.length);
+                int flags = (last ? END_HEADERS : 0) | (first && endStream ? END_STREAM : 0);
+                writeFrameHead(n, first ? HEADERS : CONTINUATION, flags, streamId);
+                out.write(block, off, n);
+                off += n;
+                first = false;
+            } while (off < block.length);
+            out.flush();
+        }
+    }
+
+    private void writeFrameHead(int len, int type, int flags, int streamId) throws IOException {
+        out.write(len >>> 16);
+        out.write(len >>> 8);
+        out.write(len);
+        out.write(type);
+        out.write(flags);
+        out.write(int32(streamId), 0, 4);
+    }
+
+    // Stops the streams still running and waits for them to finish before the caller closes
+    // the socket. After a clean end the streams may finish their responses first.
+    private void shutdown(boolean graceful) {
+        synchronized (flow) {
+            if (!graceful) {
+                closed = true;
+                for (Stream s : streams.values()) {
+                    s.reset = true;
+                    if (s.body != null) s.body.fail();
+                }
+            }
+            flow.notifyAll();
+            long deadline = System.currentTimeMillis() + Math.max(1000, Server.writeTimeout());
+            while (!streams.isEmpty() && System.currentTimeMillis() < deadline) {
+                try {
+                    flow.wait(250);
+                } catch (InterruptedException ie) {
+                    break;
+                }
+            }
+            closed = true;
+            for (Stream s : streams.values()) {
+                if (s.body != null) s.body.fail();
+            }
+            flow.notifyAll();
+        }
+    }
+
+    private static byte[] goAway(int lastStreamId, int code) {
+        byte[] p = new byte[8];
+        System.arraycopy(int32(lastStreamId), 0, p, 0, 4);
+        System.arraycopy(int32(code), 0, p, 4, 4);
+        return p;
+    }
+
+    private static byte[] int32(int v) {
+        return new byte[] { (byte) (v >>> 24), (byte) (v >>> 16), (byte) (v >>> 8), (byte) v };
+    }
+
+    private static int readInt31(byte[] b, int off) {
+        return ((b[off] & 0x7F) << 24) | ((b[off + 1] & 0xFF) << 16) | ((b[off + 2] & 0xFF) << 8) | (b[off + 3] & 0xFF);
+    }
+}
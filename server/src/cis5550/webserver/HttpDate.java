@@ -0,0 +1,54 @@
+package cis5550.webserver;
+
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Locale;
+
+// IMF-fixdate formatting/parsing for Date, Last-Modified and If-Modified-Since. The current
+// date string is rebuilt at most once per second and shared by all threads.
+final class HttpDate {
+
+    private static final DateTimeFormatter FORMAT =
+            DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US).withZone(ZoneOffset.UTC);
+
+    private static final class Cached {
+        final long second;
+        final String value;
+
+        Cached(long second, String value) {
+            this.second = second;
+            this.value = value;
+        }
+    }
+
+    private static volatile Cached current = new Cached(-1, "");
+
+    private HttpDate() {
+    }
+
+    static String now() {
+        long second = System.currentTimeMillis() / 1000;
+        Cached c = current;
+        if (c.second != second) {
+            c = new Cached(second, FORMAT.format(Instant.ofEpochSecond(second)));
+            current = c;
+        }
+        return c.value;
+    }
+
+    static String format(long millis) {
+        return FORMAT.format(Instant.ofEpochMilli(millis));
+    }
+
+    // Returns the time in milliseconds, or -1 if the value is not a valid HTTP date.
+    static long parse(String value) {
+        try {
+            return ZonedDateTime.parse(value.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+        } catch (DateTimeParseException e) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,197 @@
+package cis5550.webserver;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+
+// Per-connection input buffer. Request heads are located by scanning the buffer in bulk and
+// handed to RequestHead for parsing; whatever follows the head (a body, the next pipelined
+// request) stays in the buffer and is returned by the InputStream methods.
+final class HttpInput extends InputStream {
+
+    private final InputStream src;   // null if all data was supplied up front
+    private final Socket socket;     // for read timeouts; null if there is none to adjust
+    private byte[] buf;
+    private int pos = 0;
+    private int lim = 0;
+    private int soTimeout = -1;
+
+    HttpInput(InputStream src, int bufferSize) {
+        this(null, src, bufferSize);
+    }
+
+    // Reads from the socket with the timeouts configured on Server: the idle timeout while
+    // waiting for a request, the header timeout (an overall deadline) while its head arrives,
+    // and the body timeout for each read after that.
+    HttpInput(Socket socket, InputStream src, int bufferSize) {
+        this.socket = socket;
+        this.src = src;
+        this.buf = new byte[bufferSize];
+    }
+
+    HttpInput(byte[] data) {
+        this.socket = null;
+        this.src = null;
+        this.buf = data;
+        this.lim = data.length;
+    }
+
+    // Reads the next request head. Returns null if the stream ends (or the connection stays
+    // idle too long) before a complete head, in particular on a clean close between requests.
+    // Returns a head with error 431 if the head grows beyond maxBytes, or 408 if it does not
+    // arrive within the header timeout.
+    RequestHead readHead(int maxBytes) throws IOException {
+        int searched = 0;
+        long deadline = -1;   // for the header timeout, once the first byte is in
+        while (true) {
+            // Tolerate stray CRLFs between requests.
+            while (pos < lim && (buf[pos] == '\r' || buf[pos] == '\n')) {
+                pos++;
+                searched = 0;
+            }
+            if (deadline < 0 && pos < lim) {
+                int t = Server.headerTimeout();
+                deadline = (t > 0) ? System.currentTimeMillis() + t : Long.MAX_VALUE;
+            }
+
+            int end = RequestHead.findHeadEnd(buf, pos + Math.max(0, searched - 3), lim);
+            if (end >= 0) {
+                if (end - pos > maxBytes) {
+                    ServerStats.headTooLarge.increment();
+                    return RequestHead.error(431);
+                }
+                RequestHead head = RequestHead.parse(buf, pos, end - pos);
+                pos = end;
+                setTimeout(Server.bodyTimeout());
+                return head;
+            }
+            searched = lim - pos;
+            if (searched >= maxBytes) {
+                ServerStats.headTooLarge.increment();
+                return RequestHead.error(431);
+            }
+            try {
+                if (deadline < 0) {
+                    setTimeout(Server.idleTimeout());
+                } else {
+                    long left = deadline - System.currentTimeMillis();
+                    if (left <= 0) {
+                        ServerStats.headerTimeouts.increment();
+                        return RequestHead.error(408);
+                    }
+                    setTimeout(Math.min(left, Integer.MAX_VALUE));
+                }
+                if (!fill(maxBytes)) {
+                    return null;
+                }
+            } catch (SocketTimeoutException ste) {
+                if (deadline < 0) {
+                    ServerStats.idleTimeouts.increment();
+                    return null;
+                }
+                ServerStats.headerTimeouts.increment();
+                return RequestHead.error(408);
+            }
+        }
+    }
+
+    private void setTimeout(long ms) throws IOException {
+        int t = (int) Math.max(0, ms);
+        if (socket != null && t != soTimeout) {
+            socket.setSoTimeout(t);
+            soTimeout = t;
+        }
+    }
+
+    // Reads body bytes from the source; a timeout here means the client stalled mid-body.
+    private int readSource(byte[] b, int off, int len) throws IOException {
+        try {
+            return src.read(b, off, len);
+        } catch (SocketTimeoutException ste) {
+            ServerStats.bodyTimeouts.increment();
+            throw ste;
+        }
+    }
+
+    // Compacts the buffer, grows it if it is full, and reads more bytes from the source.
+    private boolean fill(int maxBytes) throws IOException {
+        if (src == null) return false;
+        if (pos > 0) {
+            System.arraycopy(buf, pos, buf, 0, lim - pos);
+            lim -= pos;
+            pos = 0;
+        }
+        if (lim == buf.length) {
+            byte[] bigger = new byte[Math.min(buf.length * 2, maxBytes + 4)];
+            if (bigger.length <= buf.length) return false;
+            System.arraycopy(buf, 0, bigger, 0, lim);
+            buf = bigger;
+        }
+        int n = src.read(buf, lim, buf.length - lim);
+        if (n <= 0) return false;
+        lim += n;
+        return true;
+    }
+
+    // Whether a complete request head has already been read from the socket.
+    boolean hasBufferedHead() {
+        int p = pos;
+        while (p < lim && (buf[p] == '\r' || buf[p] == '\n')) p++;
+        return RequestHead.findHeadEnd(buf, p, lim) >= 0;
+    }
+
+    // Number of bytes already read from the socket but not consumed yet.
+    int buffered() {
+        return lim - pos;
+    }
+
+    // Takes the bytes read from the source but not consumed yet, e.g. a pipelined request
+    // that follows a streamed one.
+    byte[] takeBuffered() {
+        byte[] rest = java.util.Arrays.copyOfRange(buf, pos, lim);
+        pos = lim;
+        return rest;
+    }
+
+    // Hands the rest of the connection to another protocol (HTTP/2): the bytes still buffered,
+    // then the raw source, without the timeout handling above.
+    InputStream detach() {
+        ByteArrayInputStream rest = new ByteArrayInputStream(java.util.Arrays.copyOfRange(buf, pos, lim));
+        pos = lim;
+        return (src == null) ? rest : new SequenceInputStream(rest, src);
+    }
+
+    public int read() throws IOException {
+        if (pos == lim) {
+            pos = lim = 0;
+            if (src == null) return -1;
+            int n = readSource(buf, 0, buf.length);
+            if (n <= 0) return -1;
+            lim = n;
+        }
+        return buf[pos++] & 0xFF;
+    }
+
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) return 0;
+        if (pos < lim) {
+            int n = Math.min(len, lim - pos);
+            System.arraycopy(buf, pos, b, off, n);
+            pos += n;
+            return n;
+        }
+        if (src == null) return -1;
+        return readSource(b, off, len);
+    }
+
+    public int available() throws IOException {
+        return (lim - pos) + (src == null ? 0 : src.available());
+    }
+
+    public void close() throws IOException {
+        if (src != null) src.close();
+    }
+}
@@ -0,0 +1,714 @@
+package cis5550.webserver;
+
+import cis5550.tools.Logger;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSession;
+
+// Selector-based alternative to the thread-per-connection worker pool. A few event loops own
+// the channels; a connection only occupies a handler thread once a complete request has been
+// buffered, and the handler then runs the regular Worker.processRequest code on that request.
+// Requests with a large, chunked or "100 Continue" body go to a handler as soon as their head
+// is in, and the loop streams the body to it through a BodyPipe.
+// With an SSLContext the engine also serves the secure port, with TLS done by NioTls on the
+// same event loops; handshake steps that need real CPU time (delegated tasks) run on a small
+// bounded pool so that they never stall a loop.
+class NioEngine {
+
+    private static final Logger logger = Logger.getLogger(NioEngine.class);
+
+    static final int MAX_BUFFERED_BODY = 64 * 1024;
+    private static final int READ_CHUNK = 16 * 1024;
+    private static final long WRITE_HIGH_WATER = 256 * 1024;
+    private static final long SWEEP_INTERVAL_MS = 1000;
+    private static final int MAX_POOLED_TLS_BUFFERS = 1024;
+    private static final int HANDSHAKE_QUEUE = 1024;
+
+    private static final byte[] REQUEST_TIMEOUT = ("HTTP/1.1 408 Request Timeout\r\n" +
+            "Server: CIS5550Server\r\nContent-Length: 0\r\nConnection: close\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+
+    private static final byte[] HEADER_TOO_LARGE = ("HTTP/1.1 431 Request Header Fields Too Large\r\n" +
+            "Server: CIS5550Server\r\nContent-Length: 0\r\nConnection: close\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+
+    private final int port;
+    private final int securePort;
+    private final SSLContext sslContext;     // null without a secure port
+    private final Worker worker;
+    private final EventLoop[] loops;
+    private final ExecutorService handlers;
+    private final ExecutorService handshakes;
+    private final BufferPool tlsBuffers;
+    private final SSLParameters tlsParams;
+    private int nextLoop = 0;
+
+    NioEngine(int port, int numLoops, int numHandlers, Worker worker) throws IOException {
+        this(port, 0, null, numLoops, numHandlers, worker);
+    }
+
+    NioEngine(int port, int securePort, SSLContext sslContext, int numLoops, int numHandlers, Worker worker) throws IOException {
+        this.port = port;
+        this.securePort = securePort;
+        this.sslContext = sslContext;
+        this.worker = worker;
+        this.loops = new EventLoop[numLoops];
+        for (int i = 0; i < numLoops; i++) {
+            loops[i] = new EventLoop();
+        }
+        AtomicInteger handlerIds = new AtomicInteger();
+        this.handlers = Executors.newFixedThreadPool(numHandlers, r -> {
+            Thread t = new Thread(r, "Nio-Handler-" + handlerIds.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+        });
+        if (sslContext != null) {
+            AtomicInteger handshakeIds = new AtomicInteger();
+            int threads = Math.max(2, Runtime.getRuntime().availableProcessors());
+            this.handshakes = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<>(HANDSHAKE_QUEUE), r -> {
+                        Thread t = new Thread(r, "Nio-Handshake-" + handshakeIds.getAndIncrement());
+                        t.setDaemon(true);
+                        return t;
+                    });
+            SSLEngine protoEngine = sslContext.createSSLEngine();
+            protoEngine.setUseClientMode(false);
+            this.tlsParams = protoEngine.getSSLParameters();
+            SniManager.configure(sslContext, tlsParams, new String[] { "http/1.1" });
+            SSLSession proto = protoEngine.getSession();
+            this.tlsBuffers = new BufferPool(Math.max(proto.getPacketBufferSize(), proto.getApplicationBufferSize()),
+                    MAX_POOLED_TLS_BUFFERS);
+        } else {
+            this.handshakes = null;
+            this.tlsBuffers = null;
+            this.tlsParams = null;
+        }
+    }
+
+    // Runs the first event loop (which also accepts) on the calling thread; does not return.
+    void run() throws IOException {
+        ServerSocketChannel ssc = ServerSocketChannel.open();
+        ssc.bind(new InetSocketAddress(port));
+        ssc.configureBlocking(false);
+        ssc.register(loops[0].selector, SelectionKey.OP_ACCEPT);
+        logger.info("NIO engine listening on port " + port + " with " + loops.length + " event loop(s)");
+        ServerSocketChannel tls = null;
+        if (sslContext != null) {
+            tls = ServerSocketChannel.open();
+            tls.bind(new InetSocketAddress(securePort));
+            tls.configureBlocking(false);
+            tls.register(loops[0].selector, SelectionKey.OP_ACCEPT, sslContext);
+            logger.info("NIO engine listening for TLS on port " + securePort);
+        }
+
+        for (int i = 1; i < loops.length; i++) {
+            Thread t = new Thread(loops[i], "Nio-Loop-" + i);
+            t.setDaemon(true);
+            t.start();
+        }
+        try {
+            loops[0].run();
+        } finally {
+            try { ssc.close(); } catch (IOException ignored) {}
+            if (tls != null) {
+                try { tls.close(); } catch (IOException ignored) {}
+            }
+        }
+    }
+
+    // The accepting key of the secure port carries the SSLContext.
+    private void accept(ServerSocketChannel ssc, boolean secure) {
+        while (true) {
+            SocketChannel ch;
+            try {
+                ch = ssc.accept();
+            } catch (IOException ioe) {
+                logger.debug("NIO accept error: " + ioe.getMessage());
+                return;
+            }
+            if (ch == null) return;
+
+            try {
+                ch.configureBlocking(false);
+                ch.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                EventLoop loop = loops[nextLoop];
+                nextLoop = (nextLoop + 1) % loops.length;
+                SSLEngine engine = secure ? newEngine() : null;
+                loop.execute(() -> loop.register(ch, engine));
+            } catch (IOException ioe) {
+                try { ch.close(); } catch (IOException ignored) {}
+            }
+        }
+    }
+
+    // HTTP/2 is only spoken by the blocking workers, so ALPN offers HTTP/1.1 alone.
+    private SSLEngine newEngine() {
+        SSLEngine engine = sslContext.createSSLEngine();
+        engine.setUseClientMode(false);
+        engine.setSSLParameters(tlsParams);
+        return engine;
+    }
+
+    // Returns the end offset of the request that starts at buf[from], 0 if it is not complete
+    // yet, -1 if its body is to be streamed rather than buffered, or -2 if its head is too
+    // large. The body limits of Server and the route are applied by the worker either way.
+    static long frameLength(byte[] buf, int from, int len) {
+        int start = from;
+        while (start < len && (buf[start] == '\r' || buf[start] == '\n')) start++;
+        int headEnd = RequestHead.findHeadEnd(buf, start, len);
+        if (headEnd < 0) {
+            return (len - start >= Server.maxHeadSize()) ? -2 : 0;
+        }
+        if (headEnd - start > Server.maxHeadSize()) return -2;
+
+        if (RequestHead.scanChunked(buf, start, headEnd)) {
+            long end = RequestBody.scanChunked(buf, headEnd, len);
+            if (end < 0) return len;   // malformed framing; the worker answers with 400
+            return (end == 0) ? -1 : end;
+        }
+
+        // A malformed Content-Length is left to the worker, which answers with 400.
+        long contentLength = Math.max(0, RequestHead.scanContentLength(buf, start, headEnd));
+        long end = headEnd + contentLength;
+        if (len >= end) return end;
+        if (contentLength > MAX_BUFFERED_BODY || RequestHead.scanExpectContinue(buf, start, headEnd)) return -1;
+        return 0;
+    }
+
+    final class EventLoop implements Runnable {
+        final Selector selector;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+        EventLoop() throws IOException {
+            this.selector = Selector.open();
+        }
+
+        void execute(Runnable r) {
+            tasks.add(r);
+            selector.wakeup();
+        }
+
+        void register(SocketChannel ch, SSLEngine engine) {
+            try {
+                NioConnection c = new NioConnection(this, ch, engine);
+                c.key = ch.register(selector, SelectionKey.OP_READ, c);
+            } catch (IOException ioe) {
+                try { ch.close(); } catch (IOException ignored) {}
+            }
+        }
+
+        public void run() {
+            long lastSweep = System.currentTimeMillis();
+            while (true) {
+                try {
+                    selector.select(SWEEP_INTERVAL_MS);
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        task.run();
+                    }
+
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        if (!key.isValid()) continue;
+
+                        if (key.isAcceptable()) {
+                            accept((ServerSocketChannel) key.channel(), key.attachment() != null);
+                            continue;
+                        }
+                        NioConnection c = (NioConnection) key.attachment();
+                        if (key.isWritable()) c.onWritable();
+                        if (key.isValid() && key.isReadable()) c.onReadable();
+                    }
+
+                    long now = System.currentTimeMillis();
+                    if (now - lastSweep >= SWEEP_INTERVAL_MS) {
+                        lastSweep = now;
+                        for (SelectionKey key : selector.keys()) {
+                            if (key.isValid() && key.attachment() instanceof NioConnection) {
+                                ((NioConnection) key.attachment()).checkTimeouts(now);
+                            }
+                        }
+                    }
+                } catch (Throwable t) {
+                    logger.error("Event loop error: " + t.getMessage(), t);
+                }
+            }
+        }
+    }
+
+    final class NioConnection {
+        private final EventLoop loop;
+        private final SocketChannel ch;
+        private final InetSocketAddress remoteAddr;
+        private final NioTls tls;     // null for plaintext
+        private final long handshakeStart = System.nanoTime();
+        SelectionKey key;
+
+        private byte[] buf = new byte[READ_CHUNK];
+        private int len = 0;
+        private boolean busy = false;
+        private boolean closeAfterWrite = false;
+        private long lastActivity = System.currentTimeMillis();
+        private long headStartedAt = lastActivity;   // first byte of the request being buffered
+        private int served = 0;                      // handler threads only, one at a time
+        private BodyPipe pipe = null;                // while a request is being streamed
+
+        // Guarded by this; touched by both the handler thread and the event loop.
+        private final ArrayDeque<ByteBuffer> pending = new ArrayDeque<>();
+        private long pendingBytes = 0;
+        private boolean closed = false;
+        private long writeStalledSince = 0;   // 0 unless output is waiting for the client
+
+        NioConnection(EventLoop loop, SocketChannel ch, SSLEngine engine) throws IOException {
+            this.loop = loop;
+            this.ch = ch;
+            this.remoteAddr = (InetSocketAddress) ch.getRemoteAddress();
+            this.tls = (engine == null) ? null : new NioTls(engine, ch, tlsBuffers, this::write);
+        }
+
+        void onReadable() {
+            if (tls != null && tls.isHandshaking() && !advanceHandshake()) {
+                return;
+            }
+            try {
+                while (true) {
+                    if (len == buf.length) {
+                        int maxFrame = Server.maxHeadSize() + MAX_BUFFERED_BODY;
+                        if (frameLength(buf, 0, len) != 0 || buf.length >= maxFrame) break;
+                        byte[] bigger = new byte[Math.min(buf.length * 2, maxFrame)];
+                        System.arraycopy(buf, 0, bigger, 0, len);
+                        buf = bigger;
+                    }
+                    int n;
+                    if (tls == null) {
+                        n = ch.read(ByteBuffer.wrap(buf, len, buf.length - len));
+                    } else {
+                        synchronized (this) {
+                            n = tls.read(buf, len, buf.length - len);
+                        }
+                    }
+                    if (n < 0) {
+                        if (pipe != null) pipe.finish();
+                        if (busy) {
+                            closeAfterWrite = true;
+                            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                        } else {
+                            close();
+                        }
+                        return;
+                    }
+                    if (n == 0) break;
+                    lastActivity = System.currentTimeMillis();
+                    if (len == 0 && !busy) headStartedAt = lastActivity;
+                    len += n;
+                    if (pipe != null) {
+                        boolean more = pipe.offer(buf, 0, len);
+                        len = 0;
+                        if (!more) {
+                            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                            break;
+                        }
+                    }
+                }
+            } catch (IOException ioe) {
+                close();
+                return;
+            }
+            if (!busy) dispatchNext();
+        }
+
+        // Runs the TLS handshake as far as possible on the event loop. Returns true once it has
+        // completed; delegated tasks go to the handshake pool, which resumes the handshake here.
+        private boolean advanceHandshake() {
+            int step;
+            try {
+                synchronized (this) {
+                    step = tls.handshake();
+                }
+            } catch (IOException ioe) {
+                logger.debug("TLS handshake failed: " + ioe.getMessage());
+                ServerStats.tlsFailedHandshakes.increment();
+                close();
+                return false;
+            }
+            if (step == NioTls.NEED_TASK) {
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                try {
+                    handshakes.execute(() -> {
+                        tls.runDelegatedTasks();
+                        loop.execute(this::handshakeTasksDone);
+                    });
+                } catch (RejectedExecutionException ree) {
+                    ServerStats.rejectedConnections.increment();
+                    close();
+                }
+                return false;
+            }
+            if (step != NioTls.DONE) return false;
+            SniManager.handshakeCompleted(tls.session(), handshakeStart);
+            return true;
+        }
+
+        private void handshakeTasksDone() {
+            if (!key.isValid()) return;
+            key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+            onReadable();
+        }
+
+        // Hands every complete request in the buffer to one handler run, so responses to
+        // pipelined requests go out together.
+        private void dispatchNext() {
+            long total = frameLength(buf, 0, len);
+            if (total == -2) {
+                ServerStats.headTooLarge.increment();
+                reject(HEADER_TOO_LARGE);
+                return;
+            }
+            if (total == -1) {
+                stream();
+                return;
+            }
+            if (total == 0) return;
+            long next;
+            while ((next = frameLength(buf, (int) total, len)) > 0) {
+                total = next;
+            }
+
+            byte[] request = new byte[(int) total];
+            System.arraycopy(buf, 0, request, 0, request.length);
+            System.arraycopy(buf, request.length, buf, 0, len - request.length);
+            len -= request.length;
+            if (buf.length > READ_CHUNK && len <= READ_CHUNK) {
+                byte[] smaller = new byte[READ_CHUNK];
+                System.arraycopy(buf, 0, smaller, 0, len);
+                buf = smaller;
+            }
+
+            headStartedAt = lastActivity;
+            busy = true;
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            handlers.execute(() -> handle(new HttpInput(request)));
+        }
+
+        // Hands the request at the start of the buffer to a handler before its body is in. From
+        // now on the loop feeds what it reads into a BodyPipe, which the handler reads like a
+        // socket. Only this one request is served that way; what follows it in the pipe comes
+        // back to the buffer in requestDone.
+        private void stream() {
+            BodyPipe p = new BodyPipe(() -> loop.execute(this::resumeStreaming));
+            pipe = p;
+            boolean more = p.offer(buf, 0, len);
+            len = 0;
+            if (buf.length > READ_CHUNK) buf = new byte[READ_CHUNK];
+            headStartedAt = lastActivity;
+            busy = true;
+            if (!more) key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            handlers.execute(() -> handle(new HttpInput(p, READ_CHUNK)));
+        }
+
+        // The handler has caught up with a pipe that was full.
+        private void resumeStreaming() {
+            if (pipe == null || !key.isValid() || closeAfterWrite) return;
+            key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+            onReadable();
+        }
+
+        // Answers with a canned error and closes once it has been written.
+        private void reject(byte[] reply) {
+            len = 0;
+            closeAfterWrite = true;
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            try {
+                send(reply, 0, reply.length);
+                synchronized (this) {
+                    if (pending.isEmpty()) close();
+                }
+            } catch (IOException ioe) {
+                close();
+            }
+        }
+
+        // Called by the event loop's periodic sweep; applies the timeouts configured on Server.
+        void checkTimeouts(long now) {
+            synchronized (this) {
+                int writeTimeout = Server.writeTimeout();
+                if (writeTimeout > 0 && writeStalledSince != 0 && now - writeStalledSince > writeTimeout) {
+                    ServerStats.writeTimeouts.increment();
+                    close();
+                    return;
+                }
+            }
+            if (busy || closeAfterWrite) return;
+
+            if (tls != null && tls.isHandshaking()) {
+                int headerTimeout = Server.headerTimeout();
+                if (headerTimeout > 0 && now - headStartedAt > headerTimeout) {
+                    ServerStats.headerTimeouts.increment();
+                    close();
+                }
+                return;
+            }
+
+            int start = 0;
+            while (start < len && (buf[start] == '\r' || buf[start] == '\n')) start++;
+            if (start == len) {
+                int idle = Server.idleTimeout();
+                if (idle > 0 && now - lastActivity > idle) {
+                    ServerStats.idleTimeouts.increment();
+                    close();
+                }
+            } else if (RequestHead.findHeadEnd(buf, start, len) < 0) {
+                int headerTimeout = Server.headerTimeout();
+                if (headerTimeout > 0 && now - headStartedAt > headerTimeout) {
+                    ServerStats.headerTimeouts.increment();
+                    reject(REQUEST_TIMEOUT);
+                }
+            } else {
+                int bodyTimeout = Server.bodyTimeout();
+                if (bodyTimeout > 0 && now - lastActivity > bodyTimeout) {
+                    ServerStats.bodyTimeouts.increment();
+                    reject(REQUEST_TIMEOUT);
+                }
+            }
+        }
+
+        private void handle(HttpInput in) {
+            BufferedOutputStream out = new BufferedOutputStream(new ChannelOutputStream(this), 16 * 1024);
+            Connection conn = new Connection(null, remoteAddr, tls != null, in, out) {
+                boolean transferFile(FileChannel fc, long pos, long count) throws IOException {
+                    if (tls != null) return false;   // the bytes have to be encrypted
+                    sendFile(fc, pos, count);
+                    return true;
+                }
+            };
+            serveBuffered(conn, null);
+        }
+
+        // Answers the requests buffered in conn, first finishing 'resumed' if it is given. A
+        // route that answers asynchronously releases this handler thread; the rest continues on
+        // another one once its future is done. The event loop hears about it at the end.
+        private void serveBuffered(Connection conn, Worker.PendingRoute resumed) {
+            boolean keepAlive = false;
+            try {
+                int maxRequests = Server.maxRequestsPerConnection();
+                do {
+                    keepAlive = (resumed != null) ? resumed.finish() : worker.processRequest(conn);
+                    resumed = null;
+                    Worker.PendingRoute pending = conn.takePending();
+                    if (pending != null) {
+                        conn.out.flush();   // earlier pipelined responses go out now
+                        pending.whenDone(() -> handlers.execute(() -> serveBuffered(conn, pending)));
+                        return;
+                    }
+                    if (keepAlive && maxRequests > 0 && ++served >= maxRequests) {
+                        ServerStats.maxRequestsReached.increment();
+                        keepAlive = false;
+                    }
+                } while (keepAlive && conn.in.buffered() > 0 && pipe == null);
+                conn.out.flush();
+            } catch (Throwable t) {
+                logger.debug("NIO handler error: " + t.getMessage(), t);
+                keepAlive = false;
+            }
+            final boolean cont = keepAlive;
+            final byte[] rest = (keepAlive && pipe != null) ? conn.in.takeBuffered() : null;
+            loop.execute(() -> requestDone(cont, rest));
+        }
+
+        // 'rest' is what the handler of a streamed request read past its end.
+        private void requestDone(boolean keepAlive, byte[] rest) {
+            busy = false;
+            if (pipe != null) {
+                byte[] unread = pipe.takeRemaining();
+                pipe = null;
+                if (keepAlive) {
+                    byte[] joined = new byte[Math.max(READ_CHUNK, rest.length + unread.length + len)];
+                    System.arraycopy(rest, 0, joined, 0, rest.length);
+                    System.arraycopy(unread, 0, joined, rest.length, unread.length);
+                    System.arraycopy(buf, 0, joined, rest.length + unread.length, len);
+                    len += rest.length + unread.length;
+                    buf = joined;
+                }
+            }
+            lastActivity = System.currentTimeMillis();
+            headStartedAt = lastActivity;
+            if (!keepAlive || closeAfterWrite) {
+                closeAfterWrite = true;
+                synchronized (this) {
+                    if (pending.isEmpty()) close();
+                }
+                return;
+            }
+            if (!key.isValid()) return;
+            key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+            if (tls != null) {
+                // Records already taken off the socket would not raise another read event.
+                onReadable();
+            } else {
+                dispatchNext();
+            }
+        }
+
+        // Called from handler threads; TLS connections encrypt first.
+        void send(byte[] b, int off, int n) throws IOException {
+            synchronized (this) {
+                if (closed) throw new IOException("Connection closed");
+                if (tls != null) {
+                    tls.write(b, off, n);
+                } else {
+                    write(ByteBuffer.wrap(b, off, n), true);
+                }
+            }
+        }
+
+        // Writes directly while the channel keeps up, queues the rest for the event loop, and
+        // (if mayBlock) blocks the calling handler once too much output is queued.
+        private void write(ByteBuffer bb, boolean mayBlock) throws IOException {
+            synchronized (this) {
+                if (closed) throw new IOException("Connection closed");
+                if (pending.isEmpty()) {
+                    ch.write(bb);
+                    if (!bb.hasRemaining()) return;
+                }
+                ByteBuffer copy = ByteBuffer.allocate(bb.remaining());
+                copy.put(bb).flip();
+                boolean wasEmpty = pending.isEmpty();
+                if (wasEmpty) writeStalledSince = System.currentTimeMillis();
+                pending.add(copy);
+                pendingBytes += copy.remaining();
+                if (wasEmpty) {
+                    loop.execute(this::enableWrite);
+                }
+                while (mayBlock && pendingBytes > WRITE_HIGH_WATER && !closed) {
+                    try {
+                        wait();
+                    } catch (InterruptedException ie) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException();
+                    }
+                }
+                if (closed) throw new IOException("Connection closed");
+            }
+        }
+
+        // Called from handler threads after queued output has been flushed into 'pending'. The
+        // kernel copies the file straight into the socket; whenever the socket is full the
+        // handler waits for the event loop to report it writable again. The copy itself runs
+        // outside the monitor, so the event loop never waits on it: while this handler owns the
+        // connection nothing else writes to the channel, and a close() from the loop makes
+        // transferTo fail instead.
+        void sendFile(FileChannel fc, long pos, long count) throws IOException {
+            while (count > 0) {
+                synchronized (this) {
+                    while (!pending.isEmpty() && !closed) {
+                        waitForWritable();
+                    }
+                    if (closed) throw new IOException("Connection closed");
+                }
+                long n = fc.transferTo(pos, count, ch);
+                pos += n;
+                count -= n;
+                synchronized (this) {
+                    if (n > 0) {
+                        writeStalledSince = 0;
+                        continue;
+                    }
+                    if (pos >= fc.size()) throw new IOException("File shrank during transfer");
+                    if (closed) throw new IOException("Connection closed");
+                    if (writeStalledSince == 0) writeStalledSince = System.currentTimeMillis();
+                    waitForWritable();
+                }
+            }
+        }
+
+        // Caller holds the monitor; onWritable() and close() notify.
+        private void waitForWritable() throws IOException {
+            loop.execute(this::enableWrite);
+            try {
+                wait();
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+
+        private void enableWrite() {
+            if (key.isValid()) key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+        }
+
+        void onWritable() {
+            boolean drained;
+            synchronized (this) {
+                try {
+                    while (!pending.isEmpty()) {
+                        ByteBuffer bb = pending.peek();
+                        int n = ch.write(bb);
+                        pendingBytes -= n;
+                        if (n > 0) writeStalledSince = System.currentTimeMillis();
+                        if (bb.hasRemaining()) break;
+                        pending.poll();
+                    }
+                } catch (IOException ioe) {
+                    close();
+                    return;
+                }
+                notifyAll();  // wakes handlers blocked in send() or sendFile()
+                drained = pending.isEmpty();
+                if (drained) writeStalledSince = 0;
+            }
+            if (drained) {
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+                if (closeAfterWrite && !busy) close();
+            }
+        }
+
+        private void close() {
+            if (pipe != null) pipe.fail();
+            synchronized (this) {
+                if (tls != null) tls.close();
+                closed = true;
+                pending.clear();
+                pendingBytes = 0;
+                notifyAll();
+            }
+            key.cancel();
+            try { ch.close(); } catch (IOException ignored) {}
+        }
+    }
+
+    static final class ChannelOutputStream extends OutputStream {
+        private final NioConnection conn;
+
+        ChannelOutputStream(NioConnection conn) {
+            this.conn = conn;
+        }
+
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        public void write(byte[] b, int off, int n) throws IOException {
+            if (n > 0) conn.send(b, off, n);
+        }
+    }
+}
@@ -0,0 +1,233 @@
+package cis5550.webserver;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSession;
+
+// TLS for one NioEngine connection. Records are read from the non-blocking channel and
+// unwrapped here; everything wrap() produces goes to the connection's Output, which writes
+// it or queues it like plaintext output. The engine is not thread-safe as used here, so the
+// connection calls every method while holding its own lock. Buffers come from a BufferPool
+// and go back as soon as they are empty.
+final class NioTls {
+
+    // Where encrypted records go. mayBlock is false on the event loop, which must not wait
+    // for the client to read.
+    interface Output {
+        void write(ByteBuffer records, boolean mayBlock) throws IOException;
+    }
+
+    static final int DONE = 0, NEED_READ = 1, NEED_TASK = 2;
+
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private final SSLEngine engine;
+    private final SocketChannel ch;
+    private final BufferPool pool;
+    private final Output output;
+
+    private ByteBuffer netIn;    // records read but not unwrapped yet (write mode); null when empty
+    private ByteBuffer appIn;    // unwrapped bytes not handed out yet (read mode); null when empty
+    private boolean established = false;
+    private boolean closed = false;
+
+    NioTls(SSLEngine engine, SocketChannel ch, BufferPool pool, Output output) throws SSLException {
+        this.engine = engine;
+        this.ch = ch;
+        this.pool = pool;
+        this.output = output;
+        engine.beginHandshake();
+    }
+
+    SSLSession session() {
+        return engine.getSession();
+    }
+
+    boolean isHandshaking() {
+        return !established;
+    }
+
+    // Advances the handshake as far as the data at hand allows. Returns DONE once it has
+    // completed, NEED_READ if the client has to send more, or NEED_TASK if delegated tasks
+    // have to run (see runDelegatedTasks) before it can continue.
+    int handshake() throws IOException {
+        while (true) {
+            if (closed) throw new IOException("Connection closed");
+            switch (engine.getHandshakeStatus()) {
+                case NEED_WRAP -> {
+                    if (engine.isOutboundDone()) throw new SSLException("Handshake aborted");
+                    wrap(EMPTY, false);
+                }
+                case NEED_UNWRAP, NEED_UNWRAP_AGAIN -> {
+                    if (!unwrap()) return NEED_READ;
+                }
+                case NEED_TASK -> {
+                    return NEED_TASK;
+                }
+                default -> {
+                    established = true;
+                    return DONE;
+                }
+            }
+        }
+    }
+
+    // Runs the engine's expensive handshake steps (key exchange, certificate checks); called
+    // on a handshake thread, not the event loop.
+    void runDelegatedTasks() {
+        Runnable task;
+        while ((task = engine.getDelegatedTask()) != null) {
+            task.run();
+        }
+    }
+
+    // Behaves like SocketChannel.read: returns the number of application bytes copied to
+    // dst, 0 if none are available without blocking, or -1 at the end of the stream.
+    int read(byte[] dst, int off, int len) throws IOException {
+        while (true) {
+            if (closed) throw new IOException("Connection closed");
+            if (appIn != null) {
+                int n = Math.min(len, appIn.remaining());
+                appIn.get(dst, off, n);
+                if (!appIn.hasRemaining()) {
+                    pool.release(appIn);
+                    appIn = null;
+                }
+                return n;
+            }
+            if (engine.isInboundDone()) return -1;
+            if (!unwrap()) {
+                return engine.isInboundDone() ? -1 : 0;
+            }
+            // Post-handshake messages (TLS 1.3 key updates) may call for an answer.
+            SSLEngineResult.HandshakeStatus hs = engine.getHandshakeStatus();
+            if (hs == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                runDelegatedTasks();
+            } else if (hs == SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+                wrap(EMPTY, false);
+            }
+        }
+    }
+
+    // Unwraps one record, reading from the channel first if no complete record is buffered.
+    // Returns false if nothing could be unwrapped without blocking.
+    private boolean unwrap() throws IOException {
+        if (netIn == null) netIn = pool.acquire();
+        while (true) {
+            if (netIn.position() > 0) {
+                netIn.flip();
+                ByteBuffer app = pool.acquire();
+                SSLEngineResult r;
+                try {
+                    r = engine.unwrap(netIn, app);
+                } finally {
+                    netIn.compact();
+                }
+                switch (r.getStatus()) {
+                    case OK -> {
+                        app.flip();
+                        if (app.hasRemaining()) {
+                            appIn = app;
+                        } else {
+                            pool.release(app);
+                        }
+                        releaseNetInIfEmpty();
+                        return true;
+                    }
+                    case CLOSED -> {
+                        pool.release(app);
+                        releaseNetInIfEmpty();
+                        return false;
+                    }
+                    case BUFFER_OVERFLOW -> {
+                        pool.release(app);
+                        throw new SSLException("Record larger than the application buffer");
+                    }
+                    default -> {
+                        // BUFFER_UNDERFLOW: the record is incomplete.
+                        pool.release(app);
+                        int need = engine.getSession().getPacketBufferSize();
+                        if (!netIn.hasRemaining() && netIn.capacity() < need) {
+                            ByteBuffer bigger = ByteBuffer.allocateDirect(need);
+                            netIn.flip();
+                            bigger.put(netIn);
+                            pool.release(netIn);
+                            netIn = bigger;
+                        }
+                    }
+                }
+            }
+            int n = ch.read(netIn);
+            if (n < 0) {
+                releaseNetInIfEmpty();
+                try {
+                    engine.closeInbound();
+                } catch (SSLException truncated) {
+                    // The client closed without close_notify; as far as HTTP is concerned, that
+                    // is just the end of the stream.
+                }
+                if (!established) throw new EOFException("Closed during handshake");
+                return false;
+            }
+            if (n == 0) {
+                releaseNetInIfEmpty();
+                return false;
+            }
+        }
+    }
+
+    private void releaseNetInIfEmpty() {
+        if (netIn != null && netIn.position() == 0) {
+            pool.release(netIn);
+            netIn = null;
+        }
+    }
+
+    // Encrypts len bytes of application data; called from handler threads.
+    void write(byte[] b, int off, int len) throws IOException {
+        wrap(ByteBuffer.wrap(b, off, len), true);
+    }
+
+    private void wrap(ByteBuffer src, boolean mayBlock) throws IOException {
+        ByteBuffer net = pool.acquire();
+        try {
+            do {
+                if (closed) throw new IOException("Connection closed");
+                net.clear();
+                SSLEngineResult r = engine.wrap(src, net);
+                if (r.getStatus() == SSLEngineResult.Status.CLOSED && src.hasRemaining()) {
+                    throw new IOException("TLS session closed");
+                }
+                if (r.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                    throw new SSLException("Record larger than the packet buffer");
+                }
+                net.flip();
+                if (net.hasRemaining()) {
+                    output.write(net, mayBlock);
+                }
+            } while (src.hasRemaining());
+        } finally {
+            pool.release(net);
+        }
+    }
+
+    // Sends close_notify if the socket takes it right away, and returns the buffers.
+    void close() {
+        if (closed) return;
+        try {
+            engine.closeOutbound();
+            if (established) wrap(EMPTY, false);
+        } catch (IOException ignored) {
+        }
+        closed = true;
+        pool.release(netIn);
+        pool.release(appIn);
+        netIn = null;
+        appIn = null;
+    }
+}
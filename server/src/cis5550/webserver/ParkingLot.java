@@ -0,0 +1,122 @@
+package cis5550.webserver;
+
+import cis5550.tools.Logger;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+// Holds idle keep-alive connections so that they do not tie up a worker between requests.
+// A worker parks a connection once it has answered everything the client sent; one selector
+// thread watches the parked sockets and puts a connection back into the ConnectionQueue as
+// soon as it becomes readable (a new request, or the client closing). Only plaintext sockets
+// can be parked; TLS sockets have no channel and stay with their worker.
+final class ParkingLot implements Runnable {
+
+    private static final Logger logger = Logger.getLogger(ParkingLot.class);
+
+    private static final long SWEEP_INTERVAL_MS = 1000;
+
+    private final ConnectionQueue queue;
+    private final Selector selector;
+    private final Queue<Connection> arriving = new ConcurrentLinkedQueue<>();
+
+    ParkingLot(ConnectionQueue queue) throws IOException {
+        this.queue = queue;
+        this.selector = Selector.open();
+    }
+
+    // Called by a worker after the response has been flushed and nothing is buffered. Returns
+    // false if the connection cannot be parked, in which case the worker keeps serving it.
+    boolean park(Connection conn) {
+        if (conn.channel == null) {
+            return false;
+        }
+        conn.parkedAt = System.currentTimeMillis();
+        arriving.add(conn);
+        selector.wakeup();
+        return true;
+    }
+
+    int size() {
+        return selector.keys().size();
+    }
+
+    public void run() {
+        long lastSweep = System.currentTimeMillis();
+        List<Connection> ready = new ArrayList<>();
+        while (true) {
+            try {
+                selector.select(SWEEP_INTERVAL_MS);
+
+                Connection c;
+                while ((c = arriving.poll()) != null) {
+                    try {
+                        SocketChannel ch = c.socket.getChannel();
+                        ch.configureBlocking(false);
+                        ch.register(selector, SelectionKey.OP_READ, c);
+                    } catch (IOException ioe) {
+                        c.close();
+                    }
+                }
+
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    key.cancel();
+                    ready.add((Connection) key.attachment());
+                }
+
+                long now = System.currentTimeMillis();
+                if (now - lastSweep >= SWEEP_INTERVAL_MS) {
+                    lastSweep = now;
+                    int idle = Server.idleTimeout();
+                    for (SelectionKey key : selector.keys()) {
+                        Connection p = (Connection) key.attachment();
+                        if (key.isValid() && idle > 0 && now - p.parkedAt > idle) {
+                            key.cancel();
+                            ServerStats.idleTimeouts.increment();
+                            p.close();
+                        }
+                    }
+                }
+
+                if (ready.isEmpty()) continue;
+
+                // A channel can only go back to blocking mode once its key is deregistered,
+                // which happens during the next select.
+                selector.selectNow();
+                for (Connection r : ready) {
+                    unpark(r);
+                }
+                ready.clear();
+            } catch (Throwable t) {
+                logger.error("Parking lot error: " + t.getMessage(), t);
+            }
+        }
+    }
+
+    private void unpark(Connection conn) {
+        try {
+            conn.socket.getChannel().configureBlocking(true);
+        } catch (IOException ioe) {
+            conn.close();
+            return;
+        }
+        if (!queue.enqueue(conn)) {
+            ServerStats.rejectedConnections.increment();
+            try {
+                conn.out.write(Server.SERVICE_UNAVAILABLE);
+            } catch (IOException ignored) {
+            }
+            conn.close();
+        }
+    }
+}
@@ -1,5 +1,7 @@
 package cis5550.webserver;
 
+import java.io.InputStream;
+import java.nio.channels.ReadableByteChannel;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -33,9 +35,28 @@ public interface Request {
   // as a string, bodyAsBytes() should return it as a byte array, and contentLength() should return
   // the number of bytes in the body. If the request did not include a body, body() should return "",
   // bodyAsBytes should return a byte array of length zero, and contentLength() should return 0.
+  // contentLength() returns Integer.MAX_VALUE for bodies of 2 GB or more; contentLengthLong()
+  // returns the actual length. A chunked body has no length up front, so both return -1 for it
+  // until body() or bodyAsBytes() has read it.
   String body();
   byte[] bodyAsBytes();
   int contentLength();
+  long contentLengthLong();
+
+  // bodyAsStream() and bodyAsChannel() return the body as it arrives from the client, so that a
+  // handler can process a large upload (including one sent with "Transfer-Encoding: chunked")
+  // without holding all of it in memory. Nothing is read before the handler asks for it: body()
+  // and bodyAsBytes() read the body when first called, and only read whatever the stream has not
+  // consumed yet, so use one or the other. The fields of a form body are parsed when
+  // queryParams() is first called; after bodyAsStream(), they are left to the handler. The
+  // form is read in full for that, up to the route's maxBodySize(), and body() still returns it
+  // afterwards.
+  // Trailer fields sent after a chunked body are available from trailers() and trailers(x), with
+  // lower-case names, once the body has been read to the end.
+  InputStream bodyAsStream();
+  ReadableByteChannel bodyAsChannel();
+  Set<String> trailers();
+  String trailers(String name);
 
   // The methods below are used to access query parameters. Query parameters are sent as a string
   // of URL-encoded key-value pairs, separated with an ampersand (&). For instance, "foo=x%20y&abc=123"
@@ -59,6 +80,14 @@ public interface Request {
   Map<String, String> params();
   String params(String name);
 
+  // splat() returns what the '*' segments of the route path matched, in order. A '*' in the middle
+  // of a path matches exactly one segment; a '*' at the end matches the rest of the URL. For
+  // instance, if a route has path /files/*/raw/* and a client requests /files/abc/raw/x/y.txt,
+  // splat() should return ["abc", "x/y.txt"]. The list is empty if the route has no '*'.
+  // Named parameters can also be restricted with a regular expression for their segment, as in
+  // /users/:id{\d+}; such a route only matches if the expression matches the whole segment.
+  List<String> splat();
+
   // This method is used to either look up the current session, if any, or to create a new session.
   // If this is method is called multiple times while handling the same request, it should always 
   // return the same Session object; it should never return null. If the method is never called,
@@ -0,0 +1,255 @@
+package cis5550.webserver;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+// The body of one request, read from the connection as the handler consumes it. Bodies are
+// framed either by Content-Length or by chunked transfer coding; in the latter case the chunk
+// framing is removed here and the trailer fields become available once the body has been
+// read to the end.
+final class RequestBody extends InputStream {
+
+    private static final int MAX_LINE_BYTES = 8 * 1024;
+    private static final byte[] CONTINUE = "HTTP/1.1 100 Continue\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    // The client broke the body framing; answered with 400 rather than 500.
+    static final class MalformedBodyException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        MalformedBodyException(String message) {
+            super(message);
+        }
+    }
+
+    // The body is longer than the route allows; answered with 413.
+    static final class BodyTooLargeException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        BodyTooLargeException(long limit) {
+            super("Request body exceeds " + limit + " bytes");
+        }
+    }
+
+    // Status code for a failure while reading a body, or 0 if it was not the client's fault.
+    static int errorStatus(Throwable t) {
+        Throwable c = (t.getCause() != null) ? t.getCause() : t;
+        if (t instanceof BodyTooLargeException || c instanceof BodyTooLargeException) return 413;
+        if (t instanceof MalformedBodyException || c instanceof MalformedBodyException) return 400;
+        if (t instanceof SocketTimeoutException || c instanceof SocketTimeoutException) return 408;
+        return 0;
+    }
+
+    static final RequestBody EMPTY = new RequestBody(null, 0, false, null);
+
+    private final HttpInput in;
+    private final boolean chunked;
+    private final long length;         // declared Content-Length, or -1 for a chunked body
+    private long remaining;            // bytes left in the body (fixed length) or in the current chunk
+    private boolean chunkStarted = false;
+    private boolean eof;
+    private long consumed = 0;
+    private Map<String, String> trailers = null;
+    private long limit = Long.MAX_VALUE;
+
+    // Set when the client sent "Expect: 100-continue"; the interim response goes out the
+    // first time somebody reads from the body.
+    private OutputStream continueOut;
+
+    private RequestBody(HttpInput in, long length, boolean chunked, OutputStream continueOut) {
+        this.in = in;
+        this.chunked = chunked;
+        this.length = chunked ? -1 : length;
+        this.remaining = chunked ? 0 : length;
+        this.eof = !chunked && length == 0;
+        this.continueOut = eof ? null : continueOut;
+    }
+
+    static RequestBody fixed(HttpInput in, long length, OutputStream continueOut) {
+        return (length == 0) ? EMPTY : new RequestBody(in, length, false, continueOut);
+    }
+
+    static RequestBody chunked(HttpInput in, OutputStream continueOut) {
+        return new RequestBody(in, 0, true, continueOut);
+    }
+
+    boolean isChunked() {
+        return chunked;
+    }
+
+    // Caps a chunked body; reads beyond the cap fail with BodyTooLargeException. (A fixed
+    // length body is checked against the route's limit before the handler runs.)
+    void limit(long maxBytes) {
+        this.limit = maxBytes;
+    }
+
+    // The declared Content-Length, or -1 if the body is chunked.
+    long length() {
+        return length;
+    }
+
+    // Whether the body has been read to the end (including the trailer section).
+    boolean isComplete() {
+        return eof;
+    }
+
+    // Trailer fields with lower-case names; empty until the body has been read to the end.
+    Map<String, String> trailers() {
+        return (trailers == null) ? Map.of() : trailers;
+    }
+
+    public int read() throws IOException {
+        byte[] one = new byte[1];
+        int n = read(one, 0, 1);
+        return (n < 0) ? -1 : one[0] & 0xFF;
+    }
+
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) return 0;
+        sendContinue();
+        if (eof) return -1;
+        if (chunked && remaining == 0) {
+            nextChunk();
+            if (eof) return -1;
+        }
+        int n = in.read(b, off, (int) Math.min(len, remaining));
+        if (n < 0) {
+            throw new EOFException("Connection closed in the middle of a request body");
+        }
+        remaining -= n;
+        consumed += n;
+        if (!chunked && remaining == 0) eof = true;
+        return n;
+    }
+
+    public int available() throws IOException {
+        if (eof || remaining == 0) return 0;
+        return (int) Math.min(remaining, in.buffered());
+    }
+
+    // Reads and throws away the rest of the body, as long as that is at most limit bytes.
+    // Returns false if the body is longer, in which case the connection cannot be reused.
+    // A client waiting for "100 Continue" has not sent the body at all, so that also counts
+    // as not drainable.
+    boolean drain(long limit) throws IOException {
+        if (eof) return true;
+        if (continueOut != null) return false;
+        if (!chunked && remaining > limit) return false;
+        byte[] scratch = new byte[8192];
+        long start = consumed;
+        while (!eof) {
+            if (consumed - start > limit) return false;
+            if (read(scratch, 0, scratch.length) < 0) break;
+        }
+        return true;
+    }
+
+    public void close() {
+        // The connection belongs to the worker; the unread rest of the body is drained there.
+    }
+
+    private void sendContinue() throws IOException {
+        if (continueOut != null) {
+            OutputStream out = continueOut;
+            continueOut = null;
+            out.write(CONTINUE);
+            out.flush();
+        }
+    }
+
+    // Reads the CRLF that ends the previous chunk, the next chunk-size line and, after the
+    // last chunk, the trailer section.
+    private void nextChunk() throws IOException {
+        if (chunkStarted) {
+            if (readLine().length() != 0) {
+                throw new MalformedBodyException("Missing CRLF after chunk data");
+            }
+        }
+        chunkStarted = true;
+
+        String line = readLine();
+        int semi = line.indexOf(';');
+        String hex = ((semi >= 0) ? line.substring(0, semi) : line).trim();
+        if (hex.isEmpty() || hex.length() > 15) {
+            throw new MalformedBodyException("Bad chunk size: " + line);
+        }
+        long size = 0;
+        for (int i = 0; i < hex.length(); i++) {
+            int d = Character.digit(hex.charAt(i), 16);
+            if (d < 0) throw new MalformedBodyException("Bad chunk size: " + line);
+            size = (size << 4) | d;
+        }
+
+        if (size > 0) {
+            if (size > limit - consumed) throw new BodyTooLargeException(limit);
+            remaining = size;
+            return;
+        }
+
+        Map<String, String> t = new HashMap<>();
+        int total = 0;
+        while (true) {
+            String field = readLine();
+            if (field.isEmpty()) break;
+            total += field.length();
+            if (total > RequestHead.MAX_HEAD_BYTES) throw new MalformedBodyException("Trailer section too large");
+            int colon = field.indexOf(':');
+            if (colon <= 0) throw new MalformedBodyException("Bad trailer field: " + field);
+            t.put(field.substring(0, colon).trim().toLowerCase(), field.substring(colon + 1).trim());
+        }
+        trailers = t;
+        eof = true;
+    }
+
+    private String readLine() throws IOException {
+        StringBuilder sb = new StringBuilder();
+        while (true) {
+            int c = in.read();
+            if (c < 0) throw new EOFException("Connection closed in the middle of a chunked body");
+            if (c == '\n') break;
+            if (sb.length() >= MAX_LINE_BYTES) throw new MalformedBodyException("Chunk line too long");
+            sb.append((char) c);
+        }
+        int n = sb.length();
+        if (n == 0 || sb.charAt(n - 1) != '\r') throw new MalformedBodyException("Chunk line not terminated by CRLF");
+        sb.setLength(n - 1);
+        return sb.toString();
+    }
+
+    // Offset just past the chunked body that starts at b[from], 0 if it is not complete yet,
+    // or -1 if the framing is malformed. Used by the NIO engine to find request boundaries.
+    static long scanChunked(byte[] b, int from, int to) {
+        int p = from;
+        while (true) {
+            int e = RequestHead.indexOfCrlf(b, p, to);
+            if (e < 0) return (to - p > MAX_LINE_BYTES) ? -1 : 0;
+            long size = 0;
+            int digits = 0;
+            for (int i = p; i < e && b[i] != ';' && b[i] != ' ' && b[i] != '\t'; i++) {
+                int d = Character.digit(b[i], 16);
+                if (d < 0 || ++digits > 15) return -1;
+                size = (size << 4) | d;
+            }
+            if (digits == 0) return -1;
+            p = e + 2;
+            if (size == 0) break;
+            long next = p + size + 2;
+            if (next > to) return 0;
+            if (b[(int) next - 2] != '\r' || b[(int) next - 1] != '\n') return -1;
+            p = (int) next;
+        }
+        // Trailer section: fields up to an empty line.
+        while (true) {
+            int e = RequestHead.indexOfCrlf(b, p, to);
+            if (e < 0) return (to - p > RequestHead.MAX_HEAD_BYTES) ? -1 : 0;
+            boolean empty = (e == p);
+            p = e + 2;
+            if (empty) return p;
+        }
+    }
+}
@@ -0,0 +1,372 @@
+package cis5550.webserver;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+// Parsed request line and header fields. Parsing only records offsets into a private copy of
+// the head bytes; header values become Strings when somebody asks for them, and the full
+// name->value map is only built if Request.headers() is called. Headers the server itself
+// looks at are recognised during the scan, so looking them up needs no search.
+final class RequestHead {
+
+    static final int MAX_HEAD_BYTES = 64 * 1024;
+
+    static final int H_HOST = 0;
+    static final int H_CONTENT_LENGTH = 1;
+    static final int H_CONTENT_TYPE = 2;
+    static final int H_CONNECTION = 3;
+    static final int H_TRANSFER_ENCODING = 4;
+    static final int H_RANGE = 5;
+    static final int H_IF_NONE_MATCH = 6;
+    static final int H_IF_MODIFIED_SINCE = 7;
+    static final int H_ACCEPT_ENCODING = 8;
+    static final int H_COOKIE = 9;
+    static final int H_EXPECT = 10;
+
+    private static final String[] KNOWN_NAMES = {
+        "host", "content-length", "content-type", "connection", "transfer-encoding", "range",
+        "if-none-match", "if-modified-since", "accept-encoding", "cookie", "expect"
+    };
+    private static final byte[][] KNOWN = new byte[KNOWN_NAMES.length][];
+    static {
+        for (int i = 0; i < KNOWN_NAMES.length; i++) {
+            KNOWN[i] = KNOWN_NAMES[i].getBytes(StandardCharsets.US_ASCII);
+        }
+    }
+
+    private static final byte[] CHUNKED = "chunked".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] CONTINUE = "100-continue".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] HTTP_1_1 = "HTTP/1.1".getBytes(StandardCharsets.US_ASCII);
+    private static final String[] METHODS = { "GET", "POST", "PUT", "HEAD", "DELETE", "OPTIONS", "PATCH" };
+    private static final byte[][] METHOD_BYTES = new byte[METHODS.length][];
+    static {
+        for (int i = 0; i < METHODS.length; i++) {
+            METHOD_BYTES[i] = METHODS[i].getBytes(StandardCharsets.US_ASCII);
+        }
+    }
+
+    // 0 if the head is well-formed, otherwise the status code to answer with.
+    int error = 0;
+    String method;
+    String target;
+    String version;
+
+    private final byte[] b;
+    private int count = 0;
+    private int[] fields = new int[4 * 16];   // nameStart, nameEnd, valueStart, valueEnd
+    private final int[] known = new int[KNOWN.length];   // field index + 1 of the last occurrence
+    private final String[] knownValues = new String[KNOWN.length];
+    private Map<String, String> map = null;
+
+    private RequestHead(byte[] b) {
+        this.b = b;
+    }
+
+    static RequestHead error(int status) {
+        RequestHead h = new RequestHead(new byte[0]);
+        h.error = status;
+        return h;
+    }
+
+    // Parses buf[off, off+len), which must end with the blank line that terminates the head.
+    static RequestHead parse(byte[] buf, int off, int len) {
+        byte[] b = new byte[len];
+        System.arraycopy(buf, off, b, 0, len);
+        RequestHead h = new RequestHead(b);
+
+        int lineEnd = indexOfCrlf(b, 0, len);
+        if (!h.parseRequestLine(0, lineEnd)) {
+            h.error = 400;
+            return h;
+        }
+
+        int p = lineEnd + 2;
+        while (p < len) {
+            int e = indexOfCrlf(b, p, len);
+            if (e < 0) e = len;
+            if (!h.parseField(p, e)) {
+                h.error = 400;
+                return h;
+            }
+            p = e + 2;
+        }
+        return h;
+    }
+
+    private boolean parseRequestLine(int start, int end) {
+        int[] tok = new int[6];
+        int n = 0;
+        int p = start;
+        while (p < end) {
+            while (p < end && isWhitespace(b[p])) p++;
+            if (p >= end) break;
+            int s = p;
+            while (p < end && !isWhitespace(b[p])) p++;
+            if (n == 3) return false;
+            tok[2 * n] = s;
+            tok[2 * n + 1] = p;
+            n++;
+        }
+        if (n != 3 || start < end && isWhitespace(b[start])) return false;
+
+        method = null;
+        for (int i = 0; i < METHODS.length && method == null; i++) {
+            if (regionEquals(tok[0], tok[1], METHOD_BYTES[i], false)) method = METHODS[i];
+        }
+        if (method == null) method = new String(b, tok[0], tok[1] - tok[0], StandardCharsets.US_ASCII);
+
+        target = new String(b, tok[2], tok[3] - tok[2], StandardCharsets.UTF_8);
+        version = regionEquals(tok[4], tok[5], HTTP_1_1, false) ? "HTTP/1.1"
+                : new String(b, tok[4], tok[5] - tok[4], StandardCharsets.US_ASCII);
+        return true;
+    }
+
+    private boolean parseField(int start, int end) {
+        int colon = -1;
+        boolean blank = true;
+        for (int i = start; i < end; i++) {
+            if (b[i] == ':') {
+                colon = i;
+                break;
+            }
+            if (!isWhitespace(b[i])) blank = false;
+        }
+        if (colon < 0) {
+            return blank;
+        }
+
+        int ns = start, ne = colon;
+        while (ns < ne && isWhitespace(b[ns])) ns++;
+        while (ne > ns && isWhitespace(b[ne - 1])) ne--;
+        int vs = colon + 1, ve = end;
+        while (vs < ve && isWhitespace(b[vs])) vs++;
+        while (ve > vs && isWhitespace(b[ve - 1])) ve--;
+
+        if (4 * count + 4 > fields.length) {
+            int[] bigger = new int[fields.length * 2];
+            System.arraycopy(fields, 0, bigger, 0, fields.length);
+            fields = bigger;
+        }
+        fields[4 * count] = ns;
+        fields[4 * count + 1] = ne;
+        fields[4 * count + 2] = vs;
+        fields[4 * count + 3] = ve;
+        count++;
+
+        int len = ne - ns;
+        for (int k = 0; k < KNOWN.length; k++) {
+            if (KNOWN[k].length == len && regionEquals(ns, ne, KNOWN[k], true)) {
+                known[k] = count;
+                break;
+            }
+        }
+        return true;
+    }
+
+    // Value of one of the H_* headers, or null if the client did not send it.
+    String get(int id) {
+        int f = known[id];
+        if (f == 0) return null;
+        String v = knownValues[id];
+        if (v == null) {
+            v = value(f - 1);
+            knownValues[id] = v;
+        }
+        return v;
+    }
+
+    // Value of the header with the given lower-case name; the last occurrence wins.
+    String get(String lowerName) {
+        int id = knownId(lowerName);
+        if (id >= 0) return get(id);
+        for (int i = count - 1; i >= 0; i--) {
+            if (nameEquals(i, lowerName)) return value(i);
+        }
+        return null;
+    }
+
+    Set<String> names() {
+        return asMap().keySet();
+    }
+
+    Map<String, String> asMap() {
+        if (map == null) {
+            Map<String, String> m = new HashMap<>();
+            for (int i = 0; i < count; i++) {
+                m.put(name(i), value(i));
+            }
+            map = m;
+        }
+        return map;
+    }
+
+    private static int knownId(String lowerName) {
+        switch (lowerName) {
+            case "host": return H_HOST;
+            case "content-length": return H_CONTENT_LENGTH;
+            case "content-type": return H_CONTENT_TYPE;
+            case "connection": return H_CONNECTION;
+            case "transfer-encoding": return H_TRANSFER_ENCODING;
+            case "range": return H_RANGE;
+            case "if-none-match": return H_IF_NONE_MATCH;
+            case "if-modified-since": return H_IF_MODIFIED_SINCE;
+            case "accept-encoding": return H_ACCEPT_ENCODING;
+            case "cookie": return H_COOKIE;
+            case "expect": return H_EXPECT;
+            default: return -1;
+        }
+    }
+
+    private String name(int i) {
+        int s = fields[4 * i], e = fields[4 * i + 1];
+        char[] c = new char[e - s];
+        for (int k = 0; k < c.length; k++) {
+            c[k] = (char) toLower(b[s + k]);
+        }
+        return new String(c);
+    }
+
+    private String value(int i) {
+        int s = fields[4 * i + 2], e = fields[4 * i + 3];
+        return new String(b, s, e - s, StandardCharsets.UTF_8);
+    }
+
+    private boolean nameEquals(int i, String lowerName) {
+        int s = fields[4 * i], e = fields[4 * i + 1];
+        if (e - s != lowerName.length()) return false;
+        for (int k = 0; k < e - s; k++) {
+            if (toLower(b[s + k]) != lowerName.charAt(k)) return false;
+        }
+        return true;
+    }
+
+    private boolean regionEquals(int s, int e, byte[] lit, boolean ignoreCase) {
+        if (e - s != lit.length) return false;
+        for (int k = 0; k < lit.length; k++) {
+            int c = ignoreCase ? toLower(b[s + k]) : b[s + k];
+            if (c != lit[k]) return false;
+        }
+        return true;
+    }
+
+    private static int toLower(byte c) {
+        return (c >= 'A' && c <= 'Z') ? c + 32 : c & 0xFF;
+    }
+
+    private static boolean isWhitespace(byte c) {
+        return c == ' ' || c == '\t';
+    }
+
+    static int indexOfCrlf(byte[] b, int from, int to) {
+        for (int i = from; i + 1 < to; i++) {
+            if (b[i] == '\r' && b[i + 1] == '\n') return i;
+        }
+        return -1;
+    }
+
+    // Offset just past the "\r\n\r\n" that ends a head starting at or before 'from', or -1.
+    static int findHeadEnd(byte[] b, int from, int to) {
+        for (int i = Math.max(from, 3); i < to; i++) {
+            if (b[i] == '\n' && b[i - 1] == '\r' && b[i - 2] == '\n' && b[i - 3] == '\r') {
+                return i + 1;
+            }
+        }
+        return -1;
+    }
+
+    // Scans a complete head in place for Content-Length without materialising anything.
+    // Returns 0 if the header is absent and -1 if it is malformed.
+    static long scanContentLength(byte[] b, int from, int to) {
+        long result = 0;
+        int p = from;
+        while (p < to) {
+            int e = indexOfCrlf(b, p, to);
+            if (e < 0) e = to;
+            int v = valueStart(b, p, e, KNOWN[H_CONTENT_LENGTH]);
+            if (v >= 0) {
+                result = 0;
+                boolean digits = false;
+                for (int i = v; i < e; i++) {
+                    byte c = b[i];
+                    if (c >= '0' && c <= '9') {
+                        if (result > (Long.MAX_VALUE - 9) / 10) return -1;
+                        result = result * 10 + (c - '0');
+                        digits = true;
+                    } else if (!isWhitespace(c)) {
+                        return -1;
+                    }
+                }
+                if (!digits) return -1;
+            }
+            p = e + 2;
+        }
+        return result;
+    }
+
+    // Scans a complete head in place for a Transfer-Encoding whose final coding is chunked.
+    static boolean scanChunked(byte[] b, int from, int to) {
+        boolean chunked = false;
+        int p = from;
+        while (p < to) {
+            int e = indexOfCrlf(b, p, to);
+            if (e < 0) e = to;
+            int v = valueStart(b, p, e, KNOWN[H_TRANSFER_ENCODING]);
+            if (v >= 0) {
+                int ve = e;
+                while (ve > v && isWhitespace(b[ve - 1])) ve--;
+                int cs = ve - CHUNKED.length;
+                chunked = cs >= v && (cs == v || b[cs - 1] == ',' || isWhitespace(b[cs - 1]));
+                for (int k = 0; k < CHUNKED.length && chunked; k++) {
+                    chunked = toLower(b[cs + k]) == CHUNKED[k];
+                }
+            }
+            p = e + 2;
+        }
+        return chunked;
+    }
+
+    // Scans a complete head in place for "Expect: 100-continue".
+    static boolean scanExpectContinue(byte[] b, int from, int to) {
+        int p = from;
+        while (p < to) {
+            int e = indexOfCrlf(b, p, to);
+            if (e < 0) e = to;
+            int v = valueStart(b, p, e, KNOWN[H_EXPECT]);
+            if (v >= 0) {
+                while (v < e && isWhitespace(b[v])) v++;
+                int ve = e;
+                while (ve > v && isWhitespace(b[ve - 1])) ve--;
+                if (ve - v == CONTINUE.length) {
+                    boolean match = true;
+                    for (int k = 0; k < CONTINUE.length && match; k++) {
+                        match = toLower(b[v + k]) == CONTINUE[k];
+                    }
+                    if (match) return true;
+                }
+            }
+            p = e + 2;
+        }
+        return false;
+    }
+
+    // Offset just past the colon if the line b[p, e) is a field with the given lower-case
+    // name, otherwise -1.
+    private static int valueStart(byte[] b, int p, int e, byte[] name) {
+        int n = p;
+        while (n < e && isWhitespace(b[n])) n++;
+        if (e - n <= name.length || b[n + name.length] != ':') return -1;
+        for (int k = 0; k < name.length; k++) {
+            if (toLower(b[n + k]) != name[k]) return -1;
+        }
+        return n + name.length + 1;
+    }
+
+    // Whether the Transfer-Encoding value ends with the chunked coding, which then frames
+    // the body.
+    static boolean isChunked(String transferEncoding) {
+        String te = transferEncoding.trim().toLowerCase();
+        return te.equals("chunked") || te.endsWith(",chunked") || te.endsWith(" chunked");
+    }
+}
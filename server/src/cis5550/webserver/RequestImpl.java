@@ -1,5 +1,8 @@
 package cis5550.webserver;
 
+import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
 import java.util.*;
 import java.net.*;
 import java.nio.charset.*;
@@ -11,10 +14,14 @@ class RequestImpl implements Request {
   String url;
   String protocol;
   InetSocketAddress remoteAddr;
-  Map<String,String> headers;
+  RequestHead headers;
   Map<String,String> queryParams;
   Map<String,String> params;
+  List<String> splat = List.of();
   byte bodyRaw[];
+  RequestBody bodyStream;
+  private boolean streamed = false;
+  private boolean formParsed = false;
   Server server;
 
   ResponseImpl response = null;
@@ -23,7 +30,7 @@ class RequestImpl implements Request {
 
   private final boolean isSecure;
 
-  RequestImpl(String methodArg, String urlArg, String protocolArg, Map<String,String> headersArg, Map<String,String> queryParamsArg, Map<String,String> paramsArg, InetSocketAddress remoteAddrArg, byte bodyRawArg[], Server serverArg, boolean isSecureArg) {
+  RequestImpl(String methodArg, String urlArg, String protocolArg, RequestHead headersArg, Map<String,String> queryParamsArg, Map<String,String> paramsArg, InetSocketAddress remoteAddrArg, RequestBody bodyStreamArg, byte bodyRawArg[], Server serverArg, boolean isSecureArg) {
     method = methodArg;
     url = urlArg;
     remoteAddr = remoteAddrArg;
@@ -31,6 +38,7 @@ class RequestImpl implements Request {
     headers = headersArg;
     queryParams = queryParamsArg;
     params = paramsArg;
+    bodyStream = bodyStreamArg;
     bodyRaw = bodyRawArg;
     server = serverArg;
     this.isSecure = isSecureArg;
@@ -47,6 +55,9 @@ class RequestImpl implements Request {
   public void setParams(Map<String,String> paramsArg) {
     params = paramsArg;
   }
+  void setSplat(List<String> splatArg) {
+    splat = splatArg;
+  }
   public int port() {
   	return remoteAddr.getPort();
   }
@@ -57,32 +68,84 @@ class RequestImpl implements Request {
   	return protocol;
   }
   public String contentType() {
-  	return headers.get("content-type");
+  	return headers.get(RequestHead.H_CONTENT_TYPE);
   }
   public String ip() {
   	return remoteAddr.getAddress().getHostAddress();
   }
   public String body() {
-    return new String(bodyRaw, StandardCharsets.UTF_8);
+    return new String(bodyAsBytes(), StandardCharsets.UTF_8);
   }
   public byte[] bodyAsBytes() {
+    if (bodyRaw == null) {
+      try {
+        bodyRaw = bodyStream.readAllBytes();
+      } catch (IOException e) {
+        throw new UncheckedIOException("Cannot read request body", e);
+      }
+    }
   	return bodyRaw;
   }
   public int contentLength() {
-  	return bodyRaw.length;
+    return (int) Math.min(Integer.MAX_VALUE, contentLengthLong());
+  }
+  public long contentLengthLong() {
+    if (bodyStream.isChunked()) {
+      return (bodyRaw != null) ? bodyRaw.length : -1;
+    }
+    return bodyStream.length();
+  }
+  public InputStream bodyAsStream() {
+    if (bodyRaw != null) {
+      return new ByteArrayInputStream(bodyRaw);
+    }
+    streamed = true;
+    return bodyStream;
+  }
+  public ReadableByteChannel bodyAsChannel() {
+    return Channels.newChannel(bodyAsStream());
+  }
+  public Set<String> trailers() {
+    return bodyStream.trailers().keySet();
+  }
+  public String trailers(String name) {
+    return bodyStream.trailers().get(name.toLowerCase());
   }
   public String headers(String name) {
   	return headers.get(name.toLowerCase());
   }
   public Set<String> headers() {
-  	return headers.keySet();
+  	return headers.names();
   }
   public String queryParams(String param) {
+    parseForm();
   	return queryParams.get(param);
   }
   public Set<String> queryParams() {
+    parseForm();
   	return queryParams.keySet();
   }
+
+  // The fields of a form body join the query parameters the first time somebody asks for
+  // them, unless the handler has already taken the body as a stream. The raw bytes are kept,
+  // so body() and bodyAsBytes() still work afterwards; the route's body limit bounds them.
+  private void parseForm() {
+    if (formParsed) {
+      return;
+    }
+    formParsed = true;
+    String type = contentType();
+    if (type == null || !type.contains("application/x-www-form-urlencoded")) {
+      return;
+    }
+    try {
+      if (bodyRaw != null || !streamed) {
+        FormParser.parse(new ByteArrayInputStream(bodyAsBytes()), queryParams);
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException("Cannot read request body", e);
+    }
+  }
   public String params(String param) {
     return params.get(param);
   }
@@ -91,6 +154,10 @@ class RequestImpl implements Request {
     return params;
   }
 
+  public List<String> splat() {
+    return splat;
+  }
+
 
   private SessionImpl cachedSession = null;
 
@@ -100,7 +167,7 @@ class RequestImpl implements Request {
     }
 
 
-    String cookieHeader  =  headers.get("cookie");
+    String cookieHeader  =  headers.get(RequestHead.H_COOKIE);
     String sid = null;
     if (cookieHeader != null) {
       String[] parts = cookieHeader.split(";");
@@ -30,11 +30,13 @@ public interface Response {
   void status(int statusCode, String reasonPhrase);
 
   // This method can be used to send data directly to the connection, without buffering it
-  // in an object in memory. The first time write() is called, it should 'commit' the 
-  // response by sending out the status code/reason phrase and any headers that have been
-  // set so far. Your server should 1) add a 'Connection: close' header, and it should 
-  // 2) NOT add a Content-Length header in this case. Then, and in any subsequent calls, 
-  // it should simply write the provided bytes directly to the connection.
+  // in an object in memory. The first time write() is called, it 'commits' the response by
+  // sending out the status code/reason phrase and any headers that have been set so far,
+  // plus 'Transfer-Encoding: chunked'. The data is then sent as chunks: small writes are
+  // collected until Server.writeBufferSize() bytes are pending, and the last chunk goes out
+  // when Route.handle() returns, after which the connection stays open for further requests.
+  // If the handler has set a Content-Length header itself (or 'Connection: close'), the bytes
+  // are written to the connection as they are, without chunk framing.
   void write(byte[] b) throws Exception;
 
   // EXTRA CREDIT ONLY - please see the handout for details. If you are not doing the extra
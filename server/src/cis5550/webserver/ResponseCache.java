@@ -0,0 +1,87 @@
+package cis5550.webserver;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+// Responses of routes that opted in with RouteEntry.cache(), kept as the bytes
+// ResponseImpl.commitHeaders() sent, so a hit is answered without running the handler. Entries
+// expire after the route's TTL and the least recently used ones go once the byte budget is
+// exceeded. Only complete 200 responses without Set-Cookie or a Cache-Control of no-store,
+// no-cache or private are stored, and without the headers before filters set for the request.
+final class ResponseCache {
+
+    static final class Entry {
+        final byte[] head;       // status line and header fields, without the blank line
+        final byte[] body;
+        final int keyLength;
+        final long storedAt;
+        final long expiresAt;
+
+        Entry(byte[] head, byte[] body, int keyLength, long storedAt, long expiresAt) {
+            this.head = head;
+            this.body = body;
+            this.keyLength = keyLength;
+            this.storedAt = storedAt;
+            this.expiresAt = expiresAt;
+        }
+
+        // Sends the stored response with an Age header saying how long ago it was produced, and
+        // the header lines this request's before filters set.
+        void writeTo(OutputStream out, long now, byte[] filterHeaders) throws IOException {
+            out.write(head);
+            out.write(filterHeaders);
+            long age = Math.max(0, (now - storedAt) / 1000);
+            out.write(("Age: " + age + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+            out.write(body);
+        }
+    }
+
+    private final LruCache<String, Entry> entries;
+
+    ResponseCache(long maxBytes) {
+        this.entries = new LruCache<>(maxBytes, e -> 128 + 2L * e.keyLength + e.head.length + e.body.length);
+    }
+
+    // Method, decoded path, and the route's chosen query parameters and request headers.
+    static String key(RouteEntry route, String method, String path, Map<String, String> queryParams, RequestHead head) {
+        StringBuilder sb = new StringBuilder(64).append(method).append(' ').append(path);
+        for (String q : route.cacheQueryParams) {
+            String v = queryParams.get(q);
+            sb.append('\0').append(q).append('=').append(v == null ? "" : v);
+        }
+        for (String h : route.cacheHeaders) {
+            String v = head.get(h);
+            sb.append('\0').append(h).append(':').append(v == null ? "" : v);
+        }
+        return sb.toString();
+    }
+
+    Entry get(String key, long now) {
+        Entry e = entries.get(key);
+        if (e != null && now >= e.expiresAt) {
+            entries.remove(key);
+            e = null;
+        }
+        if (e == null) {
+            ServerStats.responseCacheMisses.increment();
+        } else {
+            ServerStats.responseCacheHits.increment();
+        }
+        return e;
+    }
+
+    void put(String key, byte[] head, byte[] body, long ttlMs) {
+        long now = System.currentTimeMillis();
+        entries.put(key, new Entry(head, body, key.length(), now, now + ttlMs));
+    }
+
+    long evictions() {
+        return entries.evictions();
+    }
+
+    long bytes() {
+        return entries.weight();
+    }
+}
@@ -20,6 +20,15 @@ public class ResponseImpl implements Response {
 
     private BufferedOutputStream out = null;
 
+    private static final byte[] CRLF = { '\r', '\n' };
+    private static final byte[] LAST_CHUNK = "0\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    private Map<String, List<String>> filterHdrs = Collections.emptyMap();   // see markFilterHeaders()
+
+    private boolean chunked = false;
+    private byte[] chunkBuf = null;
+    private int chunkLen = 0;
+
     public ResponseImpl() {
         hdrs.put("content-type", new ArrayList<>());
         hdrs.get("content-type").add("text/html");
@@ -63,13 +72,77 @@ public class ResponseImpl implements Response {
     public void write(byte[] b) throws Exception {
         if (!c && !h) {
             wr = true;
-            header("Connection", "close");
+            // A handler that sets its own Content-Length (or asks for Connection: close)
+            // gets the bytes passed through unframed; everything else is sent chunked.
+            chunked = !hdrs.containsKey("content-length") && !hdrs.containsKey("transfer-encoding")
+                    && !hasToken("connection", "close");
+            if (chunked) {
+                hdrs.put("transfer-encoding", new ArrayList<>(Collections.singletonList("chunked")));
+                chunkBuf = new byte[Server.writeBufferSize()];
+            } else if (!hdrs.containsKey("content-length")) {
+                hdrs.put("connection", new ArrayList<>(Collections.singletonList("close")));
+            }
             commitHeaders();
         }
-        if (!h && out != null) {
+        if (h || out == null) {
+            return;
+        }
+        if (!chunked) {
             out.write(b);
             out.flush();
+            return;
+        }
+        if (chunkLen + b.length <= chunkBuf.length) {
+            System.arraycopy(b, 0, chunkBuf, chunkLen, b.length);
+            chunkLen += b.length;
+            if (chunkLen == chunkBuf.length) {
+                writeChunk(null);
+            }
+        } else {
+            writeChunk(b);
+        }
+    }
+
+    // Sends the collected bytes, followed by extra (if not null), as one chunk.
+    private void writeChunk(byte[] extra) throws IOException {
+        int n = chunkLen + (extra == null ? 0 : extra.length);
+        if (n == 0) {
+            return;
+        }
+        out.write((Integer.toHexString(n) + "\r\n").getBytes(StandardCharsets.US_ASCII));
+        out.write(chunkBuf, 0, chunkLen);
+        if (extra != null) {
+            out.write(extra);
         }
+        out.write(CRLF);
+        out.flush();
+        chunkLen = 0;
+    }
+
+    // Ends a response that was sent with write(): sends what is still buffered and the last
+    // chunk. Returns whether the connection can carry another response afterwards.
+    boolean finishWrite() throws IOException {
+        if (!wr || h || out == null) {
+            return true;
+        }
+        if (!chunked) {
+            return !hasToken("connection", "close");
+        }
+        writeChunk(null);
+        out.write(LAST_CHUNK);
+        return true;
+    }
+
+    private boolean hasToken(String header, String token) {
+        List<String> values = hdrs.get(header);
+        if (values != null) {
+            for (String v : values) {
+                for (String t : v.split(",")) {
+                    if (t.trim().equalsIgnoreCase(token)) return true;
+                }
+            }
+        }
+        return false;
     }
 
     public void redirect(String url, int responseCode) {
@@ -126,47 +199,100 @@ public class ResponseImpl implements Response {
 
     public void commitHeaders() throws IOException {
         if (!c && out != null) {
-            c = true;
+            if (wr) {
+                c = true;
+                StringBuilder sb = statusAndHeaders(Collections.emptyMap());
+                sb.append("\r\n");
+                out.write(sb.toString().getBytes(StandardCharsets.UTF_8));
+            } else {
+                commitCaptured();
+            }
+        }
+    }
 
-            if (wr && !hdrs.containsKey("connection")) {
-                hdrs.put("connection", new ArrayList<>(Collections.singletonList("close")));
+    // Remembers the headers set so far, by before filters, as belonging to this request only
+    // (a session cookie, say): the response cache stores a route's response without them and
+    // adds the current request's own to every hit.
+    void markFilterHeaders() {
+        filterHdrs = new HashMap<>();
+        for (Map.Entry<String, List<String>> e : hdrs.entrySet()) {
+            if (!e.getKey().equals("content-type")) {
+                filterHdrs.put(e.getKey(), new ArrayList<>(e.getValue()));
             }
+        }
+    }
 
-            StringBuilder sb = new StringBuilder();
-            sb.append("HTTP/1.1 ")
-              .append(sc).append(" ")
-              .append(rp).append("\r\n");
-
-            for (Map.Entry<String, List<String>> e : hdrs.entrySet()) {
-                for (String v : e.getValue()) {
-                    sb.append(e.getKey())
-                      .append(": ")
-                      .append(v)
-                      .append("\r\n");
-                }
+    // The header fields the before filters set, as lines to add to a cached response.
+    byte[] filterHeaderLines() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, List<String>> e : filterHdrs.entrySet()) {
+            for (String v : e.getValue()) {
+                sb.append(e.getKey()).append(": ").append(v).append("\r\n");
             }
+        }
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
 
-            if (wr) {
-                sb.append("\r\n");
-                out.write(sb.toString().getBytes(StandardCharsets.UTF_8));
-                out.flush();
-            } else {
-                if (bStr != null) {
-                    byte[] bodyData = bStr.getBytes(StandardCharsets.UTF_8);
-                    sb.append("Content-Length: ").append(bodyData.length).append("\r\n\r\n");
-                    out.write(sb.toString().getBytes(StandardCharsets.UTF_8));
-                    out.write(bodyData);
-                } else if (bby != null) {
-                    sb.append("Content-Length: ").append(bby.length).append("\r\n\r\n");
-                    out.write(sb.toString().getBytes(StandardCharsets.UTF_8));
-                    out.write(bby);
-                } else {
-                    sb.append("Content-Length: 0\r\n\r\n");
-                    out.write(sb.toString().getBytes(StandardCharsets.UTF_8));
+    // Whether the route itself, rather than a before filter, set a cookie.
+    boolean routeSetsCookie() {
+        List<String> all = hdrs.get("set-cookie");
+        List<String> fromFilters = filterHdrs.get("set-cookie");
+        return all != null && all.size() > (fromFilters == null ? 0 : fromFilters.size());
+    }
+
+    // Commits a response that does not use write(), like commitHeaders(), and returns what was
+    // sent as {head without the blank line that ends it, body} for the response cache. The
+    // returned head leaves out the headers marked by markFilterHeaders().
+    byte[][] commitCaptured() throws IOException {
+        c = true;
+        byte[] bodyData;
+        if (bStr != null) {
+            bodyData = bStr.getBytes(StandardCharsets.UTF_8);
+        } else if (bby != null) {
+            bodyData = bby;
+        } else {
+            bodyData = new byte[0];
+        }
+        StringBuilder sb = statusAndHeaders(filterHdrs);
+        sb.append("Content-Length: ").append(bodyData.length).append("\r\n");
+        byte[] head = sb.toString().getBytes(StandardCharsets.UTF_8);
+        out.write(head);
+        out.write(filterHeaderLines());
+        out.write(CRLF);
+        out.write(bodyData);
+        return new byte[][] { head, bodyData };
+    }
+
+    // The status line and the header fields, except for one occurrence of each value in 'skip'.
+    private StringBuilder statusAndHeaders(Map<String, List<String>> skip) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("HTTP/1.1 ")
+          .append(sc).append(" ")
+          .append(rp).append("\r\n");
+
+        for (Map.Entry<String, List<String>> e : hdrs.entrySet()) {
+            List<String> values = e.getValue();
+            List<String> skipped = skip.get(e.getKey());
+            if (skipped != null) {
+                values = new ArrayList<>(values);
+                for (String v : skipped) {
+                    values.remove(v);
                 }
-                out.flush();
+            }
+            for (String v : values) {
+                sb.append(e.getKey())
+                  .append(": ")
+                  .append(v)
+                  .append("\r\n");
             }
         }
+        return sb;
+    }
+
+    // First value of a header set so far (by lower-case name), or null.
+    String getHeader(String lowerName) {
+        List<String> v = hdrs.get(lowerName);
+        return (v == null || v.isEmpty()) ? null : v.get(0);
     }
 
     public static class HaltException extends RuntimeException {
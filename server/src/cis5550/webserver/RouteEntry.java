@@ -1,14 +1,105 @@
 package cis5550.webserver;
 
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.regex.Pattern;
+
 public class RouteEntry {
     public final String method;
     public final String pathPattern;
     public final Route handler;
 
+    // The non-empty segments of the pattern, e.g. {"users", ":id{\d+}", "*"} for
+    // "/users/:id{\d+}/*"; the parameter each one captures (null for a literal, "*" for a
+    // splat); and the compiled constraint of each regex-constrained parameter. A regex applies
+    // to a single segment, so it cannot contain '/'. An invalid one fails at registration.
+    final String[] segments;
+    final String[] paramNames;
+    final Pattern[] constraints;
+
+    // The before and after filters that apply to this route, in registration order; Server
+    // replaces them whenever a filter is added.
+    volatile Filter[] beforeFilters = NO_FILTERS;
+    volatile Filter[] afterFilters = NO_FILTERS;
+    static final Filter[] NO_FILTERS = new Filter[0];
+
+    // Response caching (see ResponseCache); a TTL of 0 means off.
+    volatile long cacheTtlMs = 0;
+    volatile String[] cacheQueryParams = new String[0];
+    volatile String[] cacheHeaders = new String[0];
+
+    private volatile long maxBodyBytes = -1;
+    private volatile long asyncTimeoutMs = -1;
+
     public RouteEntry(String method, String pathPattern, Route handler) {
         this.method = method;
         this.pathPattern = pathPattern;
         this.handler = handler;
+        this.segments = Arrays.stream(pathPattern.split("/")).filter(s -> !s.isEmpty()).toArray(String[]::new);
+        this.paramNames = new String[segments.length];
+        this.constraints = new Pattern[segments.length];
+        for (int i = 0; i < segments.length; i++) {
+            String seg = segments[i];
+            if (seg.equals("*")) {
+                paramNames[i] = "*";
+            } else if (seg.charAt(0) == ':') {
+                int brace = seg.indexOf('{');
+                if (brace > 0 && seg.endsWith("}")) {
+                    paramNames[i] = seg.substring(1, brace);
+                    constraints[i] = Pattern.compile(seg.substring(brace + 1, seg.length() - 1));
+                } else {
+                    paramNames[i] = seg.substring(1);
+                }
+            }
+        }
+    }
+
+    // True if segment i is a '*' that ends the pattern and takes the rest of the path.
+    boolean isTail(int i) {
+        return i == segments.length - 1 && "*".equals(paramNames[i]);
+    }
+
+    // Largest request body this route accepts. Longer bodies are answered with 413, before
+    // the handler runs if the client declared the length. -1 (the default) uses
+    // Server.maxBodySize().
+    public RouteEntry maxBodySize(long bytes) {
+        this.maxBodyBytes = bytes;
+        return this;
+    }
+
+    long maxBodySize() {
+        return (maxBodyBytes >= 0) ? maxBodyBytes : Server.maxBodySize();
+    }
+
+    // How long a CompletionStage returned by the handler may take before the client gets a
+    // 504 and the connection is closed; 0 waits forever. -1 (the default) uses
+    // Server.asyncTimeout().
+    public RouteEntry timeout(long ms) {
+        this.asyncTimeoutMs = ms;
+        return this;
+    }
+
+    // Caches this route's GET responses for ttlSeconds, keyed by the decoded path and the given
+    // query parameters; other query parameters do not tell responses apart. The responses go
+    // out with Cache-Control: max-age (unless the handler sets Cache-Control itself), and hits
+    // with an Age header. Before filters run on every request, after filters and the handler
+    // only on a miss.
+    public RouteEntry cache(int ttlSeconds, String... queryParams) {
+        this.cacheQueryParams = queryParams.clone();
+        this.cacheTtlMs = Math.max(0, ttlSeconds) * 1000L;
+        return this;
+    }
+
+    // Request headers that also tell cached responses apart; they are listed in Vary.
+    public RouteEntry cacheByHeaders(String... names) {
+        String[] lower = new String[names.length];
+        for (int i = 0; i < names.length; i++) lower[i] = names[i].toLowerCase(Locale.ROOT);
+        this.cacheHeaders = lower;
+        return this;
+    }
+
+    long asyncTimeout() {
+        return (asyncTimeoutMs >= 0) ? asyncTimeoutMs : Server.asyncTimeout();
     }
 }
 
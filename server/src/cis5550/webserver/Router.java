@@ -0,0 +1,206 @@
+package cis5550.webserver;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// The routes compiled into one segment trie per method. A lookup walks the request path one
+// segment at a time without splitting or copying it. At each level it tries, in this order, a
+// literal segment, the regex-constrained params (:id{\d+}, in registration order), a plain
+// :param or '*', and finally a trailing '*' that takes the rest of the path (one segment or
+// more), backtracking whenever a branch does not lead to a route. Among routes of the same
+// shape, the one registered first wins. Routers are immutable; Server compiles a new one
+// on the first lookup after routes were added.
+final class Router {
+
+    static final class Match {
+        final RouteEntry entry;
+        final Map<String, String> params;
+        final List<String> splat;     // what each '*' matched, in order
+
+        Match(RouteEntry entry, Map<String, String> params, List<String> splat) {
+            this.entry = entry;
+            this.params = params;
+            this.splat = splat;
+        }
+    }
+
+    private static final class Node {
+        String[] literals = new String[0];     // sorted
+        Node[] literalNodes = new Node[0];     // literalNodes[i] follows literals[i]
+        Constraint[] constraints = new Constraint[0];
+        Node[] constrainedNodes = new Node[0];
+        Node param;                            // any other non-empty segment
+        Node tail;                             // a trailing '*'
+        RouteEntry entry;                      // route that ends at this node, if any
+
+        Node literal(String path, int start, int end) {
+            int lo = 0, hi = literals.length - 1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                int c = compare(literals[mid], path, start, end);
+                if (c < 0) {
+                    lo = mid + 1;
+                } else if (c > 0) {
+                    hi = mid - 1;
+                } else {
+                    return literalNodes[mid];
+                }
+            }
+            return null;
+        }
+
+        Node addLiteral(String segment) {
+            int i = Arrays.binarySearch(literals, segment);
+            if (i >= 0) return literalNodes[i];
+            i = -i - 1;
+            Node child = new Node();
+            String[] ls = new String[literals.length + 1];
+            Node[] ns = new Node[literals.length + 1];
+            System.arraycopy(literals, 0, ls, 0, i);
+            System.arraycopy(literalNodes, 0, ns, 0, i);
+            ls[i] = segment;
+            ns[i] = child;
+            System.arraycopy(literals, i, ls, i + 1, literals.length - i);
+            System.arraycopy(literalNodes, i, ns, i + 1, literals.length - i);
+            literals = ls;
+            literalNodes = ns;
+            return child;
+        }
+
+        Node addConstrained(Pattern p) {
+            for (int i = 0; i < constraints.length; i++) {
+                if (constraints[i].pattern.pattern().equals(p.pattern())) return constrainedNodes[i];
+            }
+            Node child = new Node();
+            constraints = Arrays.copyOf(constraints, constraints.length + 1);
+            constrainedNodes = Arrays.copyOf(constrainedNodes, constrainedNodes.length + 1);
+            constraints[constraints.length - 1] = new Constraint(p);
+            constrainedNodes[constrainedNodes.length - 1] = child;
+            return child;
+        }
+    }
+
+    // A :param{regex} check. Digit-only patterns, by far the most common, are checked by hand;
+    // any other pattern reuses one Matcher per thread instead of allocating one per check.
+    static final class Constraint {
+        final Pattern pattern;
+        final boolean digits;
+        final ThreadLocal<Matcher> matcher;
+
+        Constraint(Pattern p) {
+            pattern = p;
+            digits = p.flags() == 0 && (p.pattern().equals("\\d+") || p.pattern().equals("[0-9]+"));
+            matcher = digits ? null : ThreadLocal.withInitial(() -> p.matcher(""));
+        }
+
+        boolean matches(String path, int start, int end) {
+            if (digits) {
+                for (int i = start; i < end; i++) {
+                    char c = path.charAt(i);
+                    if (c < '0' || c > '9') return false;
+                }
+                return end > start;
+            }
+            return matcher.get().reset(path).region(start, end).matches();
+        }
+    }
+
+    private final Map<String, Node> roots = new HashMap<>();
+
+    static Router compile(List<RouteEntry> routes) {
+        Router r = new Router();
+        for (RouteEntry e : routes) {
+            Node node = r.roots.computeIfAbsent(e.method, m -> new Node());
+            for (int i = 0; i < e.segments.length; i++) {
+                if (e.isTail(i)) {
+                    if (node.tail == null) node.tail = new Node();
+                    node = node.tail;
+                } else if (e.constraints[i] != null) {
+                    node = node.addConstrained(e.constraints[i]);
+                } else if (e.paramNames[i] != null) {
+                    if (node.param == null) node.param = new Node();
+                    node = node.param;
+                } else {
+                    node = node.addLiteral(e.segments[i]);
+                }
+            }
+            if (node.entry == null) node.entry = e;
+        }
+        return r;
+    }
+
+    // Returns the route for the (decoded) path, or null. Empty segments are ignored, so "/a//b/"
+    // is looked up like "/a/b".
+    Match find(String method, String path) {
+        Node root = roots.get(method);
+        if (root == null) return null;
+
+        int n = 0;
+        for (int i = 0, len = path.length(); i < len; i++) {
+            if (path.charAt(i) != '/' && (i == 0 || path.charAt(i - 1) == '/')) n++;
+        }
+        int[] bounds = new int[2 * n];
+        int k = 0;
+        for (int i = 0, len = path.length(); i < len; ) {
+            if (path.charAt(i) == '/') {
+                i++;
+                continue;
+            }
+            int end = path.indexOf('/', i);
+            if (end < 0) end = len;
+            bounds[k++] = i;
+            bounds[k++] = end;
+            i = end;
+        }
+
+        RouteEntry e = walk(root, path, bounds, 0, n);
+        if (e == null) return null;
+        Map<String, String> params = new HashMap<>();
+        List<String> splat = List.of();
+        for (int i = 0; i < e.segments.length; i++) {
+            String name = e.paramNames[i];
+            if (name == null) continue;
+            int end = e.isTail(i) ? bounds[2 * n - 1] : bounds[2 * i + 1];
+            String value = path.substring(bounds[2 * i], end);
+            if (name.equals("*")) {
+                if (splat.isEmpty()) splat = new ArrayList<>();
+                splat.add(value);
+            } else {
+                params.put(name, value);
+            }
+        }
+        return new Match(e, params, splat);
+    }
+
+    private static RouteEntry walk(Node node, String path, int[] bounds, int depth, int n) {
+        if (depth == n) return node.entry;
+        int start = bounds[2 * depth], end = bounds[2 * depth + 1];
+        RouteEntry e;
+        Node lit = node.literal(path, start, end);
+        if (lit != null && (e = walk(lit, path, bounds, depth + 1, n)) != null) return e;
+        for (int i = 0; i < node.constraints.length; i++) {
+            if (node.constraints[i].matches(path, start, end)
+                    && (e = walk(node.constrainedNodes[i], path, bounds, depth + 1, n)) != null) {
+                return e;
+            }
+        }
+        if (node.param != null && (e = walk(node.param, path, bounds, depth + 1, n)) != null) return e;
+        return (node.tail == null) ? null : node.tail.entry;
+    }
+
+    // Compares a literal with path[start, end) the way String.compareTo would.
+    private static int compare(String literal, String path, int start, int end) {
+        int len = end - start;
+        int min = Math.min(literal.length(), len);
+        for (int i = 0; i < min; i++) {
+            int d = literal.charAt(i) - path.charAt(start + i);
+            if (d != 0) return d;
+        }
+        return literal.length() - len;
+    }
+}
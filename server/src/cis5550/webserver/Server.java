@@ -3,16 +3,23 @@ package cis5550.webserver;
 import cis5550.tools.Logger;
 
 import java.io.*;
+import java.lang.reflect.Method;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.URLDecoder;
+import java.nio.channels.ServerSocketChannel;
 import java.nio.charset.StandardCharsets;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.*;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.security.KeyStore;
 import java.security.SecureRandom;
@@ -27,12 +34,33 @@ public class Server {
     private static final Logger logger = Logger.getLogger(Server.class);
 
     public static final int NUM_WORKERS = 100;
+    public static final int DEFAULT_QUEUE_CAPACITY = 1024;
+    public static final long DEFAULT_FILE_CACHE_BYTES = 64L * 1024 * 1024;
+    public static final int DEFAULT_FILE_CACHE_MAX_FILE = 256 * 1024;
+    public static final int DEFAULT_WRITE_BUFFER = 8 * 1024;
+    public static final int DEFAULT_HEADER_TIMEOUT_MS = 10_000;
+    public static final int DEFAULT_BODY_TIMEOUT_MS = 30_000;
+    public static final int DEFAULT_IDLE_TIMEOUT_MS = 15_000;
+    public static final int DEFAULT_WRITE_TIMEOUT_MS = 30_000;
+    public static final int DEFAULT_ASYNC_TIMEOUT_MS = 30_000;
+    public static final long DEFAULT_RESPONSE_CACHE_BYTES = 16L * 1024 * 1024;
+    public static final int DEFAULT_TLS_HOST_CACHE = 1000;
+    public static final int DEFAULT_TLS_SESSION_CACHE = 20480;
+    public static final int DEFAULT_TLS_SESSION_TIMEOUT_S = 24 * 60 * 60;
+
+    static final byte[] SERVICE_UNAVAILABLE = ("HTTP/1.1 503 Service Unavailable\r\n" +
+            "Server: CIS5550Server\r\nRetry-After: 1\r\nContent-Type: text/plain\r\n" +
+            "Content-Length: 23\r\nConnection: close\r\n\r\n503 Service Unavailable").getBytes(StandardCharsets.US_ASCII);
 
     private final int port;
     private final String rootDir;
-    private final ConnectionQueue connQueue = new ConnectionQueue();
+    private final ConnectionQueue connQueue;
 
     static final List<RouteEntry> routes = new CopyOnWriteArrayList<>();
+    private static volatile Router router = Router.compile(routes);
+    private static volatile boolean routerStale = false;    // set by addRoute, guarded by routes
+    private static final List<FilterEntry> beforeFilters = new ArrayList<>();    // guarded by routes
+    private static final List<FilterEntry> afterFilters = new ArrayList<>();
 
     //    private long startTime = System.currentTimeMillis();  
     // private int connectionCount = 0;                      
@@ -44,6 +72,35 @@ public class Server {
     private static String configuredRoot = ".";
 
     private static int configuredSecurePort = 0;
+    private static int configuredEventLoops = 0;
+    private static boolean configuredVirtualThreads = false;
+    private static int configuredQueueCapacity = DEFAULT_QUEUE_CAPACITY;
+    private static long configuredFileCacheBytes = DEFAULT_FILE_CACHE_BYTES;
+    private static int configuredFileCacheMaxFile = DEFAULT_FILE_CACHE_MAX_FILE;
+    private static volatile int configuredWriteBuffer = DEFAULT_WRITE_BUFFER;
+    private static volatile long configuredMaxBody = Long.MAX_VALUE;
+    private static volatile int configuredHeaderTimeout = DEFAULT_HEADER_TIMEOUT_MS;
+    private static volatile int configuredBodyTimeout = DEFAULT_BODY_TIMEOUT_MS;
+    private static volatile int configuredIdleTimeout = DEFAULT_IDLE_TIMEOUT_MS;
+    private static volatile int configuredWriteTimeout = DEFAULT_WRITE_TIMEOUT_MS;
+    private static volatile long configuredAsyncTimeout = DEFAULT_ASYNC_TIMEOUT_MS;
+    private static long configuredResponseCacheBytes = DEFAULT_RESPONSE_CACHE_BYTES;
+    private static volatile ResponseCache responseCache = null;
+    private static volatile int configuredMaxHeadSize = RequestHead.MAX_HEAD_BYTES;
+    private static volatile int configuredMaxRequests = 0;
+    private static boolean configuredParking = true;
+    private static volatile boolean configuredHttp2 = true;
+    private static volatile int configuredTlsHostCache = DEFAULT_TLS_HOST_CACHE;
+    private static volatile int configuredTlsWarmup = 0;
+    private static int configuredTlsSessionCache = DEFAULT_TLS_SESSION_CACHE;
+    private static int configuredTlsSessionTimeout = DEFAULT_TLS_SESSION_TIMEOUT_S;
+    private static boolean configuredTlsSessionTickets = true;
+    private static String[] configuredTlsProtocols = null;
+    private static String[] configuredTlsCipherSuites = null;
+
+    private ExecutorService connExecutor = null;
+    private Worker connWorker = null;
+    private ParkingLot parkingLot = null;
 
     private static final String KEYSTORE_FILENAME = "keystore.jks";
     private static final String KEYSTORE_PASSWORD = "secret";
@@ -62,20 +119,300 @@ public class Server {
         configuredSecurePort = p;
     }
 
+    // Serves the plain port (and the secure port, if one is set) from a few selector threads
+    // instead of the worker pool; 0 (the default) keeps the thread-per-connection workers.
+    public static void eventLoops(int n) {
+        configuredEventLoops = n;
+    }
+
+    // Gives every accepted connection its own virtual thread instead of queueing it for the
+    // fixed worker pool. Virtual threads need JDK 21; on older JVMs the mode falls back to one
+    // platform thread per connection, at most queueCapacity() of them, and answers further
+    // connections with 503.
+    public static void virtualThreads(boolean enabled) {
+        configuredVirtualThreads = enabled;
+    }
+
+    // Whether the worker pool hands idle keep-alive connections to a selector thread between
+    // requests (the default) instead of blocking a worker on each of them. Only affects
+    // plaintext connections in the default worker-pool mode.
+    public static void parkIdleConnections(boolean enabled) {
+        configuredParking = enabled;
+    }
+
+    // Maximum number of accepted connections waiting for a worker. Beyond that, new
+    // connections get an immediate 503 instead of waiting in the queue.
+    public static void queueCapacity(int n) {
+        configuredQueueCapacity = n;
+    }
+
+    // How many bytes Response.write() collects before sending them as one chunk. With 0,
+    // every write() goes out immediately as its own chunk.
+    public static void writeBufferSize(int bytes) {
+        configuredWriteBuffer = Math.max(0, bytes);
+    }
+
+    static int writeBufferSize() {
+        return configuredWriteBuffer;
+    }
+
+    // Largest request body any route accepts unless the route sets its own limit with
+    // RouteEntry.maxBodySize(). Unlimited by default.
+    public static void maxBodySize(long bytes) {
+        configuredMaxBody = (bytes < 0) ? Long.MAX_VALUE : bytes;
+    }
+
+    static long maxBodySize() {
+        return configuredMaxBody;
+    }
+
+    // Time a client gets to send a complete request head once its first byte has arrived;
+    // slower clients get a 408 and are disconnected.
+    public static void headerTimeout(int ms) {
+        configuredHeaderTimeout = ms;
+    }
+
+    // Longest pause allowed between two reads of a request body.
+    public static void bodyTimeout(int ms) {
+        configuredBodyTimeout = ms;
+    }
+
+    // How long an open connection may sit idle waiting for its next request.
+    public static void idleTimeout(int ms) {
+        configuredIdleTimeout = ms;
+    }
+
+    // How long a single write may stay blocked because the client is not reading.
+    public static void writeTimeout(int ms) {
+        configuredWriteTimeout = ms;
+    }
+
+    // How long a route that returns a CompletableFuture (or other CompletionStage) may take to
+    // complete it, unless the route sets its own with RouteEntry.timeout(); 0 waits forever.
+    public static void asyncTimeout(long ms) {
+        configuredAsyncTimeout = Math.max(0, ms);
+    }
+
+    static long asyncTimeout() {
+        return configuredAsyncTimeout;
+    }
+
+    // Memory budget shared by the responses of all routes that use RouteEntry.cache(). Must be
+    // called before the first cached response is stored.
+    public static void responseCache(long maxBytes) {
+        configuredResponseCacheBytes = maxBytes;
+    }
+
+    static ResponseCache responseCache() {
+        ResponseCache c = responseCache;
+        if (c == null) {
+            synchronized (Server.class) {
+                if (responseCache == null) {
+                    responseCache = new ResponseCache(configuredResponseCacheBytes);
+                }
+                c = responseCache;
+            }
+        }
+        return c;
+    }
+
+    static ResponseCache responseCacheIfCreated() {
+        return responseCache;
+    }
+
+    // Largest request head (request line plus header fields); larger ones get a 431.
+    public static void maxHeadSize(int bytes) {
+        configuredMaxHeadSize = bytes;
+    }
+
+    // Number of requests served on one connection before it is closed; 0 means no limit.
+    public static void maxRequestsPerConnection(int n) {
+        configuredMaxRequests = n;
+    }
+
+    // Whether clients may speak HTTP/2: negotiated through ALPN on the secure port, or with
+    // the prior-knowledge preface on the plain port (worker-pool and virtual-thread modes).
+    public static void http2(boolean enabled) {
+        configuredHttp2 = enabled;
+    }
+
+    static boolean http2() {
+        return configuredHttp2;
+    }
+
+    static int headerTimeout() {
+        return configuredHeaderTimeout;
+    }
+
+    static int bodyTimeout() {
+        return configuredBodyTimeout;
+    }
+
+    static int idleTimeout() {
+        return configuredIdleTimeout;
+    }
+
+    static int writeTimeout() {
+        return configuredWriteTimeout;
+    }
+
+    static int maxHeadSize() {
+        return configuredMaxHeadSize;
+    }
+
+    static int maxRequestsPerConnection() {
+        return configuredMaxRequests;
+    }
+
+    // Most per-host keystores (see host()) kept loaded at once; the least recently used ones
+    // are dropped and loaded again on their next handshake.
+    public static void tlsHostCache(int n) {
+        configuredTlsHostCache = Math.max(1, n);
+    }
+
+    // Threads that preload per-host keystores in the background once the TLS listener is up
+    // and after each reloadCertificates(); with 0, a host's keystore is loaded on its first
+    // handshake.
+    public static void tlsWarmup(int threads) {
+        configuredTlsWarmup = Math.max(0, threads);
+    }
+
+    // Sessions kept for resumption (0 means no limit), and how long a session may be resumed.
+    // Must be called before the TLS listener starts.
+    public static void tlsSessionCache(int size, int timeoutSeconds) {
+        configuredTlsSessionCache = Math.max(0, size);
+        configuredTlsSessionTimeout = Math.max(0, timeoutSeconds);
+    }
+
+    // Whether resumption uses stateless session tickets (TLS 1.3, and TLS 1.2 clients that
+    // ask for them) instead of the server-side session cache.
+    public static void tlsSessionTickets(boolean enabled) {
+        configuredTlsSessionTickets = enabled;
+    }
+
+    // Protocol versions the TLS listener accepts, e.g. "TLSv1.3", "TLSv1.2"; null restores the
+    // JDK default. Names the JDK does not support are skipped with a warning.
+    public static void tlsProtocols(String... protocols) {
+        configuredTlsProtocols = (protocols == null || protocols.length == 0) ? null : protocols.clone();
+    }
+
+    // Cipher suites in order of preference; the server's order wins over the client's. null
+    // restores the JDK default.
+    public static void tlsCipherSuites(String... suites) {
+        configuredTlsCipherSuites = (suites == null || suites.length == 0) ? null : suites.clone();
+    }
+
+    static int tlsSessionCacheSize() {
+        return configuredTlsSessionCache;
+    }
+
+    static int tlsSessionTimeout() {
+        return configuredTlsSessionTimeout;
+    }
+
+    static boolean tlsSessionTickets() {
+        return configuredTlsSessionTickets;
+    }
+
+    static String[] tlsProtocols() {
+        return configuredTlsProtocols;
+    }
+
+    static String[] tlsCipherSuites() {
+        return configuredTlsCipherSuites;
+    }
+
+    static int tlsHostCacheSize() {
+        return configuredTlsHostCache;
+    }
+
+    static int tlsWarmupThreads() {
+        return configuredTlsWarmup;
+    }
+
     public static synchronized void host(String hostname, String keystoreFile, String password) {
         SniManager.host(hostname, keystoreFile, password);
     }
 
-    public static void get(String path, Route r) {
-        addRoute("GET", path, r);
+    // Re-reads the default keystore and every keystore registered with host() (including ones
+    // added after startup) and switches the running TLS listeners over atomically.
+    public static void reloadCertificates() throws Exception {
+        SniManager.reload();
+    }
+
+    // Adding a route only marks the trie stale; it is rebuilt once, on the next lookup, so
+    // registering N routes does not compile it N times.
+    static Router router() {
+        if (routerStale) {
+            synchronized (routes) {
+                if (routerStale) {
+                    router = Router.compile(routes);
+                    routerStale = false;
+                }
+            }
+        }
+        return router;
     }
 
-    public static void post(String path, Route r) {
-        addRoute("POST", path, r);
+    public static RouteEntry get(String path, Route r) {
+        return addRoute("GET", path, r);
     }
 
-    public static void put(String path, Route r) {
-        addRoute("PUT", path, r);
+    public static RouteEntry post(String path, Route r) {
+        return addRoute("POST", path, r);
+    }
+
+    public static RouteEntry put(String path, Route r) {
+        return addRoute("PUT", path, r);
+    }
+
+    // Serves ServerStats.snapshot() at 'path' (say, "/stats") as plain text, one "name value"
+    // line per counter. Nothing is registered unless the application asks for it.
+    public static RouteEntry stats(String path) {
+        return get(path, (req, res) -> {
+            res.type("text/plain");
+            res.header("Cache-Control", "no-store");
+            StringBuilder sb = new StringBuilder();
+            for (Map.Entry<String, Long> e : ServerStats.snapshot().entrySet()) {
+                sb.append(e.getKey()).append(' ').append(e.getValue()).append('\n');
+            }
+            return sb.toString();
+        });
+    }
+
+    // Filters run around every routed request whose path the filter's path pattern matches (see
+    // FilterEntry), or around every route if no path is given: before filters ahead of the
+    // handler, after filters once it has returned but before the response is sent. Either can
+    // stop the request with halt(). Static files are not filtered.
+    public static void before(Filter f) {
+        addFilter(beforeFilters, null, f);
+    }
+
+    public static void before(String path, Filter f) {
+        addFilter(beforeFilters, path, f);
+    }
+
+    public static void after(Filter f) {
+        addFilter(afterFilters, null, f);
+    }
+
+    public static void after(String path, Filter f) {
+        addFilter(afterFilters, path, f);
+    }
+
+    private static void addFilter(List<FilterEntry> list, String path, Filter f) {
+        FilterEntry entry = new FilterEntry(path, f);
+        synchronized (routes) {
+            list.add(entry);
+            for (RouteEntry re : routes) {
+                resolveFilters(re);
+            }
+        }
+    }
+
+    private static void resolveFilters(RouteEntry re) {
+        re.beforeFilters = beforeFilters.stream().map(fe -> fe.forRoute(re)).filter(Objects::nonNull).toArray(Filter[]::new);
+        re.afterFilters = afterFilters.stream().map(fe -> fe.forRoute(re)).filter(Objects::nonNull).toArray(Filter[]::new);
     }
 
     public static class staticFiles {
@@ -83,11 +420,25 @@ public class Server {
             configuredRoot = p;
             launchIfNeeded();
         }
+
+        // Memory budget for cached static files, and the largest file whose bytes are kept in
+        // memory (larger files only have their metadata cached). A budget of 0 disables the
+        // cache. Must be called before location() or the first route.
+        public static void cache(long maxBytes, int maxFileBytes) {
+            configuredFileCacheBytes = maxBytes;
+            configuredFileCacheMaxFile = maxFileBytes;
+        }
     }
 
-    private static void addRoute(String method, String path, Route r) {
-        routes.add(new RouteEntry(method, path, r));
+    private static RouteEntry addRoute(String method, String path, Route r) {
+        RouteEntry entry = new RouteEntry(method, path, r);
+        synchronized (routes) {
+            resolveFilters(entry);
+            routes.add(entry);
+            routerStale = true;
+        }
         launchIfNeeded();
+        return entry;
     }
 
     private static synchronized void launchIfNeeded() {
@@ -107,13 +458,32 @@ public class Server {
     public Server(int port, String rootDir) {
         this.port = port;
         this.rootDir = rootDir;
+        this.connQueue = new ConnectionQueue(configuredQueueCapacity);
     }
 
     public void start() {
-        for (int i = 0; i < NUM_WORKERS; i++) {
-            Thread w = new Thread(new Worker(connQueue, rootDir), "Worker-" + i);
-            w.setDaemon(true);
-            w.start();
+        boolean useNio = configuredEventLoops > 0;
+        FileCache fileCache = (configuredFileCacheBytes > 0) ? new FileCache(configuredFileCacheBytes, configuredFileCacheMaxFile) : null;
+        StaticFiles staticFiles = new StaticFiles(rootDir, fileCache);
+        if (configuredVirtualThreads) {
+            connExecutor = newVirtualThreadExecutor();
+            connWorker = new Worker(null, null, staticFiles, connExecutor);
+        } else if (!useNio) {
+            if (configuredParking) {
+                try {
+                    parkingLot = new ParkingLot(connQueue);
+                    Thread t = new Thread(parkingLot, "Parking-Lot");
+                    t.setDaemon(true);
+                    t.start();
+                } catch (IOException ioe) {
+                    logger.warn("Cannot open a selector for idle connections: " + ioe.getMessage());
+                }
+            }
+            for (int i = 0; i < NUM_WORKERS; i++) {
+                Thread w = new Thread(new Worker(connQueue, parkingLot, staticFiles), "Worker-" + i);
+                w.setDaemon(true);
+                w.start();
+            }
         }
 
         Thread sessionCleanup = new Thread(() -> {
@@ -144,10 +514,14 @@ public class Server {
         ServerSocket tlsServerSocket = null;
 
         try {
-            serverSocket = new ServerSocket(port);
-            logger.info("Server started on port " + port + " serving directory " + rootDir);
+            if (!useNio) {
+                // Channel-backed, so plaintext sockets can use FileChannel.transferTo.
+                serverSocket = ServerSocketChannel.open().socket();
+                serverSocket.bind(new InetSocketAddress(port));
+                logger.info("Server started on port " + port + " serving directory " + rootDir);
+            }
 
-            if (configuredSecurePort > 0) {
+            if (configuredSecurePort > 0 && !useNio) {
                 try {
                     tlsServerSocket = SniManager.createTlsServerSocket(configuredSecurePort, KEYSTORE_FILENAME, KEYSTORE_PASSWORD);
                      logger.info("TLS server started on port " + configuredSecurePort);
@@ -163,7 +537,7 @@ public class Server {
                         while (true) {
                             try {
                                 Socket client = finalTls.accept();
-                                connQueue.enqueue(client);
+                                dispatch(client);
                             } catch (IOException ioe) {
                                 logger.debug("TLS accept error: " + ioe.getMessage());
                             }
@@ -176,10 +550,27 @@ public class Server {
                 acceptTls.start();
             }
 
+            if (useNio) {
+                logger.info("Server started on port " + port + " serving directory " + rootDir);
+                // The event loops serve the secure port too, so TLS connections do not hold
+                // a thread while they wait.
+                SSLContext tlsContext = null;
+                if (configuredSecurePort > 0) {
+                    try {
+                        tlsContext = SniManager.createSslContext(KEYSTORE_FILENAME, KEYSTORE_PASSWORD);
+                    } catch (Exception e) {
+                        logger.error("Failed to set up TLS for port " + configuredSecurePort + ": " + e.getMessage(), e);
+                    }
+                }
+                new NioEngine(port, configuredSecurePort, tlsContext, configuredEventLoops, NUM_WORKERS,
+                        new Worker(null, null, staticFiles)).run();
+                return;
+            }
+
             try {
                 while (true) {
                     Socket client = serverSocket.accept();
-                    connQueue.enqueue(client);
+                    dispatch(client);
                 }
             } finally {
                 try { serverSocket.close(); } catch (IOException ignored) {}
@@ -194,6 +585,59 @@ public class Server {
         }
     }
 
+    private void dispatch(Socket client) {
+        ServerStats.acceptedConnections.increment();
+        if (connExecutor != null) {
+            try {
+                connExecutor.execute(() -> connWorker.serve(new Connection(client)));
+            } catch (RejectedExecutionException ree) {
+                ServerStats.rejectedConnections.increment();
+                rejectOverloaded(client);
+            }
+        } else if (!connQueue.enqueue(new Connection(client))) {
+            ServerStats.rejectedConnections.increment();
+            rejectOverloaded(client);
+        }
+    }
+
+    // Runs on the acceptor thread, so it must stay cheap: plain sockets get the pre-encoded 503,
+    // TLS sockets are just closed rather than paying for a handshake.
+    private static void rejectOverloaded(Socket client) {
+        try {
+            if (!(client instanceof javax.net.ssl.SSLSocket)) {
+                client.getOutputStream().write(SERVICE_UNAVAILABLE);
+            }
+        } catch (IOException ignored) {
+        } finally {
+            try { client.close(); } catch (IOException ignored) {}
+        }
+    }
+
+    int queueDepth() {
+        return connQueue.depth();
+    }
+
+    int parkedConnections() {
+        return (parkingLot == null) ? 0 : parkingLot.size();
+    }
+
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            ExecutorService es = (ExecutorService) m.invoke(null);
+            logger.info("Serving connections on virtual threads");
+            return es;
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            logger.warn("Virtual threads need JDK 21; using a platform thread per connection, at most " + configuredQueueCapacity);
+            // No queue: once every thread is busy, execute() throws and dispatch() sends a 503.
+            return new ThreadPoolExecutor(0, Math.max(1, configuredQueueCapacity), 60, TimeUnit.SECONDS, new SynchronousQueue<>(), r -> {
+                Thread t = new Thread(r, "Conn-Thread");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+    }
+
     static SessionImpl getSessionById(String id) {
         return sessions.get(id);
     }
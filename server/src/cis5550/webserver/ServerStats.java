@@ -0,0 +1,164 @@
+package cis5550.webserver;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+// Counters for tuning the server under load. Components bump the adders directly; the
+// getters below are what applications (or the route Server.stats() adds) should read.
+public class ServerStats {
+
+    static final LongAdder acceptedConnections = new LongAdder();
+    static final LongAdder rejectedConnections = new LongAdder();
+
+    // Connections closed by one of the limits configured on Server.
+    static final LongAdder idleTimeouts = new LongAdder();
+    static final LongAdder headerTimeouts = new LongAdder();
+    static final LongAdder bodyTimeouts = new LongAdder();
+    static final LongAdder writeTimeouts = new LongAdder();
+    static final LongAdder headTooLarge = new LongAdder();
+    static final LongAdder maxRequestsReached = new LongAdder();
+
+    static final LongAdder http2Connections = new LongAdder();
+    static final LongAdder http2Streams = new LongAdder();
+    static final LongAdder http2RefusedStreams = new LongAdder();
+
+    static final LongAdder responseCacheHits = new LongAdder();
+    static final LongAdder responseCacheMisses = new LongAdder();
+
+    static final LongAdder tlsFullHandshakes = new LongAdder();
+    static final LongAdder tlsResumedHandshakes = new LongAdder();
+    static final LongAdder tlsFailedHandshakes = new LongAdder();
+    static final LongAdder tlsHandshakeMicros = new LongAdder();
+    static final LongAccumulator tlsHandshakeMaxMicros = new LongAccumulator(Math::max, 0);
+
+    public static long acceptedConnections() {
+        return acceptedConnections.sum();
+    }
+
+    // Connections answered with 503 because the worker queue was full.
+    public static long rejectedConnections() {
+        return rejectedConnections.sum();
+    }
+
+    public static long idleTimeouts() {
+        return idleTimeouts.sum();
+    }
+
+    public static long headerTimeouts() {
+        return headerTimeouts.sum();
+    }
+
+    public static long bodyTimeouts() {
+        return bodyTimeouts.sum();
+    }
+
+    public static long writeTimeouts() {
+        return writeTimeouts.sum();
+    }
+
+    public static long headTooLarge() {
+        return headTooLarge.sum();
+    }
+
+    public static long maxRequestsReached() {
+        return maxRequestsReached.sum();
+    }
+
+    // Connections that switched to HTTP/2, the request streams they carried, and the streams
+    // refused with REFUSED_STREAM because every stream thread was busy.
+    public static long http2Connections() {
+        return http2Connections.sum();
+    }
+
+    public static long http2Streams() {
+        return http2Streams.sum();
+    }
+
+    public static long http2RefusedStreams() {
+        return http2RefusedStreams.sum();
+    }
+
+    // Completed TLS handshakes that set up a new session, and ones that resumed an earlier
+    // session (from the session cache or a ticket) and so skipped the key exchange.
+    public static long tlsFullHandshakes() {
+        return tlsFullHandshakes.sum();
+    }
+
+    public static long tlsResumedHandshakes() {
+        return tlsResumedHandshakes.sum();
+    }
+
+    public static long tlsFailedHandshakes() {
+        return tlsFailedHandshakes.sum();
+    }
+
+    // Time from the start of a handshake to its completion, over all completed handshakes.
+    public static long tlsHandshakeAvgMicros() {
+        long n = tlsFullHandshakes.sum() + tlsResumedHandshakes.sum();
+        return (n == 0) ? 0 : tlsHandshakeMicros.sum() / n;
+    }
+
+    public static long tlsHandshakeMaxMicros() {
+        return tlsHandshakeMaxMicros.get();
+    }
+
+    // Lookups in the route response cache (see RouteEntry.cache()), entries pushed out by its
+    // byte budget, and the bytes it holds.
+    public static long responseCacheHits() {
+        return responseCacheHits.sum();
+    }
+
+    public static long responseCacheMisses() {
+        return responseCacheMisses.sum();
+    }
+
+    public static long responseCacheEvictions() {
+        ResponseCache c = Server.responseCacheIfCreated();
+        return (c == null) ? 0 : c.evictions();
+    }
+
+    public static long responseCacheBytes() {
+        ResponseCache c = Server.responseCacheIfCreated();
+        return (c == null) ? 0 : c.bytes();
+    }
+
+    public static int queueDepth() {
+        Server s = Server.getServerInstance();
+        return (s == null) ? 0 : s.queueDepth();
+    }
+
+    // Idle keep-alive connections currently waiting in the parking lot.
+    public static int parkedConnections() {
+        Server s = Server.getServerInstance();
+        return (s == null) ? 0 : s.parkedConnections();
+    }
+
+    public static Map<String, Long> snapshot() {
+        Map<String, Long> m = new LinkedHashMap<>();
+        m.put("connections.accepted", acceptedConnections());
+        m.put("connections.rejected", rejectedConnections());
+        m.put("closed.idle_timeout", idleTimeouts());
+        m.put("closed.header_timeout", headerTimeouts());
+        m.put("closed.body_timeout", bodyTimeouts());
+        m.put("closed.write_timeout", writeTimeouts());
+        m.put("closed.head_too_large", headTooLarge());
+        m.put("closed.max_requests", maxRequestsReached());
+        m.put("http2.connections", http2Connections());
+        m.put("http2.streams", http2Streams());
+        m.put("http2.refused", http2RefusedStreams());
+        m.put("tls.handshakes.full", tlsFullHandshakes());
+        m.put("tls.handshakes.resumed", tlsResumedHandshakes());
+        m.put("tls.handshakes.failed", tlsFailedHandshakes());
+        m.put("tls.handshake_us.avg", tlsHandshakeAvgMicros());
+        m.put("tls.handshake_us.max", tlsHandshakeMaxMicros());
+        m.put("cache.hits", responseCacheHits());
+        m.put("cache.misses", responseCacheMisses());
+        m.put("cache.evictions", responseCacheEvictions());
+        m.put("cache.bytes", responseCacheBytes());
+        m.put("queue.depth", (long) queueDepth());
+        m.put("connections.parked", (long) parkedConnections());
+        return m;
+    }
+}
@@ -1,23 +1,45 @@
 package cis5550.webserver;
 
-import java.io.FileInputStream;
-import java.lang.reflect.Method;
+import java.io.File;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.security.KeyStore;
 import java.security.PrivateKey;
 import java.security.Principal;
 import java.security.cert.X509Certificate;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
+import javax.net.ssl.ExtendedSSLSession;
 import javax.net.ssl.KeyManager;
 import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SNIHostName;
+import javax.net.ssl.SNIServerName;
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
 import javax.net.ssl.X509ExtendedKeyManager;
 
+// Picks the certificate for each TLS handshake from the SNI host name the client sent. The
+// configuration lives in an immutable Certs snapshot; reload() builds a new one from 'hosts'
+// and swaps it in atomically, so listeners keep running and handshakes in progress finish
+// with the certificates they started with. Only the default keystore is loaded up front: a
+// host's keystore is loaded on its first handshake (or by the optional warm-up) and kept in
+// a bounded LRU cache, so thousands of hosts neither delay startup nor all sit in memory. A
+// host whose keystore cannot be loaded gets the default certificate until a retry succeeds.
+// The aliases handed to the JSSE are qualified with the snapshot generation and the host,
+// which lets getCertificateChain/getPrivateKey go straight to the right key manager.
 public class SniManager {
 
     static class Host {
@@ -28,7 +50,87 @@ public class SniManager {
         }
     }
 
-    static Map<String,Host> hosts = new HashMap<>();
+    static Map<String,Host> hosts = new ConcurrentHashMap<>();
+
+    // How long a keystore that failed to load is left alone before the next attempt.
+    static final long RETRY_MS = 60_000;
+
+    // One generation of certificates.
+    static final class Certs {
+        final int generation;
+        final String defFile, defPw;
+        final KeyMgr def;
+        final Map<String,Host> byHost;      // lower-case host (or "*.domain") -> keystore
+        final LruCache<String,KeyMgr> loaded;
+        final Map<String,CompletableFuture<KeyMgr>> loading = new ConcurrentHashMap<>();
+        final Map<String,Long> failedUntil = new ConcurrentHashMap<>();
+
+        Certs(int generation, String defFile, String defPw, KeyMgr def, Map<String,Host> byHost, int cacheSize) {
+            this.generation = generation;
+            this.defFile = defFile;
+            this.defPw = defPw;
+            this.def = def;
+            this.byHost = byHost;
+            this.loaded = new LruCache<>(cacheSize, m -> 1);
+        }
+
+        // Exact name first, then a wildcard entry for its parent domain; "" is the default.
+        String resolve(String host) {
+            if (host == null) return "";
+            if (byHost.containsKey(host)) return host;
+            int dot = host.indexOf('.');
+            if (dot > 0) {
+                String wildcard = "*" + host.substring(dot);
+                if (byHost.containsKey(wildcard)) return wildcard;
+            }
+            return "";
+        }
+
+        // The key manager for a resolved key, loading the host's keystore if it is not cached.
+        // Concurrent handshakes for the same host wait for a single load. Returns null if the
+        // keystore cannot be loaded.
+        KeyMgr get(String key) {
+            if (key.isEmpty()) return def;
+            KeyMgr m = loaded.get(key);
+            if (m != null) return m;
+            Long until = failedUntil.get(key);
+            if (until != null && System.currentTimeMillis() < until) return null;
+
+            CompletableFuture<KeyMgr> mine = new CompletableFuture<>();
+            CompletableFuture<KeyMgr> other = loading.putIfAbsent(key, mine);
+            if (other != null) return other.join();
+            try {
+                m = loadHost(key);
+            } finally {
+                loading.remove(key);
+                mine.complete(m);
+            }
+            return m;
+        }
+
+        private KeyMgr loadHost(String key) {
+            Host h = byHost.get(key);
+            if (h == null) return null;
+            try {
+                KeyMgr m = load(h.file, h.pass);
+                failedUntil.remove(key);
+                loaded.put(key, m);
+                return m;
+            } catch (Exception e) {
+                System.err.println("SniManager: failed for " + key + ": " + e.getMessage());
+                failedUntil.put(key, System.currentTimeMillis() + RETRY_MS);
+                // After a reload, keep serving the certificate the last generation had loaded.
+                Certs p = previous;
+                KeyMgr kept = (p != null && p.generation < generation) ? p.loaded.get(key) : null;
+                if (kept != null) loaded.put(key, kept);
+                return kept;
+            }
+        }
+    }
+
+    // The current snapshot, and the one before it for handshakes that straddle a reload.
+    private static volatile Certs current;
+    private static volatile Certs previous;
 
     public static void host(String name, String file, String pw) {
         if (name == null) return;
@@ -36,54 +138,129 @@ public class SniManager {
     }
 
     public static ServerSocket createTlsServerSocket(int port, String defFile, String defPw) throws Exception {
-        KeyMgr def = load(defFile, defPw);
-        Map<String,KeyMgr> others = new HashMap<>();
+        SSLContext ctx = createSslContext(defFile, defPw);
+        SSLServerSocket ss = (SSLServerSocket) ctx.getServerSocketFactory().createServerSocket(port);
+        SSLParameters params = ss.getSSLParameters();
+        configure(ctx, params, Server.http2() ? new String[] { "h2", "http/1.1" } : new String[0]);
+        ss.setSSLParameters(params);
+        return ss;
+    }
 
-        for (String n : hosts.keySet()) {
-            Host h = hosts.get(n);
-            try {
-                others.put(n, load(h.file, h.pass));
-            } catch (Exception e) {
-                System.err.println("SniManager: failed for " + n);
+    // The context behind both the blocking TLS socket and the NIO engine's SSLEngines.
+    public static SSLContext createSslContext(String defFile, String defPw) throws Exception {
+        synchronized (SniManager.class) {
+            if (current == null) {
+                install(build(defFile, defPw, null));
             }
         }
-
+        // The JSSE reads this when the context is created; it decides whether resumption uses
+        // stateless tickets or the session cache below.
+        System.setProperty("jdk.tls.server.enableSessionTicketExtension", String.valueOf(Server.tlsSessionTickets()));
         SSLContext ctx = SSLContext.getInstance("TLS");
-        ctx.init(new KeyManager[]{ new MyMgr(def, others) }, null, null);
-        return ctx.getServerSocketFactory().createServerSocket(port);
+        ctx.init(new KeyManager[]{ new MyMgr() }, null, null);
+        SSLSessionContext sessions = ctx.getServerSessionContext();
+        sessions.setSessionCacheSize(Server.tlsSessionCacheSize());
+        sessions.setSessionTimeout(Server.tlsSessionTimeout());
+        return ctx;
     }
 
-    static KeyMgr load(String f, String p) throws Exception {
-        Exception last = null;
-        try {
-            KeyStore ks = KeyStore.getInstance("JKS");
-            try (FileInputStream fis = new FileInputStream(f)) {
-                ks.load(fis, p.toCharArray());
-            }
-            KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
-            kmf.init(ks, p.toCharArray());
-            for (KeyManager km : kmf.getKeyManagers()) {
-                if (km instanceof X509ExtendedKeyManager) return new KeyMgr((X509ExtendedKeyManager) km);
-            }
-        } catch (Exception e) {
-            last = e;
+    // Applies the configured protocols and cipher suite preference, and the given ALPN
+    // protocols, to the parameters of a listener or engine created from ctx.
+    static void configure(SSLContext ctx, SSLParameters params, String[] alpn) {
+        SSLParameters supported = ctx.getSupportedSSLParameters();
+        String[] protocols = Server.tlsProtocols();
+        if (protocols != null) {
+            params.setProtocols(keepSupported(protocols, supported.getProtocols(), "protocol"));
+        }
+        String[] suites = Server.tlsCipherSuites();
+        if (suites != null) {
+            params.setCipherSuites(keepSupported(suites, supported.getCipherSuites(), "cipher suite"));
+            params.setUseCipherSuitesOrder(true);
         }
+        params.setApplicationProtocols(alpn);
+    }
 
-        try {
-            KeyStore ks = KeyStore.getInstance("PKCS12");
-            try (FileInputStream fis = new FileInputStream(f)) {
-                ks.load(fis, p.toCharArray());
-            }
-            KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
-            kmf.init(ks, p.toCharArray());
-            for (KeyManager km : kmf.getKeyManagers()) {
-                if (km instanceof X509ExtendedKeyManager) return new KeyMgr((X509ExtendedKeyManager) km);
+    private static String[] keepSupported(String[] wanted, String[] supported, String what) {
+        List<String> known = Arrays.asList(supported);
+        List<String> kept = new ArrayList<>();
+        for (String w : wanted) {
+            if (known.contains(w)) {
+                kept.add(w);
+            } else {
+                System.err.println("SniManager: ignoring unsupported " + what + " " + w);
             }
-        } catch (Exception e) {
-            if (last != null) e.addSuppressed(last);
-            throw e;
         }
+        return kept.toArray(new String[0]);
+    }
+
+    // Counts a completed handshake that started at startNanos (System.nanoTime()). A resumed
+    // session keeps the creation time of the handshake that first set it up, so a session
+    // older than this handshake was resumed.
+    static void handshakeCompleted(SSLSession session, long startNanos) {
+        long micros = (System.nanoTime() - startNanos) / 1000;
+        long startedAt = System.currentTimeMillis() - micros / 1000 - 1;
+        if (session.getCreationTime() < startedAt) {
+            ServerStats.tlsResumedHandshakes.increment();
+        } else {
+            ServerStats.tlsFullHandshakes.increment();
+        }
+        ServerStats.tlsHandshakeMicros.add(micros);
+        ServerStats.tlsHandshakeMaxMicros.accumulate(micros);
+    }
+
+    // Reloads the default keystore and switches all listeners to a snapshot of 'hosts'
+    // (including hosts added since the last load), whose keystores are then loaded afresh as
+    // they are needed. If the default keystore cannot be loaded, nothing changes; a host whose
+    // keystore fails keeps its previous certificate if that was loaded.
+    public static synchronized void reload() throws Exception {
+        Certs old = current;
+        if (old == null) {
+            throw new IllegalStateException("No TLS listener has been set up");
+        }
+        install(build(old.defFile, old.defPw, old));
+    }
 
+    private static void install(Certs c) {
+        previous = current;
+        current = c;
+        warmUp(c, Server.tlsWarmupThreads());
+    }
+
+    private static Certs build(String defFile, String defPw, Certs old) throws Exception {
+        KeyMgr def = load(defFile, defPw);
+        return new Certs((old == null) ? 1 : old.generation + 1, defFile, defPw, def,
+                         Map.copyOf(hosts), Server.tlsHostCacheSize());
+    }
+
+    // Loads host keystores (as many as the cache holds) on background threads, so the first
+    // handshakes for those hosts do not wait for it. Stops early if the snapshot is replaced.
+    private static void warmUp(Certs c, int threads) {
+        if (threads <= 0 || c.byHost.isEmpty()) return;
+        ExecutorService pool = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "SNI-Warmup");
+            t.setDaemon(true);
+            return t;
+        });
+        int n = 0;
+        for (String key : c.byHost.keySet()) {
+            if (n++ >= Server.tlsHostCacheSize()) break;
+            pool.execute(() -> {
+                if (current == c) c.get(key);
+            });
+        }
+        pool.shutdown();
+    }
+
+    // KeyStore.getInstance(File, ...) works out whether the file is JKS or PKCS12 itself, so
+    // each keystore is read and unlocked once.
+    static KeyMgr load(String f, String p) throws Exception {
+        char[] pw = p.toCharArray();
+        KeyStore ks = KeyStore.getInstance(new File(f), pw);
+        KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        kmf.init(ks, pw);
+        for (KeyManager km : kmf.getKeyManagers()) {
+            if (km instanceof X509ExtendedKeyManager) return new KeyMgr((X509ExtendedKeyManager) km);
+        }
         throw new RuntimeException("no key manager found");
     }
 
@@ -94,91 +271,102 @@ public class SniManager {
         }
     }
 
+    // Aliases look like "<generation>:<host key>:<alias of the underlying key manager>", with
+    // an empty host key for the default keystore.
     static class MyMgr extends X509ExtendedKeyManager {
-        KeyMgr def;
-        Map<String,KeyMgr> others;
 
-        MyMgr(KeyMgr def, Map<String,KeyMgr> others) {
-            this.def = def;
-            this.others = others;
+        private static String qualify(Certs c, String key, String alias) {
+            return (alias == null) ? null : c.generation + ":" + key + ":" + alias;
         }
 
-        KeyMgr pick(Socket s) {
+        private static String[] qualify(Certs c, String key, String[] aliases) {
+            if (aliases == null) return null;
+            String[] q = new String[aliases.length];
+            for (int i = 0; i < aliases.length; i++) q[i] = qualify(c, key, aliases[i]);
+            return q;
+        }
+
+        // Returns {key manager, underlying alias}, or null for an alias we did not hand out.
+        private static Object[] lookup(String alias) {
+            if (alias == null) return null;
+            int a = alias.indexOf(':');
+            int b = (a < 0) ? -1 : alias.indexOf(':', a + 1);
+            if (b < 0) return null;
+            int generation;
             try {
-                String host = getHost(s);
-                if (host != null) {
-                    KeyMgr m = others.get(host.toLowerCase(Locale.ROOT));
-                    if (m != null) return m;
+                generation = Integer.parseInt(alias.substring(0, a));
+            } catch (NumberFormatException nfe) {
+                return null;
+            }
+            Certs c = current;
+            if (c == null || c.generation != generation) c = previous;
+            if (c == null || c.generation != generation) return null;
+            KeyMgr m = c.get(alias.substring(a + 1, b));
+            return (m == null) ? null : new Object[] { m, alias.substring(b + 1) };
+        }
+
+        private static String requestedHost(SSLSession session) {
+            if (!(session instanceof ExtendedSSLSession)) return null;
+            List<SNIServerName> names = ((ExtendedSSLSession) session).getRequestedServerNames();
+            for (SNIServerName n : names) {
+                if (n instanceof SNIHostName) {
+                    return ((SNIHostName) n).getAsciiName().toLowerCase(Locale.ROOT);
                 }
-            } catch (Throwable ignored) {}
-            return def;
+            }
+            return null;
         }
 
         public String[] getClientAliases(String k, Principal[] p) {
-            return def.base.getClientAliases(k, p);
+            Certs c = current;
+            return qualify(c, "", c.def.base.getClientAliases(k, p));
         }
 
         public String chooseClientAlias(String[] k, Principal[] p, Socket s) {
-            return def.base.chooseClientAlias(k, p, s);
+            Certs c = current;
+            return qualify(c, "", c.def.base.chooseClientAlias(k, p, s));
         }
 
         public String[] getServerAliases(String k, Principal[] p) {
-            return def.base.getServerAliases(k, p);
+            Certs c = current;
+            return qualify(c, "", c.def.base.getServerAliases(k, p));
         }
 
         public String chooseServerAlias(String k, Principal[] p, Socket s) {
-            return pick(s).base.chooseServerAlias(k, p, s);
+            Certs c = current;
+            SSLSession hs = (s instanceof SSLSocket) ? ((SSLSocket) s).getHandshakeSession() : null;
+            String key = c.resolve(requestedHost(hs));
+            KeyMgr m = c.get(key);
+            if (m == null) {
+                key = "";
+                m = c.def;
+            }
+            return qualify(c, key, m.base.chooseServerAlias(k, p, s));
         }
 
         public X509Certificate[] getCertificateChain(String a) {
-            X509Certificate[] c = def.base.getCertificateChain(a);
-            if (c != null) return c;
-            for (KeyMgr m : others.values()) {
-                X509Certificate[] cc = m.base.getCertificateChain(a);
-                if (cc != null) return cc;
-            }
-            return null;
+            Object[] m = lookup(a);
+            return (m == null) ? null : ((KeyMgr) m[0]).base.getCertificateChain((String) m[1]);
         }
 
         public PrivateKey getPrivateKey(String a) {
-            PrivateKey pk = def.base.getPrivateKey(a);
-            if (pk != null) return pk;
-            for (KeyMgr m : others.values()) {
-                PrivateKey p = m.base.getPrivateKey(a);
-                if (p != null) return p;
-            }
-            return null;
+            Object[] m = lookup(a);
+            return (m == null) ? null : ((KeyMgr) m[0]).base.getPrivateKey((String) m[1]);
         }
 
         public String chooseEngineClientAlias(String[] k, Principal[] p, SSLEngine e) {
-            return def.base.chooseEngineClientAlias(k, p, e);
+            Certs c = current;
+            return qualify(c, "", c.def.base.chooseEngineClientAlias(k, p, e));
         }
 
         public String chooseEngineServerAlias(String k, Principal[] p, SSLEngine e) {
-            return def.base.chooseEngineServerAlias(k, p, e);
-        }
-    }
-
-    private static String getHost(Socket s) {
-        if (s == null) return null;
-        try {
-            Class<?> c = Class.forName("cis5550.tools.SNIInspector");
-            for (Method m : c.getMethods()) {
-                Class<?>[] pts = m.getParameterTypes();
-                if (pts.length == 1 && pts[0].isAssignableFrom(s.getClass()) && m.getReturnType() == String.class) {
-                    try {
-                        Object r;
-                        if (java.lang.reflect.Modifier.isStatic(m.getModifiers())) {
-                            r = m.invoke(null, s);
-                        } else {
-                            Object inst = c.getDeclaredConstructor().newInstance();
-                            r = m.invoke(inst, s);
-                        }
-                        if (r instanceof String) return (String) r;
-                    } catch (Throwable t) {}
-                }
+            Certs c = current;
+            String key = c.resolve(requestedHost(e.getHandshakeSession()));
+            KeyMgr m = c.get(key);
+            if (m == null) {
+                key = "";
+                m = c.def;
             }
-        } catch (Throwable ignored) {}
-        return null;
+            return qualify(c, key, m.base.chooseEngineServerAlias(k, p, e));
+        }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,488 @@
+package cis5550.webserver;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.zip.GZIPOutputStream;
+
+// Serves GET/HEAD requests for files under the static root. One instance is shared by all
+// workers so that they share the file cache.
+class StaticFiles {
+
+    private static final int MIN_COMPRESS_BYTES = 256;
+    private static final int MAX_COMPRESS_BYTES = 8 * 1024 * 1024;
+    private static final long GZIP_CACHE_BYTES = 32L * 1024 * 1024;
+    private static final byte[] NOT_SMALLER = new byte[0];
+    private static final int MAX_RANGES = 64;
+    private static final String BOUNDARY = "CIS5550_" + Long.toHexString(new Random().nextLong());
+
+    private static final Map<String, String> CONTENT_TYPES = new HashMap<>();
+    static {
+        CONTENT_TYPES.put("jpg", "image/jpeg");
+        CONTENT_TYPES.put("jpeg", "image/jpeg");
+        CONTENT_TYPES.put("png", "image/png");
+        CONTENT_TYPES.put("gif", "image/gif");
+        CONTENT_TYPES.put("webp", "image/webp");
+        CONTENT_TYPES.put("ico", "image/x-icon");
+        CONTENT_TYPES.put("svg", "image/svg+xml");
+        CONTENT_TYPES.put("txt", "text/plain");
+        CONTENT_TYPES.put("html", "text/html");
+        CONTENT_TYPES.put("htm", "text/html");
+        CONTENT_TYPES.put("css", "text/css");
+        CONTENT_TYPES.put("csv", "text/csv");
+        CONTENT_TYPES.put("js", "application/javascript");
+        CONTENT_TYPES.put("mjs", "application/javascript");
+        CONTENT_TYPES.put("json", "application/json");
+        CONTENT_TYPES.put("xml", "application/xml");
+        CONTENT_TYPES.put("wasm", "application/wasm");
+        CONTENT_TYPES.put("pdf", "application/pdf");
+        CONTENT_TYPES.put("zip", "application/zip");
+        CONTENT_TYPES.put("gz", "application/gzip");
+        CONTENT_TYPES.put("mp3", "audio/mpeg");
+        CONTENT_TYPES.put("mp4", "video/mp4");
+        CONTENT_TYPES.put("webm", "video/webm");
+        CONTENT_TYPES.put("woff", "font/woff");
+        CONTENT_TYPES.put("woff2", "font/woff2");
+    }
+
+    private final String rootDir;
+    private final String rootCanonical;
+    private final FileCache cache;
+    private final LruCache<String, byte[]> gzipCache = new LruCache<>(GZIP_CACHE_BYTES, b -> 64 + b.length);
+
+    StaticFiles(String rootDir, FileCache cache) {
+        this.rootDir = rootDir;
+        this.cache = cache;
+
+        try {
+            this.rootCanonical = new File(rootDir).getCanonicalPath();
+        } catch (IOException e) {
+            throw new RuntimeException("Invalid root directory " + rootDir, e);
+        }
+    }
+
+    // Returns whether the connection can be kept alive.
+    boolean serve(Connection conn, String method, String decodedPath, RequestHead head) throws IOException {
+        BufferedOutputStream out = conn.out;
+
+        FileCache.Entry entry = (cache != null) ? cache.get(decodedPath) : null;
+        if (entry == null) {
+            File requestedFile = new File(rootDir, decodedPath);
+            String reqCanonical;
+            try {
+                reqCanonical = requestedFile.getCanonicalPath();
+            } catch (IOException e) {
+                Worker.sendError(out, 404, "Not Found", method);
+                return false;
+            }
+
+            if (!reqCanonical.equals(rootCanonical) && !reqCanonical.startsWith(rootCanonical + File.separator)) {
+                Worker.sendError(out, 403, "Forbidden", method);
+                return false;
+            }
+
+            File f = new File(reqCanonical);
+            if (!f.exists()) {
+                Worker.sendError(out, 404, "Not Found", method);
+                return false;
+            }
+
+            if (!f.isFile() || !f.canRead()) {
+                Worker.sendError(out, 403, "Forbidden", method);
+                return false;
+            }
+
+            long length = f.length();
+            long lastModified = f.lastModified();
+            byte[] body = null;
+            if (cache != null && length <= cache.maxFileBytes()) {
+                body = readSmallFile(f, length);
+            }
+            File gz = null;
+            if (isCompressible(getContentType(reqCanonical))) {
+                File candidate = new File(reqCanonical + ".gz");
+                if (candidate.isFile() && candidate.canRead() && candidate.lastModified() >= lastModified) {
+                    gz = candidate;
+                }
+            }
+            entry = new FileCache.Entry(f, reqCanonical, length, lastModified, body, gz);
+            if (cache != null && (body != null || length > cache.maxFileBytes())) {
+                cache.put(decodedPath, entry);
+            }
+        }
+
+        String contentType = getContentType(entry.canonical);
+        boolean compressible = isCompressible(contentType);
+        boolean wantsGzip = compressible && acceptsGzip(head.get(RequestHead.H_ACCEPT_ENCODING));
+        String clientConn = head.get(RequestHead.H_CONNECTION);
+        clientConn = (clientConn == null) ? "" : clientConn.toLowerCase();
+
+        // If-None-Match wins over If-Modified-Since; both only ever produce a 304 here.
+        String inm = head.get(RequestHead.H_IF_NONE_MATCH);
+        String matchedEtag = null;
+        boolean notModified;
+        if (inm != null) {
+            if (etagMatches(inm, entry.etag)) {
+                matchedEtag = entry.etag;
+            } else if (wantsGzip) {
+                String gzEtag = gzipEtag(entry);
+                if (gzEtag != null && etagMatches(inm, gzEtag)) {
+                    matchedEtag = gzEtag;
+                }
+            }
+            notModified = (matchedEtag != null);
+        } else if (head.get(RequestHead.H_IF_MODIFIED_SINCE) != null) {
+            long since = HttpDate.parse(head.get(RequestHead.H_IF_MODIFIED_SINCE));
+            notModified = since >= 0 && entry.lastModified / 1000 <= since / 1000;
+        } else {
+            notModified = false;
+        }
+
+        if (notModified) {
+            StringBuilder resp = new StringBuilder();
+            resp.append("HTTP/1.1 304 Not Modified\r\n");
+            resp.append("Server: CIS5550Server\r\n");
+            resp.append("Date: ").append(HttpDate.now()).append("\r\n");
+            if (matchedEtag != null) {
+                resp.append("ETag: ").append(matchedEtag).append("\r\n");
+            }
+            resp.append("Last-Modified: ").append(entry.lastModifiedHttp).append("\r\n");
+            if (compressible) {
+                resp.append("Vary: Accept-Encoding\r\n");
+            }
+            if ("close".equals(clientConn)) {
+                resp.append("Connection: close\r\n");
+            } else {
+                resp.append("Connection: keep-alive\r\n");
+            }
+            resp.append("\r\n");
+            out.write(resp.toString().getBytes(StandardCharsets.UTF_8));
+            return !"close".equals(clientConn);
+        }
+
+        long totalLength = entry.length;
+        long[][] ranges = null;
+        if (head.get(RequestHead.H_RANGE) != null) {
+            ranges = parseRanges(head.get(RequestHead.H_RANGE), totalLength);
+            if (ranges != null && ranges.length == 0) {
+                StringBuilder resp = new StringBuilder();
+                resp.append("HTTP/1.1 416 Range Not Satisfiable\r\n");
+                resp.append("Server: CIS5550Server\r\n");
+                resp.append("Date: ").append(HttpDate.now()).append("\r\n");
+                resp.append("Content-Range: bytes */").append(totalLength).append("\r\n");
+                resp.append("Content-Length: 0\r\n");
+                resp.append("Connection: ").append("close".equals(clientConn) ? "close" : "keep-alive").append("\r\n");
+                resp.append("\r\n");
+                out.write(resp.toString().getBytes(StandardCharsets.UTF_8));
+                return !"close".equals(clientConn);
+            }
+        }
+        boolean isPartial = (ranges != null);
+        boolean isMultipart = isPartial && ranges.length > 1;
+        long sendStart = isPartial ? ranges[0][0] : 0;
+        long sendEnd = isPartial ? ranges[0][1] : totalLength - 1;
+
+        // Ranges always refer to the identity encoding, so only whole-file responses are
+        // compressed.
+        byte[] bodyBytes = entry.body;
+        File bodyFile = entry.file;
+        boolean gzipped = false;
+        String etag = entry.etag;
+        if (wantsGzip && !isPartial) {
+            if (entry.gz != null) {
+                bodyBytes = null;
+                bodyFile = entry.gz;
+                sendStart = 0;
+                totalLength = entry.gzLength;
+                gzipped = true;
+                etag = entry.gzEtag;
+            } else {
+                byte[] compressed = compressed(entry);
+                if (compressed != null) {
+                    bodyBytes = compressed;
+                    sendStart = 0;
+                    totalLength = compressed.length;
+                    gzipped = true;
+                    etag = gzipEtag(compressed.length, entry.lastModified);
+                }
+            }
+        }
+
+        // For multipart/byteranges the part headers are built up front so that the exact
+        // Content-Length is known before any file data is sent.
+        byte[][] partHeads = null;
+        byte[] closingBoundary = null;
+        long contentLengthToSend;
+        if (isMultipart) {
+            partHeads = new byte[ranges.length][];
+            contentLengthToSend = 0;
+            for (int i = 0; i < ranges.length; i++) {
+                String partHead = "\r\n--" + BOUNDARY + "\r\n"
+                        + "Content-Type: " + contentType + "\r\n"
+                        + "Content-Range: bytes " + ranges[i][0] + "-" + ranges[i][1] + "/" + totalLength + "\r\n\r\n";
+                partHeads[i] = partHead.getBytes(StandardCharsets.US_ASCII);
+                contentLengthToSend += partHeads[i].length + (ranges[i][1] - ranges[i][0] + 1);
+            }
+            closingBoundary = ("\r\n--" + BOUNDARY + "--\r\n").getBytes(StandardCharsets.US_ASCII);
+            contentLengthToSend += closingBoundary.length;
+        } else {
+            contentLengthToSend = isPartial ? (sendEnd - sendStart) + 1 : totalLength;
+        }
+
+        StringBuilder respHeaders = new StringBuilder();
+
+        if (isPartial) {
+            respHeaders.append("HTTP/1.1 206 Partial Content\r\n");
+        } else {
+            respHeaders.append("HTTP/1.1 200 OK\r\n");
+        }
+
+        respHeaders.append("Server: CIS5550Server\r\n");
+        if (isMultipart) {
+            respHeaders.append("Content-Type: multipart/byteranges; boundary=").append(BOUNDARY).append("\r\n");
+        } else {
+            respHeaders.append("Content-Type: ").append(contentType).append("\r\n");
+        }
+        respHeaders.append("Content-Length: ").append(contentLengthToSend).append("\r\n");
+        respHeaders.append("Accept-Ranges: bytes\r\n");
+        respHeaders.append("Date: ").append(HttpDate.now()).append("\r\n");
+        respHeaders.append("Last-Modified: ").append(entry.lastModifiedHttp).append("\r\n");
+        if (gzipped) {
+            respHeaders.append("Content-Encoding: gzip\r\n");
+        }
+        respHeaders.append("ETag: ").append(etag).append("\r\n");
+        if (compressible) {
+            respHeaders.append("Vary: Accept-Encoding\r\n");
+        }
+
+        if (isPartial && !isMultipart) {
+            respHeaders.append("Content-Range: bytes ")
+                       .append(sendStart).append("-").append(sendEnd)
+                       .append("/").append(totalLength).append("\r\n");
+        }
+
+        if ("close".equals(clientConn)) {
+            respHeaders.append("Connection: close\r\n");
+        } else {
+            respHeaders.append("Connection: keep-alive\r\n");
+        }
+
+        respHeaders.append("\r\n");
+        out.write(respHeaders.toString().getBytes(StandardCharsets.UTF_8));
+
+        if ("GET".equals(method) && contentLengthToSend > 0) {
+            if (isMultipart) {
+                try (FileChannel fc = (bodyBytes == null) ? FileChannel.open(bodyFile.toPath(), StandardOpenOption.READ) : null) {
+                    for (int i = 0; i < ranges.length; i++) {
+                        out.write(partHeads[i]);
+                        sendBody(conn, bodyBytes, fc, ranges[i][0], ranges[i][1] - ranges[i][0] + 1);
+                    }
+                }
+                out.write(closingBoundary);
+            } else if (bodyBytes != null) {
+                out.write(bodyBytes, (int) sendStart, (int) contentLengthToSend);
+            } else {
+                try (FileChannel fc = FileChannel.open(bodyFile.toPath(), StandardOpenOption.READ)) {
+                    sendBody(conn, null, fc, sendStart, contentLengthToSend);
+                }
+            }
+        }
+
+        return !"close".equals(clientConn);
+    }
+
+    private static void sendBody(Connection conn, byte[] bodyBytes, FileChannel fc, long start, long count) throws IOException {
+        if (bodyBytes != null) {
+            conn.out.write(bodyBytes, (int) start, (int) count);
+            return;
+        }
+        conn.out.flush();
+        if (!conn.transferFile(fc, start, count)) {
+            copyFile(fc, start, count, conn.out);
+        }
+    }
+
+    // Parses a Range header against a representation of the given length. Returns null if the
+    // header should be ignored (not bytes, malformed, too many ranges, or more than two that
+    // overlap, which only serves to multiply the response), an empty array if no range is
+    // satisfiable, and otherwise the satisfiable ranges as inclusive {start, end} pairs, sorted,
+    // with overlapping and adjacent ones merged.
+    static long[][] parseRanges(String header, long length) {
+        String value = header.trim();
+        if (!value.regionMatches(true, 0, "bytes=", 0, 6)) {
+            return null;
+        }
+        String[] specs = value.substring(6).split(",");
+        if (specs.length > MAX_RANGES) {
+            return null;
+        }
+
+        List<long[]> result = new ArrayList<>(specs.length);
+        for (String raw : specs) {
+            String spec = raw.trim();
+            if (spec.isEmpty()) continue;
+            int dash = spec.indexOf('-');
+            if (dash < 0) return null;
+            try {
+                if (dash == 0) {
+                    long suffix = Long.parseLong(spec.substring(1));
+                    if (suffix < 0) return null;
+                    if (suffix > 0 && length > 0) {
+                        result.add(new long[] { Math.max(0, length - suffix), length - 1 });
+                    }
+                } else {
+                    long s = Long.parseLong(spec.substring(0, dash));
+                    long e = (dash == spec.length() - 1) ? length - 1 : Long.parseLong(spec.substring(dash + 1));
+                    if (s < 0 || (dash < spec.length() - 1 && e < s)) return null;
+                    if (s < length) {
+                        result.add(new long[] { s, Math.min(e, length - 1) });
+                    }
+                }
+            } catch (NumberFormatException nfe) {
+                return null;
+            }
+        }
+        if (result.isEmpty() && value.substring(6).trim().isEmpty()) {
+            return null;
+        }
+        return coalesce(result);
+    }
+
+    private static long[][] coalesce(List<long[]> ranges) {
+        ranges.sort((a, b) -> Long.compare(a[0], b[0]));
+        List<long[]> merged = new ArrayList<>(ranges.size());
+        int overlapping = 0;
+        for (long[] r : ranges) {
+            long[] last = merged.isEmpty() ? null : merged.get(merged.size() - 1);
+            if (last != null && r[0] <= last[1]) {
+                if (++overlapping > 1) return null;
+            }
+            if (last != null && r[0] <= last[1] + 1) {
+                last[1] = Math.max(last[1], r[1]);
+            } else {
+                merged.add(r);
+            }
+        }
+        return merged.toArray(new long[0][]);
+    }
+
+    // Gzipped copy of the file, compressed on first use and cached per path and mtime. Returns
+    // null if the file is too small or too large to bother, or if gzip does not make it smaller.
+    private byte[] compressed(FileCache.Entry entry) throws IOException {
+        if (entry.length < MIN_COMPRESS_BYTES || entry.length > MAX_COMPRESS_BYTES) {
+            return null;
+        }
+        String key = entry.canonical + ":" + entry.lastModified;
+        byte[] gz = gzipCache.get(key);
+        if (gz == null) {
+            byte[] raw = entry.body;
+            if (raw == null) {
+                raw = readSmallFile(entry.file, entry.length);
+                if (raw == null) return null;
+            }
+            ByteArrayOutputStream bos = new ByteArrayOutputStream(raw.length / 3 + 64);
+            try (GZIPOutputStream gzos = new GZIPOutputStream(bos, 8192)) {
+                gzos.write(raw);
+            }
+            gz = (bos.size() < raw.length) ? bos.toByteArray() : NOT_SMALLER;
+            gzipCache.put(key, gz);
+        }
+        return (gz == NOT_SMALLER) ? null : gz;
+    }
+
+    // The gzip representation needs its own strong validator, taken from the bytes that are
+    // actually sent: the .gz sibling's length and mtime, or the length of the compressed copy
+    // and the file's mtime. Null if the file does not go out gzipped.
+    private String gzipEtag(FileCache.Entry entry) throws IOException {
+        if (entry.gz != null) {
+            return entry.gzEtag;
+        }
+        byte[] compressed = compressed(entry);
+        return (compressed == null) ? null : gzipEtag(compressed.length, entry.lastModified);
+    }
+
+    static String gzipEtag(long gzLength, long lastModified) {
+        return "\"" + Long.toHexString(gzLength) + "-" + Long.toHexString(lastModified) + "-gz\"";
+    }
+
+    // Weak comparison, as If-None-Match requires.
+    static boolean etagMatches(String ifNoneMatch, String etag) {
+        String value = ifNoneMatch.trim();
+        if (value.equals("*")) return true;
+        for (String candidate : value.split(",")) {
+            String c = candidate.trim();
+            if (c.startsWith("W/")) c = c.substring(2);
+            if (c.equals(etag)) return true;
+        }
+        return false;
+    }
+
+    static boolean acceptsGzip(String acceptEncoding) {
+        if (acceptEncoding == null) return false;
+        for (String part : acceptEncoding.split(",")) {
+            String[] params = part.split(";");
+            String coding = params[0].trim();
+            if (!coding.equalsIgnoreCase("gzip") && !coding.equals("*")) continue;
+            for (int i = 1; i < params.length; i++) {
+                String p = params[i].trim();
+                if (p.startsWith("q=")) {
+                    try {
+                        if (Double.parseDouble(p.substring(2)) <= 0) return false;
+                    } catch (NumberFormatException nfe) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    static boolean isCompressible(String contentType) {
+        return contentType.startsWith("text/") || contentType.endsWith("javascript")
+                || contentType.endsWith("json") || contentType.endsWith("xml")
+                || contentType.equals("image/svg+xml") || contentType.equals("application/wasm");
+    }
+
+    private static byte[] readSmallFile(File f, long length) {
+        try (FileChannel fc = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer bb = ByteBuffer.allocate((int) length);
+            while (bb.hasRemaining()) {
+                if (fc.read(bb) < 0) return null;  // shrank while we were reading it
+            }
+            return bb.array();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    // Fallback for transports without zero-copy support (TLS).
+    private static void copyFile(FileChannel fc, long pos, long count, BufferedOutputStream out) throws IOException {
+        byte[] buf = new byte[16 * 1024];
+        ByteBuffer bb = ByteBuffer.wrap(buf);
+        while (count > 0) {
+            bb.clear();
+            bb.limit((int) Math.min(buf.length, count));
+            int n = fc.read(bb, pos);
+            if (n == -1) break;
+            out.write(buf, 0, n);
+            pos += n;
+            count -= n;
+        }
+    }
+
+    static String getContentType(String urlOrPath) {
+        String lower = urlOrPath.toLowerCase();
+        int dot = lower.lastIndexOf('.');
+        if (dot >= 0) {
+            String type = CONTENT_TYPES.get(lower.substring(dot + 1));
+            if (type != null) {
+                return type;
+            }
+        }
+        return "application/octet-stream";
+    }
+}
@@ -9,155 +9,208 @@ import java.net.URLDecoder;
 
 
 import java.nio.charset.StandardCharsets;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import javax.net.ssl.SSLSocket;
 
 class Worker implements Runnable {
 
     private final ConnectionQueue queue;
-    private final String rootDir;
-    private final String rootCanonical;
+    private final ParkingLot parking;     // null if idle connections stay on their thread
+    private final StaticFiles staticFiles;
+    private final Executor executor;      // virtual-thread mode: where resumed connections run
 
     private static final Logger logger = Logger.getLogger(Worker.class);
 
-    public Worker(ConnectionQueue queue, String rootDir) {
-        this.queue = queue;
-        this.rootDir = rootDir;
+    // Unread request bodies up to this size are skipped so the connection can be reused;
+    // longer ones close it instead.
+    static final long MAX_DRAIN_BYTES = 1024 * 1024;
 
-        try {
-            this.rootCanonical = new File(rootDir).getCanonicalPath();
-        } catch (IOException e) {
-            throw new RuntimeException("Invalid root directory " + rootDir, e);
-        }
+    public Worker(ConnectionQueue queue, ParkingLot parking, StaticFiles staticFiles) {
+        this(queue, parking, staticFiles, null);
+    }
+
+    Worker(ConnectionQueue queue, ParkingLot parking, StaticFiles staticFiles, Executor executor) {
+        this.queue = queue;
+        this.parking = parking;
+        this.staticFiles = staticFiles;
+        this.executor = executor;
     }
 
     public void run() {
         while (true) {
-            Socket socket = null;
+            Connection conn = null;
 
             try {
-                socket = queue.dequeue();
+                conn = queue.dequeue();
             } catch (InterruptedException ie) {
                 continue;
             }
 
-            try {
-                handleConnection(socket);
-            } catch (Throwable t) {
-                logger.error("Worker exception: " + t.getMessage(), t);
-            } finally {
-                try {
-                    if (socket != null && !socket.isClosed()) {
-                        socket.close();
-                    }
-                } catch (IOException ignored) {
-                }
-            }
+            serve(conn);
         }
     }
 
-    private void handleConnection(Socket socket) {
-        try (
-            BufferedInputStream in = new BufferedInputStream(socket.getInputStream(), 16 * 1024);
-            BufferedOutputStream out = new BufferedOutputStream(socket.getOutputStream(), 16 * 1024)
-        ) {
-            boolean keepAlive = true;
+    // Serves the connection on the calling thread until it is closed or parked; used directly
+    // by the virtual-thread mode, which has no queue.
+    void serve(Connection conn) {
+        boolean parked = false;
+        try {
+            parked = handleConnection(conn);
+        } catch (Throwable t) {
+            logger.error("Worker exception: " + t.getMessage(), t);
+        } finally {
+            if (!parked) {
+                conn.close();
+            }
+        }
+    }
 
-            while (keepAlive) {
-                boolean cont = processRequest(in, out, socket);
+    // Returns true if the connection went to the parking lot and must stay open.
+    private boolean handleConnection(Connection conn) {
+        try {
+            if (!conn.isOpen()) {
+                conn.open();
+                if (conn.socket instanceof SSLSocket ssl) {
+                    // The handshake settles the protocol; it gets the header timeout.
+                    ssl.setSoTimeout(Math.max(0, Server.headerTimeout()));
+                    long start = System.nanoTime();
+                    try {
+                        ssl.startHandshake();
+                    } catch (IOException e) {
+                        ServerStats.tlsFailedHandshakes.increment();
+                        throw e;
+                    }
+                    SniManager.handshakeCompleted(ssl.getSession(), start);
+                    if ("h2".equals(ssl.getApplicationProtocol())) {
+                        new Http2Connection(this, conn).serve(false);
+                        return false;
+                    }
+                }
+            }
+            HttpInput in = conn.in;
+            BufferedOutputStream out = conn.out;
+            int maxRequests = Server.maxRequestsPerConnection();
+
+            while (true) {
+                PendingRoute resumed = conn.takePending();
+                boolean cont = (resumed != null) ? resumed.finish() : processRequest(conn);
+                if (conn.pending != null) {
+                    // Responses to earlier pipelined requests must not wait on the future.
+                    out.flush();
+                    suspend(conn);
+                    return true;
+                }
                 if (!cont) {
                     break;
                 }
+                if (maxRequests > 0 && ++conn.served >= maxRequests) {
+                    ServerStats.maxRequestsReached.increment();
+                    break;
+                }
+                // Responses to pipelined requests are coalesced; the buffer goes out once no
+                // further complete request is waiting (or when the connection is closed).
+                if (!in.hasBufferedHead()) {
+                    out.flush();
+                }
+                // Nothing left to parse: rather than block this thread until the client sends
+                // its next request, hand the socket to the parking lot.
+                if (parking != null && in.buffered() == 0 && parking.park(conn)) {
+                    return true;
+                }
             }
         } catch (IOException e) {
             logger.debug("Connection IO error: " + e.getMessage());
         }
+        return false;
     }
 
 
-    private boolean processRequest(BufferedInputStream in, BufferedOutputStream out, Socket socket) {
-        try {
-            ByteArrayOutputStream headerBuf = new ByteArrayOutputStream();
-            int state = 0;
-            int b;
-
-            while (state < 4) {
-                b = in.read();
-
-                if (b == -1) {
-                    return false;
-                }
-
-                headerBuf.write(b);
-
-                if (b == '\r') {
-                    if (state == 0 || state == 2) state++;
-                    else state = 1;
-                } else if (b == '\n') {
-                    if (state == 1) state = 2;
-                    else if (state == 3) state = 4;
-                    else state = 0;
-                } else {
-                    state = 0;
+    // Lets go of a connection whose route answers asynchronously. Once the future is done, the
+    // connection goes back to a worker (or a new virtual thread), which sends the response and
+    // carries on with the connection. If the worker queue is full, the response is sent from
+    // the thread that completed the future and the connection is closed.
+    private void suspend(Connection conn) {
+        conn.pending.whenDone(() -> {
+            if (executor != null) {
+                try {
+                    executor.execute(() -> serve(conn));
+                    return;
+                } catch (RejectedExecutionException ree) {
+                    // the bounded platform-thread fallback is full
                 }
+            } else if (queue.enqueue(conn)) {
+                return;
             }
+            try {
+                conn.takePending().finish();
+            } finally {
+                conn.close();
+            }
+        });
+    }
 
-            String headerString = headerBuf.toString(StandardCharsets.UTF_8.name());
-            String[] lines = headerString.split("\r\n");
-
-            if (lines.length == 0) {
-                sendError(out, 400, "Bad Request", "GET");
+    // Answers one request. If its route returned a CompletionStage, this returns true with
+    // conn.pending set, and the caller has to see the request through (see PendingRoute).
+    boolean processRequest(Connection conn) {
+        HttpInput in = conn.in;
+        BufferedOutputStream out = conn.out;
+        try {
+            RequestHead head = in.readHead(Server.maxHeadSize());
+            if (head == null) {
                 return false;
             }
-
-            String[] reqParts = lines[0].split("\\s+");
-
-            if (reqParts.length != 3) {
-                sendError(out, 400, "Bad Request", "GET");
+            if (head.error == 408) {
+                sendError(out, 408, "Request Timeout", "GET");
                 return false;
             }
-
-            String method = reqParts[0];
-            String url = reqParts[1];
-            String version = reqParts[2];
-
-            if (!"HTTP/1.1".equals(version)) {
-                sendError(out, 505, "HTTP Version Not Supported", method);
+            if (head.error == 431) {
+                sendError(out, 431, "Request Header Fields Too Large", "GET");
+                return false;
+            }
+            if (head.error != 0) {
+                sendError(out, 400, "Bad Request", head.method != null ? head.method : "GET");
                 return false;
             }
 
-            Map<String, String> headers = new HashMap<>();
-            boolean hasHost = false;
-
-            for (int i = 1; i < lines.length; i++) {
-                String line = lines[i];
-                if (line == null || line.trim().isEmpty()) continue;
-
-                int colon = line.indexOf(':');
-                if (colon == -1) {
-                    sendError(out, 400, "Bad Request", method);
-                    return false;
+            String method = head.method;
+            String url = head.target;
+            String version = head.version;
+
+            // Prior-knowledge HTTP/2 on the plain port: the preface parses as a request head
+            // "PRI * HTTP/2.0" and is followed by "SM\r\n\r\n".
+            if ("PRI".equals(method) && "*".equals(url) && "HTTP/2.0".equals(version)
+                    && conn.socket != null && Server.http2()) {
+                byte[] rest = new byte[6];
+                if (in.readNBytes(rest, 0, 6) == 6 && "SM\r\n\r\n".equals(new String(rest, StandardCharsets.US_ASCII))) {
+                    new Http2Connection(this, conn).serve(true);
                 }
+                return false;
+            }
 
-                String key = line.substring(0, colon).trim().toLowerCase();
-                String value = line.substring(colon + 1).trim();
-                headers.put(key, value);
-
-                if ("host".equals(key)) {
-                    hasHost = true;
-                }
+            if (!"HTTP/1.1".equals(version)) {
+                sendError(out, 505, "HTTP Version Not Supported", method);
+                return false;
             }
 
-            if (!hasHost) {
+            if (head.get(RequestHead.H_HOST) == null) {
                 sendError(out, 400, "Bad Request", method);
                 return false;
             }
 
-            int contentLength = 0;
-            if (headers.containsKey("content-length")) {
+            long contentLength = 0;
+            String contentLengthHeader = head.get(RequestHead.H_CONTENT_LENGTH);
+            if (contentLengthHeader != null) {
                 try {
-                    contentLength = Integer.parseInt(headers.get("content-length"));
+                    contentLength = Long.parseLong(contentLengthHeader);
                     if (contentLength < 0) {
                         sendError(out, 400, "Bad Request", method);
                         return false;
@@ -168,6 +221,26 @@ class Worker implements Runnable {
                 }
             }
 
+            // Content-Length and Transfer-Encoding together make the framing ambiguous
+            // (the classic request smuggling setup), so such requests are refused.
+            String transferEncoding = head.get(RequestHead.H_TRANSFER_ENCODING);
+            String expect = head.get(RequestHead.H_EXPECT);
+            OutputStream continueOut = (expect != null && "100-continue".equalsIgnoreCase(expect.trim())) ? out : null;
+            RequestBody body;
+            if (transferEncoding != null) {
+                if (contentLengthHeader != null) {
+                    sendError(out, 400, "Bad Request", method);
+                    return false;
+                }
+                if (!RequestHead.isChunked(transferEncoding)) {
+                    sendError(out, 501, "Not Implemented", method);
+                    return false;
+                }
+                body = RequestBody.chunked(in, continueOut);
+            } else {
+                body = RequestBody.fixed(in, contentLength, continueOut);
+            }
+
             Map<String, String> queryParams = new HashMap<>();
             int qidx = url.indexOf('?');
             String rawPath = (qidx >= 0) ? url.substring(0, qidx) : url;
@@ -181,128 +254,83 @@ class Worker implements Runnable {
             try {
                 decodedPath = URLDecoder.decode(rawPath, "UTF-8");
             } catch (IllegalArgumentException iae) {
-                if (contentLength > 0) {
-                    if (!discardRequestBody(in, contentLength)) return false;
-                }
+                body.drain(MAX_DRAIN_BYTES);
                 sendError(out, 400, "Bad Request", method);
                 return false;
             }
 
             if (decodedPath.contains("..")) {
-                if (contentLength > 0) {
-                    if (!discardRequestBody(in, contentLength)) return false;
-                }
+                body.drain(MAX_DRAIN_BYTES);
                 sendError(out, 403, "Forbidden", method);
                 return false;
             }
 
             if (!decodedPath.startsWith("/")) decodedPath = "/" + decodedPath;
 
-            byte[] bodyRaw = new byte[0];
-            if (contentLength > 0) {
-                bodyRaw = new byte[contentLength];
-                int bytesRead = 0;
-                while (bytesRead < contentLength) {
-                    int r = in.read(bodyRaw, bytesRead, contentLength - bytesRead);
-                    if (r == -1) break;
-                    bytesRead += r;
-                }
-                String contentType = headers.get("content-type");
-                if (contentType != null && contentType.contains("application/x-www-form-urlencoded")) {
-                    String formData = new String(bodyRaw, StandardCharsets.UTF_8);
-                    parseQueryString(formData, queryParams);
-                }
-            }
+            InetSocketAddress remoteAddr = conn.remoteAddr;
 
-            InetSocketAddress remoteAddr = (InetSocketAddress) socket.getRemoteSocketAddress();
-
-            Map<String, String> pathParams = null;
-            Route matchedRoute = null;
-            RouteEntry matchedEntry = null;
-            for (RouteEntry re : Server.routes) {
-                if (!re.method.equals(method)) continue;
-
-                String pattern = re.pathPattern;
-                String[] patParts = pattern.split("/");
-                String[] urlParts = decodedPath.split("/");
-
-                List<String> patList = new ArrayList<>();
-                for (String p : patParts) if (!p.isEmpty()) patList.add(p);
-                List<String> urlList = new ArrayList<>();
-                for (String p : urlParts) if (!p.isEmpty()) urlList.add(p);
-
-                if (patList.size() != urlList.size()) continue;
-
-                boolean ok = true;
-                Map<String, String> tempParams = new HashMap<>();
-                for (int i = 0; i < patList.size(); i++) {
-                    String pp = patList.get(i);
-                    String up = urlList.get(i);
-                    if (pp.length() > 0 && pp.charAt(0) == ':') {
-                        tempParams.put(pp.substring(1), up);
-                    } else {
-                        if (!pp.equals(up)) {
-                            ok = false;
-                            break;
-                        }
-                    }
-                }
-                if (ok) {
-                    pathParams = tempParams;
-                    matchedRoute = re.handler;
-                    matchedEntry = re;
-                    break;
-                }
-            }
+            Router.Match match = Server.router().find(method, decodedPath);
+            Map<String, String> pathParams = (match == null) ? null : match.params;
+            Route matchedRoute = (match == null) ? null : match.entry.handler;
+            RouteEntry matchedEntry = (match == null) ? null : match.entry;
 
             if (matchedRoute != null) {
+                long maxBody = matchedEntry.maxBodySize();
+                if (body.length() > maxBody) {
+                    sendError(out, 413, "Payload Too Large", method);
+                    return false;
+                }
+                body.limit(maxBody);
+
                 ResponseImpl res = new ResponseImpl();
                 res.setOutputStream(out);
 
+                RequestImpl req = new RequestImpl(method, decodedPath, version, head, queryParams,
+        pathParams, remoteAddr, body, null, Server.getServerInstance(), conn.secure);
+                req.setResponse(res);
+                req.setSplat(match.splat);
+                String cacheKey = (matchedEntry.cacheTtlMs > 0 && "GET".equals(method))
+                        ? ResponseCache.key(matchedEntry, method, decodedPath, queryParams, head) : null;
+                ResponseCache.Entry cached = null;
+                Object routeResult = null;
+                Exception failure = null;
                 try {
-                    boolean socketIsSecure = (socket instanceof javax.net.ssl.SSLSocket);
-                    RequestImpl req = new RequestImpl(method, decodedPath, version, headers, queryParams,
-        pathParams, remoteAddr, bodyRaw, Server.getServerInstance(), socketIsSecure);
-                    req.setResponse(res);
-                    Object routeResult = matchedRoute.handle(req, res);
-
-                    if (!res.isWriteCalled() && !res.isCommitted()) {
-                        if (routeResult != null) {
-                            res.body(routeResult.toString());
-                        }
-                        try {
-                            res.commitHeaders();
-                        } catch (IOException ioe) {
-                            logger.debug("Error committing response from route: " + ioe.getMessage());
-                            if (!res.isCommitted()) {
-                                sendError(out, 500, "Internal Server Error", method);
-                            }
-                            return false;
-                        }
+                    for (Filter f : matchedEntry.beforeFilters) {
+                        f.handle(req, res);
                     }
-                } catch (ResponseImpl.HaltException he) {
-                    try {
-                    } catch (Exception ignored) {}
-                } catch (Exception e) {
-                    logger.debug("Exception in route handler: " + e.getMessage(), e);
-                    if (!res.isWriteCalled() && !res.isCommitted()) {
-                        sendError(out, 500, "Internal Server Error", method);
-                        return false;
-                    } else {
-                        return false;
+                    // A filter that already sent something (a redirect, say) keeps the
+                    // cached copy from being written after it.
+                    if (cacheKey != null && !res.isCommitted()) {
+                        res.markFilterHeaders();
+                        cached = Server.responseCache().get(cacheKey, System.currentTimeMillis());
                     }
+                    if (cached == null) {
+                        routeResult = matchedRoute.handle(req, res);
+                    }
+                } catch (Exception e) {
+                    failure = e;
                 }
 
-                if (res.isWriteCalled()) {
-                    return false;
+                if (cached != null) {
+                    cached.writeTo(out, System.currentTimeMillis(), res.filterHeaderLines());
+                    return body.drain(MAX_DRAIN_BYTES) && clientKeepsAlive(head);
                 }
 
-                String clientConn = "keep-alive";
-                if (headers.containsKey("connection")) clientConn = headers.get("connection").toLowerCase();
-                if ("close".equals(clientConn)) return false;
-                return true;
+                // The handler answers later: this thread lets go of the connection, and
+                // whoever drives it calls PendingRoute.finish() once the future is done.
+                if (failure == null && routeResult instanceof CompletionStage<?> stage) {
+                    CompletableFuture<?> result = stage.toCompletableFuture().copy();
+                    long timeout = matchedEntry.asyncTimeout();
+                    if (timeout > 0) {
+                        result.orTimeout(timeout, TimeUnit.MILLISECONDS);
+                    }
+                    conn.pending = new PendingRoute(conn, method, head, body, matchedEntry, req, res, cacheKey, result);
+                    return true;
+                }
+                return completeRoute(conn, method, head, body, matchedEntry, req, res, cacheKey, routeResult, failure);
             }
 
+            boolean reusable = body.drain(MAX_DRAIN_BYTES);
             if (!"GET".equals(method) && !"HEAD".equals(method)) {
                 if ("POST".equals(method) || "PUT".equals(method)) {
                     sendError(out, 405, "Method Not Allowed", method);
@@ -312,152 +340,170 @@ class Worker implements Runnable {
                 return false;
             }
 
-            File requestedFile = new File(rootDir, decodedPath);
-            String reqCanonical;
+            return staticFiles.serve(conn, method, decodedPath, head) && reusable;
+
+        } catch (IOException ioe) {
+            logger.debug("IOE in processRequest: " + ioe.getMessage());
+            return false;
+        }
+    }
+
+    // Sends the response of a route whose handler has returned (or whose future has completed)
+    // with 'result' or thrown 'failure': sets the body from the result, runs the after filters
+    // and commits, storing the response under cacheKey if that is given and the response can
+    // be cached. Returns whether the connection can be reused.
+    private boolean completeRoute(Connection conn, String method, RequestHead head, RequestBody body, RouteEntry entry,
+                                  RequestImpl req, ResponseImpl res, String cacheKey, Object result, Throwable failure) throws IOException {
+        BufferedOutputStream out = conn.out;
+        if (failure == null) {
             try {
-                reqCanonical = requestedFile.getCanonicalPath();
-            } catch (IOException e) {
-                sendError(out, 404, "Not Found", method);
-                return false;
+                if (result != null && !res.isWriteCalled() && !res.isCommitted()) {
+                    res.body(result.toString());
+                }
+                for (Filter f : entry.afterFilters) {
+                    f.handle(req, res);
+                }
+            } catch (Exception e) {
+                failure = e;
             }
+        }
 
-            if (!reqCanonical.equals(rootCanonical) && !reqCanonical.startsWith(rootCanonical + File.separator)) {
-                sendError(out, 403, "Forbidden", method);
-                return false;
+        if (failure instanceof ResponseImpl.HaltException) {
+            // A filter or the route stopped the request: the halt status goes out with
+            // whatever headers and body had been set before.
+            if (!res.isCommitted()) {
+                try {
+                    res.commitHeaders();
+                } catch (IOException ioe) {
+                    return false;
+                }
             }
-
-            File f = new File(reqCanonical);
-            if (!f.exists()) {
-                sendError(out, 404, "Not Found", method);
-                return false;
+        } else if (failure instanceof TimeoutException) {
+            // The future may still write to the response later, so the connection goes.
+            logger.debug("Asynchronous route timed out: " + entry.pathPattern);
+            if (!res.isWriteCalled() && !res.isCommitted()) {
+                sendError(out, 504, "Gateway Timeout", method);
             }
-
-            if (!f.isFile() || !f.canRead()) {
-                sendError(out, 403, "Forbidden", method);
+            return false;
+        } else if (failure != null) {
+            logger.debug("Exception in route handler: " + failure.getMessage(), failure);
+            if (!res.isWriteCalled() && !res.isCommitted()) {
+                int status = (failure instanceof Exception e) ? RequestBody.errorStatus(e) : 500;
+                if (status == 408) {
+                    sendError(out, 408, "Request Timeout", method);
+                    return false;
+                } else if (status == 413) {
+                    sendError(out, 413, "Payload Too Large", method);
+                    return false;
+                } else if (status == 400) {
+                    sendError(out, 400, "Bad Request", method);
+                    return false;
+                }
+                sendError(out, 500, "Internal Server Error", method);
+                return false;
+            } else {
                 return false;
             }
-
-            if (headers.containsKey("if-modified-since")) {
-                String ims = headers.get("if-modified-since");
-                SimpleDateFormat rfc1123 = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
-                rfc1123.setTimeZone(TimeZone.getTimeZone("GMT"));
-                try {
-                    Date sinceDate = rfc1123.parse(ims);
-                    long fileLastModified = f.lastModified();
-                    if (fileLastModified <= sinceDate.getTime()) {
-                        StringBuilder resp = new StringBuilder();
-                        resp.append("HTTP/1.1 304 Not Modified\r\n");
-                        resp.append("Server: CIS5550Server\r\n");
-                        String clientConn = headers.getOrDefault("connection", "").toLowerCase();
-                        if ("close".equals(clientConn)) {
-                            resp.append("Connection: close\r\n");
-                        } else {
-                            resp.append("Connection: keep-alive\r\n");
-                        }
-                        resp.append("\r\n");
-                        out.write(resp.toString().getBytes(StandardCharsets.UTF_8));
-                        out.flush();
-                        return !"close".equals(headers.getOrDefault("connection", "").toLowerCase());
+        } else if (!res.isWriteCalled() && !res.isCommitted()) {
+            try {
+                if (cacheKey != null && cacheable(res)) {
+                    if (res.getHeader("cache-control") == null) {
+                        res.header("Cache-Control", "max-age=" + entry.cacheTtlMs / 1000);
                     }
-                } catch (ParseException pe) {
-                }
-            }
-
-            boolean hasRange = headers.containsKey("range");
-            long totalLength = f.length();
-            long sendStart = 0;
-            long sendEnd = totalLength - 1;
-            boolean isPartial = false;
-
-            if (hasRange) {
-                String range = headers.get("range").trim();
-                if (range.startsWith("bytes=")) {
-                    String spec = range.substring(6);
-                    try {
-                        if (spec.startsWith("-")) {
-                            long suffix = Long.parseLong(spec.substring(1));
-                            if (suffix > totalLength) suffix = totalLength;
-                            sendStart = Math.max(0, totalLength - suffix);
-                            sendEnd = totalLength - 1;
-                            isPartial = true;
-                        } else if (spec.endsWith("-")) {
-                            long s = Long.parseLong(spec.substring(0, spec.length() - 1));
-                            if (s < totalLength) {
-                                sendStart = s;
-                                sendEnd = totalLength - 1;
-                                isPartial = true;
-                            }
-                        } else if (spec.contains("-")) {
-                            String[] parts = spec.split("-", 2);
-                            long s = Long.parseLong(parts[0]);
-                            long e = Long.parseLong(parts[1]);
-                            if (s <= e && s < totalLength) {
-                                sendStart = s;
-                                sendEnd = Math.min(e, totalLength - 1);
-                                isPartial = true;
-                            }
-                        }
-                    } catch (NumberFormatException nfe) {
-                        isPartial = false;
+                    if (entry.cacheHeaders.length > 0 && res.getHeader("vary") == null) {
+                        res.header("Vary", String.join(", ", entry.cacheHeaders));
                     }
+                    byte[][] sent = res.commitCaptured();
+                    Server.responseCache().put(cacheKey, sent[0], sent[1], entry.cacheTtlMs);
+                } else {
+                    res.commitHeaders();
                 }
+            } catch (IOException ioe) {
+                logger.debug("Error committing response from route: " + ioe.getMessage());
+                if (!res.isCommitted()) {
+                    sendError(out, 500, "Internal Server Error", method);
+                }
+                return false;
             }
+        }
 
-            String contentType = getContentType(reqCanonical);
-            long contentLengthToSend = (sendEnd - sendStart) + 1;
-
-            StringBuilder respHeaders = new StringBuilder();
-
-            if (isPartial) {
-                respHeaders.append("HTTP/1.1 206 Partial Content\r\n");
-            } else {
-                respHeaders.append("HTTP/1.1 200 OK\r\n");
-            }
-
-            respHeaders.append("Server: CIS5550Server\r\n");
-            respHeaders.append("Content-Type: ").append(contentType).append("\r\n");
-            respHeaders.append("Content-Length: ").append(contentLengthToSend).append("\r\n");
+        if (res.isWriteCalled() && !res.finishWrite()) {
+            return false;
+        }
 
-            if (isPartial) {
-                respHeaders.append("Content-Range: bytes ")
-                           .append(sendStart).append("-").append(sendEnd)
-                           .append("/").append(totalLength).append("\r\n");
-            }
+        // Whatever the handler left unread has to go before the next request can be parsed.
+        if (!body.drain(MAX_DRAIN_BYTES)) {
+            return false;
+        }
+        return clientKeepsAlive(head);
+    }
 
-            String clientConn = headers.getOrDefault("connection", "").toLowerCase();
-            if ("close".equals(clientConn)) {
-                respHeaders.append("Connection: close\r\n");
-            } else {
-                respHeaders.append("Connection: keep-alive\r\n");
-            }
+    private static boolean clientKeepsAlive(RequestHead head) {
+        String clientConn = head.get(RequestHead.H_CONNECTION);
+        return clientConn == null || !"close".equalsIgnoreCase(clientConn);
+    }
 
-            respHeaders.append("\r\n");
-            out.write(respHeaders.toString().getBytes(StandardCharsets.UTF_8));
+    // Only complete 200 responses that are the same for everyone may be stored.
+    private static boolean cacheable(ResponseImpl res) {
+        if (res.getStatusCode() != 200 || res.routeSetsCookie()) {
+            return false;
+        }
+        String cc = res.getHeader("cache-control");
+        if (cc == null) {
+            return true;
+        }
+        cc = cc.toLowerCase(Locale.ROOT);
+        return !cc.contains("no-store") && !cc.contains("private") && !cc.contains("no-cache");
+    }
 
-            if ("GET".equals(method)) {
-                try (RandomAccessFile raf = new RandomAccessFile(f, "r")) {
-                    raf.seek(sendStart);
+    // A request whose route returned a CompletionStage. processRequest leaves it in
+    // Connection.pending; whoever drives the connection waits for 'result' without holding a
+    // thread (whenDone) and then calls finish() on a thread that may write to the connection,
+    // which returns what processRequest would have.
+    final class PendingRoute {
+        final CompletableFuture<?> result;
+        private final Connection conn;
+        private final String method;
+        private final RequestHead head;
+        private final RequestBody body;
+        private final RouteEntry entry;
+        private final RequestImpl req;
+        private final ResponseImpl res;
+        private final String cacheKey;
+
+        PendingRoute(Connection conn, String method, RequestHead head, RequestBody body, RouteEntry entry,
+                     RequestImpl req, ResponseImpl res, String cacheKey, CompletableFuture<?> result) {
+            this.conn = conn;
+            this.method = method;
+            this.head = head;
+            this.body = body;
+            this.entry = entry;
+            this.req = req;
+            this.res = res;
+            this.cacheKey = cacheKey;
+            this.result = result;
+        }
 
-                    byte[] buf = new byte[16 * 1024];
-                    long remaining = contentLengthToSend;
+        void whenDone(Runnable r) {
+            result.whenComplete((v, t) -> r.run());
+        }
 
-                    while (remaining > 0) {
-                        int toRead = (int) Math.min(buf.length, remaining);
-                        int actuallyRead = raf.read(buf, 0, toRead);
-                        if (actuallyRead == -1) break;
-                        out.write(buf, 0, actuallyRead);
-                        remaining -= actuallyRead;
-                    }
-                }
+        boolean finish() {
+            Object value = null;
+            Throwable failure = null;
+            try {
+                value = result.join();
+            } catch (CompletionException ce) {
+                failure = (ce.getCause() != null) ? ce.getCause() : ce;
+            } catch (CancellationException ce) {
+                failure = ce;
+            }
+            try {
+                return completeRoute(conn, method, head, body, entry, req, res, cacheKey, value, failure);
+            } catch (IOException ioe) {
+                logger.debug("IOE in asynchronous route: " + ioe.getMessage());
+                return false;
             }
-
-            out.flush();
-
-            return !"close".equals(clientConn);
-
-        } catch (IOException ioe) {
-            logger.debug("IOE in processRequest: " + ioe.getMessage());
-            return false;
         }
     }
 
@@ -480,22 +526,7 @@ class Worker implements Runnable {
 
 
 
-    private boolean discardRequestBody(BufferedInputStream input, int contentLength) throws IOException {
-        int bytesRemaining  =  contentLength; 
-        byte[] buffer = new byte[8192]; 
-
-        while (bytesRemaining > 0) {
-            int bytesToRead = Math.min(buffer.length, bytesRemaining);
-            int bytesRead = input.read(buffer, 0, bytesToRead);
-            if (bytesRead == -1) {
-                return false; 
-            }
-            bytesRemaining -= bytesRead;
-        }
-        return true;
-    }
-
-    //     private boolean discardRequestBody(BufferedInputStream input, int contentLength) throws IOException {
+    //     private boolean discardRequestBody(InputStream input, int contentLength) throws IOException {
     //     int bytesRemaining = contentLength;
     //     byte[] buffer = new byte[8192];
 
@@ -509,7 +540,7 @@ class Worker implements Runnable {
     //     return true;
     // }
 
-    private void sendError(BufferedOutputStream out, int code, String message, String method) throws IOException {
+    static void sendError(BufferedOutputStream out, int code, String message, String method) throws IOException {
         String body = code + " " + message;
         byte[] bodyBytes = body.getBytes(StandardCharsets.UTF_8);
         int bodyLen = "HEAD".equals(method) ? 0 : bodyBytes.length;
@@ -524,23 +555,6 @@ class Worker implements Runnable {
 
         out.write(sb.toString().getBytes(StandardCharsets.UTF_8));
         if (bodyLen > 0) out.write(bodyBytes);
-        out.flush();
-    }
-
-    private String getContentType(String urlOrPath) {
-        String lower = urlOrPath.toLowerCase();
-
-        if (lower.endsWith(".jpg") || lower.endsWith(".jpeg")) {
-            return "image/jpeg";
-        }
-        if (lower.endsWith(".txt")) {
-            return "text/plain";
-        }
-        if (lower.endsWith(".html") || lower.endsWith(".htm")) {
-            return "text/html";
-        }
-
-        return "application/octet-stream";
     }
 }
 
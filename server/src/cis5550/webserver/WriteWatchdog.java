@@ -0,0 +1,118 @@
+package cis5550.webserver;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Blocking socket streams have no write timeout, so a client that stops reading can hold a
+// worker forever. Every write through a Guard is timestamped, and one daemon thread closes
+// the socket of any write that has been blocked longer than Server.writeTimeout().
+final class WriteWatchdog {
+
+    private static final long CHECK_INTERVAL_MS = 1000;
+
+    private static final Set<Guard> active = ConcurrentHashMap.newKeySet();
+
+    static {
+        Thread t = new Thread(WriteWatchdog::checkLoop, "Write-Watchdog");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    private WriteWatchdog() {
+    }
+
+    static Guard guard(Socket socket) throws IOException {
+        Guard g = new Guard(socket, socket.getOutputStream());
+        active.add(g);
+        return g;
+    }
+
+    static final class Guard extends OutputStream {
+        private final Socket socket;
+        private final OutputStream out;
+        private volatile long writingSince = 0;
+
+        private Guard(Socket socket, OutputStream out) {
+            this.socket = socket;
+            this.out = out;
+        }
+
+        // Brackets a write that does not go through this stream (e.g. FileChannel.transferTo).
+        void begin() {
+            writingSince = System.currentTimeMillis();
+        }
+
+        void end() {
+            writingSince = 0;
+        }
+
+        public void write(int b) throws IOException {
+            begin();
+            try {
+                out.write(b);
+            } finally {
+                end();
+            }
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+            begin();
+            try {
+                out.write(b, off, len);
+            } finally {
+                end();
+            }
+        }
+
+        public void flush() throws IOException {
+            begin();
+            try {
+                out.flush();
+            } finally {
+                end();
+            }
+        }
+
+        // Closing alone does not wake a thread blocked in sendfile(), so the sending side is
+        // shut down first.
+        void abort() {
+            try {
+                if (!(socket instanceof javax.net.ssl.SSLSocket)) socket.shutdownOutput();
+            } catch (IOException ignored) {
+            }
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+
+        public void close() throws IOException {
+            active.remove(this);
+            out.close();
+        }
+    }
+
+    private static void checkLoop() {
+        while (true) {
+            try {
+                Thread.sleep(CHECK_INTERVAL_MS);
+            } catch (InterruptedException ie) {
+                return;
+            }
+            int timeout = Server.writeTimeout();
+            if (timeout <= 0) continue;
+            long now = System.currentTimeMillis();
+            for (Guard g : active) {
+                long since = g.writingSince;
+                if (since != 0 && now - since > timeout) {
+                    active.remove(g);
+                    ServerStats.writeTimeouts.increment();
+                    g.abort();
+                }
+            }
+        }
+    }
+}